@@ -0,0 +1,612 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs GraphManager calls on an executor and returns CompletableFutures so a caller can fan out many calls
+ * without a thread per call.
+ *
+ * At most maxPending calls are queued or running, after that submitting blocks the caller.  getNode calls for the
+ * same id made while a lookup is waiting to start share it and the same Node instance, so treat those results
+ * as read only.
+ * Writes complete once they are durable.  The durability waits are handled by one thread that waits for the
+ * highest pending write sequence, so writes from many callers share the group commit instead of holding an
+ * executor thread each.
+ *
+ * @author aholinch
+ *
+ */
+public class AsyncGraphManager
+{
+	private static final Logger logger = Logger.getLogger(AsyncGraphManager.class.getName());
+
+	public static final int DEFAULT_MAX_PENDING = 1000;
+
+	protected GraphManager gm = null;
+	protected ExecutorService executor = null;
+	protected Semaphore permits = null;
+	protected boolean awaitDurable = true;
+
+	protected ConcurrentHashMap<String,CompletableFuture<Node>> nodeGets = new ConcurrentHashMap<String,CompletableFuture<Node>>();
+
+	protected BlockingQueue<PendingWrite<?>> pendingWrites = new LinkedBlockingQueue<PendingWrite<?>>();
+	protected Thread durableThread = null;
+	protected volatile boolean running = true;
+
+	// guards acceptingWrites so nothing is queued once shutdown has stopped the durability thread
+	protected final Object durableLock = new Object();
+	protected boolean acceptingWrites = true;
+
+	/**
+	 * A write waiting for its sequence number to be committed.
+	 */
+	protected static class PendingWrite<T>
+	{
+		protected long seq = 0;
+		protected CompletableFuture<T> future = null;
+		protected T value = null;
+
+		protected PendingWrite(long seq, CompletableFuture<T> future, T value)
+		{
+			this.seq = seq;
+			this.future = future;
+			this.value = value;
+		}
+
+		protected void complete()
+		{
+			future.complete(value);
+		}
+	}
+
+	/**
+	 * Two threads per core and up to DEFAULT_MAX_PENDING calls in flight.
+	 *
+	 * @param gm
+	 */
+	public AsyncGraphManager(GraphManager gm)
+	{
+		this(gm, 2*Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_PENDING, false);
+	}
+
+	/**
+	 * @param gm
+	 * @param threads executor size, ignored with virtual threads
+	 * @param maxPending calls queued or running before submitting blocks
+	 * @param virtualThreads use a virtual thread per call if the JDK has them
+	 */
+	public AsyncGraphManager(GraphManager gm, int threads, int maxPending, boolean virtualThreads)
+	{
+		this.gm = gm;
+		permits = new Semaphore(Math.max(1, maxPending));
+
+		if(virtualThreads)
+		{
+			executor = createVirtualThreadExecutor();
+		}
+
+		if(executor == null)
+		{
+			executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "nograph-async");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		durableThread = new Thread(new Runnable() {
+			public void run()
+			{
+				completeDurableWrites();
+			}
+		}, "nograph-async-durable");
+		durableThread.setDaemon(true);
+		durableThread.start();
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor is looked up by reflection so this still builds for Java 8.
+	 *
+	 * @return null if the JDK doesn't have virtual threads
+	 */
+	protected static ExecutorService createVirtualThreadExecutor()
+	{
+		try
+		{
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)m.invoke(null);
+		}
+		catch(Exception ex)
+		{
+			logger.info("Virtual threads are not available, using a thread pool");
+		}
+		return null;
+	}
+
+	public GraphManager getGraphManager()
+	{
+		return gm;
+	}
+
+	/**
+	 * When false writes complete as soon as they are applied to the indexes, before they are committed.
+	 *
+	 * @param flag
+	 */
+	public void setAwaitDurable(boolean flag)
+	{
+		awaitDurable = flag;
+	}
+
+	public boolean getAwaitDurable()
+	{
+		return awaitDurable;
+	}
+
+	/**
+	 * Run the task on the executor, blocking while maxPending calls are in flight.
+	 *
+	 * @param task
+	 * @return
+	 */
+	protected <T> CompletableFuture<T> submit(final Callable<T> task)
+	{
+		final CompletableFuture<T> f = new CompletableFuture<T>();
+
+		try
+		{
+			permits.acquire();
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			f.completeExceptionally(ex);
+			return f;
+		}
+
+		try
+		{
+			executor.execute(new Runnable() {
+				public void run()
+				{
+					try
+					{
+						f.complete(task.call());
+					}
+					catch(Throwable t)
+					{
+						f.completeExceptionally(t);
+					}
+					finally
+					{
+						permits.release();
+					}
+				}
+			});
+		}
+		catch(RejectedExecutionException ex)
+		{
+			permits.release();
+			f.completeExceptionally(ex);
+		}
+
+		return f;
+	}
+
+	/**
+	 * Run a write, then complete the future once the write sequence it produced is durable.
+	 *
+	 * @param task
+	 * @return
+	 */
+	protected <T> CompletableFuture<T> submitWrite(final Callable<T> task)
+	{
+		final CompletableFuture<T> done = new CompletableFuture<T>();
+
+		CompletableFuture<T> applied = submit(new Callable<T>() {
+			public T call() throws Exception
+			{
+				T val = task.call();
+
+				// at least the sequence of this write, possibly a later one which only means waiting a little longer
+				long seq = gm.getWriteSequence();
+				if(!awaitDurable)
+				{
+					done.complete(val);
+				}
+				else if(!queueDurable(new PendingWrite<T>(seq, done, val)))
+				{
+					done.completeExceptionally(new NoGraphException("Shut down before the write was known to be durable"));
+				}
+				return val;
+			}
+		});
+
+		// failures to apply never reach the durable queue
+		applied.whenComplete(new BiConsumer<T,Throwable>() {
+			public void accept(T val, Throwable t)
+			{
+				if(t != null) done.completeExceptionally(t);
+			}
+		});
+
+		return done;
+	}
+
+	/**
+	 * @param pw
+	 * @return false if shutdown has already stopped taking writes
+	 */
+	protected boolean queueDurable(PendingWrite<?> pw)
+	{
+		synchronized(durableLock)
+		{
+			if(!acceptingWrites) return false;
+			pendingWrites.add(pw);
+			return true;
+		}
+	}
+
+	/**
+	 * Fail whatever the durability thread didn't get to before it stopped.
+	 */
+	protected void failPendingWrites()
+	{
+		List<PendingWrite<?>> left = new ArrayList<PendingWrite<?>>();
+		pendingWrites.drainTo(left);
+
+		int size = left.size();
+		if(size == 0) return;
+
+		logger.warning(size + " writes were not known to be durable at shutdown");
+		NoGraphException ex = new NoGraphException("Shut down before the write was known to be durable");
+		for(int i=0; i<size; i++)
+		{
+			left.get(i).future.completeExceptionally(ex);
+		}
+	}
+
+	/**
+	 * Loop on the durability thread.  Everything queued while the last commit was running is covered by one
+	 * awaitDurable call on the highest sequence.
+	 */
+	protected void completeDurableWrites()
+	{
+		List<PendingWrite<?>> batch = new ArrayList<PendingWrite<?>>();
+		PendingWrite<?> pw = null;
+		while(running || pendingWrites.size() > 0)
+		{
+			try
+			{
+				pw = pendingWrites.poll(100, TimeUnit.MILLISECONDS);
+				if(pw == null) continue;
+
+				batch.clear();
+				batch.add(pw);
+				pendingWrites.drainTo(batch);
+
+				long max = 0;
+				int size = batch.size();
+				for(int i=0; i<size; i++)
+				{
+					max = Math.max(max, batch.get(i).seq);
+				}
+
+				try
+				{
+					gm.awaitDurable(max);
+					for(int i=0; i<size; i++)
+					{
+						batch.get(i).complete();
+					}
+				}
+				catch(Exception ex)
+				{
+					logger.log(Level.WARNING, "Error waiting for commit", ex);
+					for(int i=0; i<size; i++)
+					{
+						batch.get(i).future.completeExceptionally(ex);
+					}
+				}
+			}
+			catch(InterruptedException ex)
+			{
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Concurrent lookups of the same id share one read, as long as it hasn't started.  A read that is already
+	 * running may be from before a write the caller has seen complete, so later callers start a new one.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public CompletableFuture<Node> getNode(final String id)
+	{
+		CompletableFuture<Node> f = new CompletableFuture<Node>();
+		CompletableFuture<Node> existing = nodeGets.putIfAbsent(id, f);
+		if(existing != null)
+		{
+			return existing;
+		}
+
+		final CompletableFuture<Node> shared = f;
+		CompletableFuture<Node> read = submit(new Callable<Node>() {
+			public Node call() throws Exception
+			{
+				// anyone joining from here on would get what the index had before their call
+				nodeGets.remove(id, shared);
+				return gm.getNode(id);
+			}
+		});
+
+		read.whenComplete(new BiConsumer<Node,Throwable>() {
+			public void accept(Node n, Throwable t)
+			{
+				// the read may have failed before it started
+				nodeGets.remove(id, shared);
+				if(t != null)
+				{
+					shared.completeExceptionally(t);
+				}
+				else
+				{
+					shared.complete(n);
+				}
+			}
+		});
+
+		return shared;
+	}
+
+	public CompletableFuture<Relationship> getRelationship(final String id, final boolean fetchNodes)
+	{
+		return submit(new Callable<Relationship>() {
+			public Relationship call() throws Exception
+			{
+				return gm.getRelationship(id, fetchNodes);
+			}
+		});
+	}
+
+	public CompletableFuture<List<Node>> findNodes(final GraphQuery query)
+	{
+		return submit(new Callable<List<Node>>() {
+			public List<Node> call() throws Exception
+			{
+				return gm.findNodes(query);
+			}
+		});
+	}
+
+	public CompletableFuture<List<Node>> findNodes(final String type, final String key, final Object val)
+	{
+		return submit(new Callable<List<Node>>() {
+			public List<Node> call() throws Exception
+			{
+				return gm.findNodes(type, key, val);
+			}
+		});
+	}
+
+	public CompletableFuture<List<Relationship>> findRelationships(final GraphQuery query)
+	{
+		return submit(new Callable<List<Relationship>>() {
+			public List<Relationship> call() throws Exception
+			{
+				return gm.findRelationships(query);
+			}
+		});
+	}
+
+	public CompletableFuture<ResultPage<Node>> findNodesPage(final GraphQuery query)
+	{
+		return submit(new Callable<ResultPage<Node>>() {
+			public ResultPage<Node> call() throws Exception
+			{
+				return gm.findNodesPage(query);
+			}
+		});
+	}
+
+	public CompletableFuture<ResultPage<Relationship>> findRelationshipsPage(final GraphQuery query)
+	{
+		return submit(new Callable<ResultPage<Relationship>>() {
+			public ResultPage<Relationship> call() throws Exception
+			{
+				return gm.findRelationshipsPage(query);
+			}
+		});
+	}
+
+	public CompletableFuture<List<Relationship>> findRelatedNodes(final String id)
+	{
+		return submit(new Callable<List<Relationship>>() {
+			public List<Relationship> call() throws Exception
+			{
+				return gm.findRelatedNodes(id);
+			}
+		});
+	}
+
+	public CompletableFuture<Long> countNodes(final String type)
+	{
+		return submit(new Callable<Long>() {
+			public Long call() throws Exception
+			{
+				return Long.valueOf(gm.countNodes(type));
+			}
+		});
+	}
+
+	public CompletableFuture<Long> countRelationships(final String type)
+	{
+		return submit(new Callable<Long>() {
+			public Long call() throws Exception
+			{
+				return Long.valueOf(gm.countRelationships(type));
+			}
+		});
+	}
+
+	/**
+	 * Completes with the saved node, which has its id, once the save is durable.
+	 *
+	 * @param n
+	 * @return
+	 */
+	public CompletableFuture<Node> saveNode(final Node n)
+	{
+		return submitWrite(new Callable<Node>() {
+			public Node call() throws Exception
+			{
+				gm.saveNode(n);
+				return n;
+			}
+		});
+	}
+
+	public CompletableFuture<List<Node>> saveNodes(final List<Node> nodes)
+	{
+		return submitWrite(new Callable<List<Node>>() {
+			public List<Node> call() throws Exception
+			{
+				gm.saveNodes(nodes);
+				return nodes;
+			}
+		});
+	}
+
+	public CompletableFuture<Relationship> saveRelationship(final Relationship r)
+	{
+		return submitWrite(new Callable<Relationship>() {
+			public Relationship call() throws Exception
+			{
+				gm.saveRelationship(r);
+				return r;
+			}
+		});
+	}
+
+	public CompletableFuture<List<Relationship>> saveRelationships(final List<Relationship> rels)
+	{
+		return submitWrite(new Callable<List<Relationship>>() {
+			public List<Relationship> call() throws Exception
+			{
+				gm.saveRelationships(rels);
+				return rels;
+			}
+		});
+	}
+
+	public CompletableFuture<Void> deleteNode(final String id)
+	{
+		return submitWrite(new Callable<Void>() {
+			public Void call() throws Exception
+			{
+				gm.deleteNode(id);
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<Void> deleteRelationship(final String id)
+	{
+		return submitWrite(new Callable<Void>() {
+			public Void call() throws Exception
+			{
+				gm.deleteRelationship(id);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Completes with the batch's write sequence once it is durable.
+	 *
+	 * @param batch
+	 * @return
+	 */
+	public CompletableFuture<Long> saveBatch(final GraphBatch batch)
+	{
+		return submitWrite(new Callable<Long>() {
+			public Long call() throws Exception
+			{
+				return Long.valueOf(gm.saveBatch(batch));
+			}
+		});
+	}
+
+	/**
+	 * Stop taking calls, let the queued ones finish and complete the writes waiting on a commit.  Writes that are
+	 * not known to be durable once the timeout is up complete exceptionally.
+	 *
+	 * @param timeoutMS
+	 */
+	public void shutdown(long timeoutMS)
+	{
+		executor.shutdown();
+		try
+		{
+			executor.awaitTermination(timeoutMS, TimeUnit.MILLISECONDS);
+
+			// writes still running after the wait fail instead of queueing behind a stopped thread
+			synchronized(durableLock)
+			{
+				acceptingWrites = false;
+			}
+			running = false;
+			durableThread.join(timeoutMS);
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			synchronized(durableLock)
+			{
+				acceptingWrites = false;
+			}
+			failPendingWrites();
+		}
+	}
+}
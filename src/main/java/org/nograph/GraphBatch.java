@@ -0,0 +1,128 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffers node and relationship saves and deletes so they can be applied to a graph together with
+ * GraphManager.saveBatch.  Saves are applied before deletes, and new nodes get their ids before any
+ * relationships are written so a batch can connect nodes it creates.
+ *
+ * @author aholinch
+ *
+ */
+public class GraphBatch
+{
+	protected List<Node> nodes = null;
+	protected List<Relationship> rels = null;
+	protected List<String> deletedNodeIDs = null;
+	protected List<String> deletedRelIDs = null;
+
+	public GraphBatch()
+	{
+		nodes = new ArrayList<Node>();
+		rels = new ArrayList<Relationship>();
+		deletedNodeIDs = new ArrayList<String>();
+		deletedRelIDs = new ArrayList<String>();
+	}
+
+	public void saveNode(Node n)
+	{
+		if(n != null) nodes.add(n);
+	}
+
+	public void saveNodes(List<Node> list)
+	{
+		if(list != null) nodes.addAll(list);
+	}
+
+	public void saveRelationship(Relationship r)
+	{
+		if(r != null) rels.add(r);
+	}
+
+	public void saveRelationships(List<Relationship> list)
+	{
+		if(list != null) rels.addAll(list);
+	}
+
+	/**
+	 * Deleting a node also deletes the relationships attached to it.
+	 *
+	 * @param id
+	 */
+	public void deleteNode(String id)
+	{
+		if(id != null) deletedNodeIDs.add(id);
+	}
+
+	public void deleteNode(Node n)
+	{
+		if(n != null) deleteNode(n.getID());
+	}
+
+	public void deleteRelationship(String id)
+	{
+		if(id != null) deletedRelIDs.add(id);
+	}
+
+	public void deleteRelationship(Relationship r)
+	{
+		if(r != null) deleteRelationship(r.getID());
+	}
+
+	public List<Node> getNodes()
+	{
+		return nodes;
+	}
+
+	public List<Relationship> getRelationships()
+	{
+		return rels;
+	}
+
+	public List<String> getDeletedNodeIDs()
+	{
+		return deletedNodeIDs;
+	}
+
+	public List<String> getDeletedRelationshipIDs()
+	{
+		return deletedRelIDs;
+	}
+
+	public int size()
+	{
+		return nodes.size() + rels.size() + deletedNodeIDs.size() + deletedRelIDs.size();
+	}
+
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	public void clear()
+	{
+		nodes.clear();
+		rels.clear();
+		deletedNodeIDs.clear();
+		deletedRelIDs.clear();
+	}
+}
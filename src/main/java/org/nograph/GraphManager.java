@@ -17,8 +17,11 @@ limitations under the License.
 */
 package org.nograph;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 import org.nograph.GraphQuery.Criterion;
 
@@ -75,6 +78,16 @@ public interface GraphManager
      */
     public Node getNode(String id) throws NoGraphException;
     
+    /**
+     * Retrieve many nodes in one lookup.  The list is in the same order as the ids with null for any id that
+     * wasn't found.
+     * 
+     * @param ids
+     * @return
+     * @throws NoGraphException
+     */
+    public List<Node> getNodes(Collection<String> ids) throws NoGraphException;
+    
     /**
      * Assumes all nodes are to be inserted.  Can be very optimized.
      * 
@@ -83,6 +96,27 @@ public interface GraphManager
      */
     public void ingestNodes(List<Node> nodes) throws NoGraphException;
     
+    /**
+     * Ingest nodes as they are pulled from the iterator, in bounded chunks, so the whole set never has to be in memory.
+     * IDs will be assigned.
+     * 
+     * @param nodes
+     * @param listener optional progress listener
+     * @return the number of nodes ingested
+     * @throws NoGraphException
+     */
+    public long ingestNodes(Iterator<Node> nodes, IngestListener listener) throws NoGraphException;
+    
+    /**
+     * Ingest nodes as they are pulled from the stream.
+     * 
+     * @param nodes
+     * @param listener optional progress listener
+     * @return the number of nodes ingested
+     * @throws NoGraphException
+     */
+    public long ingestNodes(Stream<Node> nodes, IngestListener listener) throws NoGraphException;
+    
     /**
      * Handles both insert and update and may be slow.
      * 
@@ -107,6 +141,15 @@ public interface GraphManager
      */
     public void deleteNodesByID(List<String> ids) throws NoGraphException;
     
+    /**
+     * Delete every node matching the query along with the relationships attached to them.
+     * 
+     * @param query
+     * @return the number of nodes deleted
+     * @throws NoGraphException
+     */
+    public long deleteNodes(GraphQuery query) throws NoGraphException;
+    
     /**
      * Handles both insert and update.
      * 
@@ -141,6 +184,17 @@ public interface GraphManager
      */
     public Relationship getRelationship(String id, boolean fetchNodes) throws NoGraphException;
     
+    /**
+     * Retrieve many relationships in one lookup, in the same order as the ids with null for any id that wasn't
+     * found.  Optionally, fetch the linked nodes.
+     * 
+     * @param ids
+     * @param fetchNodes
+     * @return
+     * @throws NoGraphException
+     */
+    public List<Relationship> getRelationships(Collection<String> ids, boolean fetchNodes) throws NoGraphException;
+    
     /**
      * Ingest the relationships.  IDs will be assigned.
      * 
@@ -149,6 +203,26 @@ public interface GraphManager
      */
     public void ingestRelationships(List<Relationship> rels) throws NoGraphException;
     
+    /**
+     * Ingest relationships as they are pulled from the iterator, in bounded chunks.  IDs will be assigned.
+     * 
+     * @param rels
+     * @param listener optional progress listener
+     * @return the number of relationships ingested
+     * @throws NoGraphException
+     */
+    public long ingestRelationships(Iterator<Relationship> rels, IngestListener listener) throws NoGraphException;
+    
+    /**
+     * Ingest relationships as they are pulled from the stream.
+     * 
+     * @param rels
+     * @param listener optional progress listener
+     * @return the number of relationships ingested
+     * @throws NoGraphException
+     */
+    public long ingestRelationships(Stream<Relationship> rels, IngestListener listener) throws NoGraphException;
+    
     /**
      * Save the relationships by assigning ids to new ones and updating existing ones.
      * 
@@ -173,6 +247,57 @@ public interface GraphManager
      */
     public void deleteRelationshipsByID(List<String> ids) throws NoGraphException;
     
+    /**
+     * Delete every relationship matching the query.
+     * 
+     * @param query
+     * @return the number of relationships deleted
+     * @throws NoGraphException
+     */
+    public long deleteRelationships(GraphQuery query) throws NoGraphException;
+    
+    /**
+     * Apply every save and delete in the batch as one write.  New ids are assigned from a single block, the
+     * documents are written in bulk and both indexes are committed together.
+     * 
+     * @param batch
+     * @return the write sequence number for the batch
+     * @throws NoGraphException
+     */
+    public long saveBatch(GraphBatch batch) throws NoGraphException;
+    
+    /**
+     * Make every write so far durable.
+     * 
+     * @return the write sequence number that is now durable
+     * @throws NoGraphException
+     */
+    public long flush() throws NoGraphException;
+    
+    /**
+     * Block until the write with the given sequence number is durable.  Depending on the commit mode this may commit immediately.
+     * 
+     * @param seq
+     * @throws NoGraphException
+     */
+    public void awaitDurable(long seq) throws NoGraphException;
+    
+    /**
+     * The sequence number of the most recent write.  Pass this to awaitDurable after a save to wait for it to be durable.
+     * 
+     * @return
+     */
+    public long getWriteSequence();
+    
+    /**
+     * Block until the write with the given sequence number is visible to reads.  Only blocks when the graph
+     * refreshes its searchers in the background.
+     * 
+     * @param seq
+     * @throws NoGraphException
+     */
+    public void awaitVisible(long seq) throws NoGraphException;
+    
     /**
      * Find the nodes with the given value for the specified field name or key.
      * 
@@ -206,6 +331,19 @@ public interface GraphManager
      */
     public List<Node> findNodes(String type, String key, Object val, int maxResults) throws NoGraphException;
     
+    /**
+     * Find the nodes with the given value for the specified field name or key, loading only some properties.
+     * 
+     * @param type
+     * @param key
+     * @param val
+     * @param maxResults
+     * @param fields the properties to load besides the id and type, null for all of them
+     * @return
+     * @throws NoGraphException
+     */
+    public List<Node> findNodes(String type, String key, Object val, int maxResults, List<String> fields) throws NoGraphException;
+    
     /**
      * Find the relationships with the given value for the specified field name or key.  The linked nodes can optionally be fetched.
      * 
@@ -242,6 +380,21 @@ public interface GraphManager
      */
     public List<Relationship> findRelationships(String type, String key, Object val, boolean fetchNodes, int maxResults) throws NoGraphException;
     
+    /**
+     * Find the relationships with the given value for the specified field name or key, loading only some
+     * properties.  Fetched nodes are loaded in full.
+     * 
+     * @param type
+     * @param key
+     * @param val
+     * @param fetchNodes
+     * @param maxResults
+     * @param fields the properties to load besides the id, type and node ids, null for all of them
+     * @return
+     * @throws NoGraphException
+     */
+    public List<Relationship> findRelationships(String type, String key, Object val, boolean fetchNodes, int maxResults, List<String> fields) throws NoGraphException;
+    
     /**
      * Find the nodes that match the graph query.
      * 
@@ -260,6 +413,62 @@ public interface GraphManager
      */
     public List<Relationship> findRelationships(GraphQuery query) throws NoGraphException;
     
+    /**
+     * One page of the nodes that match the graph query, in id order.  Set the page size and the cursor from the
+     * previous page on the query.  Indexes written before the id had a doc values copy need migrateSchema first.
+     * 
+     * @param query
+     * @return
+     * @throws NoGraphException
+     */
+    public ResultPage<Node> findNodesPage(GraphQuery query) throws NoGraphException;
+    
+    /**
+     * One page of the relationships that match the graph query, in id order.
+     * 
+     * @param query
+     * @return
+     * @throws NoGraphException
+     */
+    public ResultPage<Relationship> findRelationshipsPage(GraphQuery query) throws NoGraphException;
+    
+    /**
+     * Iterate the nodes that match the graph query, reading them from the index a batch at a time.  maxResults is
+     * ignored.  The iterator must be closed.
+     * 
+     * @param query
+     * @return
+     * @throws NoGraphException
+     */
+    public ResultIterator<Node> iterateNodes(GraphQuery query) throws NoGraphException;
+    
+    /**
+     * Iterate the relationships that match the graph query, reading them from the index a batch at a time.
+     * 
+     * @param query
+     * @return
+     * @throws NoGraphException
+     */
+    public ResultIterator<Relationship> iterateRelationships(GraphQuery query) throws NoGraphException;
+    
+    /**
+     * The nodes that match the graph query as a lazy stream.  Close the stream when done.
+     * 
+     * @param query
+     * @return
+     * @throws NoGraphException
+     */
+    public Stream<Node> streamNodes(GraphQuery query) throws NoGraphException;
+    
+    /**
+     * The relationships that match the graph query as a lazy stream.  Close the stream when done.
+     * 
+     * @param query
+     * @return
+     * @throws NoGraphException
+     */
+    public Stream<Relationship> streamRelationships(GraphQuery query) throws NoGraphException;
+    
     /**
      * Find the relationships and fetch the linked nodes that connect to this node.
      * 
@@ -313,7 +522,7 @@ public interface GraphManager
     public List<String> getRelationshipTypes() throws NoGraphException;
     
     /** 
-     * Get the counts of each node type.
+     * Get the counts of each node type, in one pass over the index.
      * 
      * @return
      * @throws NoGraphException
@@ -328,6 +537,48 @@ public interface GraphManager
      */
     public Map<String,Long> getRelationshipCountsByType() throws NoGraphException;
     
+    /**
+     * Count the relationships with the node as node1.
+     * 
+     * @param id
+     * @return
+     * @throws NoGraphException
+     */
+    public long getOutDegree(String id) throws NoGraphException;
+    
+    /**
+     * Count the relationships with the node as node2.
+     * 
+     * @param id
+     * @return
+     * @throws NoGraphException
+     */
+    public long getInDegree(String id) throws NoGraphException;
+    
+    /**
+     * Count the nodes matching the query by each value of the key, in one pass.  The id and type keys are read from
+     * doc values.  Other properties are read from the stored values of every matching node, so narrow the query
+     * when faceting them on a large graph.  A null query counts every node.
+     * 
+     * @param query
+     * @param key
+     * @return
+     * @throws NoGraphException
+     */
+    public Map<String,Long> getNodeFacetCounts(GraphQuery query, String key) throws NoGraphException;
+    
+    /**
+     * Count the relationships matching the query by each value of the key, in one pass.  The id, type and node keys
+     * are read from doc values.  Other properties are read from the stored values of every matching relationship.
+     * A null query counts every relationship.
+     * 
+     * @param query
+     * @param key
+     * @return
+     * @throws NoGraphException
+     */
+    public Map<String,Long> getRelationshipFacetCounts(GraphQuery query, String key) throws NoGraphException;
+    
     /**
      * Returns the list of known property names for the specified node type.
      * 
@@ -31,6 +31,9 @@ public class GraphQuery
 	protected int maxResults;
 	protected Criterion crit;
 	protected boolean fetchNodesForRels;
+	protected List<String> fields;
+	protected int pageSize;
+	protected String cursor;
 	
 	public GraphQuery()
 	{
@@ -67,6 +70,59 @@ public class GraphQuery
 		fetchNodesForRels = flag;
 	}
 	
+	public List<String> getFields()
+	{
+		return fields;
+	}
+	
+	/**
+	 * Only load these properties.  The id and type, and node ids and types for relationships, are always loaded.
+	 * An empty list loads just those from doc values without reading the stored fields, null loads everything.
+	 * 
+	 * @param list
+	 */
+	public void setFields(List<String> list)
+	{
+		fields = list;
+	}
+	
+	public void addField(String key)
+	{
+		if(fields == null) fields = new ArrayList<String>();
+		fields.add(key);
+	}
+	
+	public int getPageSize()
+	{
+		return pageSize;
+	}
+	
+	/**
+	 * Results per page for the paged finds, which ignore maxResults.
+	 * 
+	 * @param size
+	 */
+	public void setPageSize(int size)
+	{
+		pageSize = size;
+	}
+	
+	public String getCursor()
+	{
+		return cursor;
+	}
+	
+	/**
+	 * Where the next page starts, from the last ResultPage.  Null for the first page.  A cursor is only meaningful
+	 * for the query that produced it.
+	 * 
+	 * @param str
+	 */
+	public void setCursor(String str)
+	{
+		cursor = str;
+	}
+	
 	public static Criterion createEqualsCriterion(String key, Object val)
 	{
 		return new SimpleCriterion(key,val,SimpleCriterion.OP_EQUAL);
@@ -0,0 +1,32 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph;
+
+import java.util.Iterator;
+
+/**
+ * Query results read as they are pulled.  It holds index resources until it is closed or runs out, so use it in a
+ * try with resources block.  Errors reading the index come out of hasNext and next as IllegalStateExceptions.
+ * 
+ * @author aholinch
+ *
+ */
+public interface ResultIterator<T> extends Iterator<T>, AutoCloseable
+{
+	public void close();
+}
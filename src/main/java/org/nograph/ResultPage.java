@@ -0,0 +1,77 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph;
+
+import java.util.List;
+
+/**
+ * One page of query results.  Pass the cursor back on the GraphQuery to get the next page.
+ * 
+ * @author aholinch
+ *
+ */
+public class ResultPage<T> 
+{
+	protected List<T> results;
+	protected String cursor;
+	
+	public ResultPage()
+	{
+		
+	}
+	
+	public ResultPage(List<T> results, String cursor)
+	{
+		this.results = results;
+		this.cursor = cursor;
+	}
+	
+	public List<T> getResults()
+	{
+		return results;
+	}
+	
+	public void setResults(List<T> list)
+	{
+		results = list;
+	}
+	
+	/**
+	 * @return the cursor for the next page, null if this is the last one
+	 */
+	public String getCursor()
+	{
+		return cursor;
+	}
+	
+	public void setCursor(String str)
+	{
+		cursor = str;
+	}
+	
+	public boolean hasMore()
+	{
+		return cursor != null;
+	}
+	
+	public int size()
+	{
+		if(results == null) return 0;
+		return results.size();
+	}
+}
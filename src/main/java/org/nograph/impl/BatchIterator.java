@@ -0,0 +1,94 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.lucene.document.Document;
+import org.nograph.NoGraphException;
+import org.nograph.ResultIterator;
+import org.nograph.lucene.LuceneIndex;
+
+/**
+ * Pulls a batch of documents when the last one runs out and decodes only that batch, so at most one batch of
+ * documents and objects is held at a time.  Closes the batches once they are used up.
+ * 
+ * @author aholinch
+ *
+ */
+public abstract class BatchIterator<T> implements ResultIterator<T>
+{
+	protected LuceneIndex.DocumentBatches batches = null;
+	protected List<T> batch = null;
+	protected int pos = 0;
+	
+	public BatchIterator(LuceneIndex.DocumentBatches batches)
+	{
+		this.batches = batches;
+	}
+	
+	protected abstract List<T> decode(List<Document> docs) throws NoGraphException;
+	
+	public boolean hasNext()
+	{
+		while(batch == null || pos >= batch.size())
+		{
+			if(batches == null) return false;
+			
+			batch = null;
+			pos = 0;
+			try
+			{
+				List<Document> docs = batches.next();
+				if(docs == null)
+				{
+					close();
+					return false;
+				}
+				batch = decode(docs);
+			}
+			catch(NoGraphException ex)
+			{
+				close();
+				throw new IllegalStateException("Error reading results", ex);
+			}
+		}
+		return true;
+	}
+	
+	public T next()
+	{
+		if(!hasNext()) throw new NoSuchElementException();
+		
+		// let go of each one as it is handed out
+		T val = batch.get(pos);
+		batch.set(pos, null);
+		pos++;
+		return val;
+	}
+	
+	public void close()
+	{
+		if(batches != null)
+		{
+			batches.close();
+			batches = null;
+		}
+	}
+}
@@ -0,0 +1,369 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.nograph.NoGraphException;
+
+/**
+ * Decides when the indexes of a LuceneGraphManager are committed.  Every mutation is given a write sequence number
+ * and the scheduler tracks the highest sequence number known to be durable.  Commits are coalesced so that
+ * concurrent writers share a single commit instead of paying for one each.
+ *
+ * @author aholinch
+ *
+ */
+public class CommitScheduler implements Runnable
+{
+	private static final Logger logger = Logger.getLogger(CommitScheduler.class.getName());
+
+	/**
+	 * Commit after every operation.
+	 */
+	public static final int MODE_OP = 1;
+
+	/**
+	 * Commit in the background every N ms or N operations, whichever comes first.
+	 */
+	public static final int MODE_GROUP = 2;
+
+	/**
+	 * Only commit when flush or awaitDurable is called.
+	 */
+	public static final int MODE_MANUAL = 3;
+
+	protected LuceneGraphManager gm = null;
+	protected int mode = MODE_OP;
+	protected long intervalMS = 1000;
+	protected int maxOps = 1000;
+
+	protected final AtomicLong writeSeq = new AtomicLong();
+	protected volatile long durableSeq = 0;
+
+	// bumped by every commit that fails so waiters know to give up
+	protected volatile long failures = 0;
+
+	protected final Object commitLock = new Object();
+	protected final Object waitLock = new Object();
+
+	protected Thread thread = null;
+	protected volatile boolean running = false;
+	protected int waiters = 0;
+
+	public CommitScheduler(LuceneGraphManager manager, int commitMode, long interval, int ops)
+	{
+		gm = manager;
+		mode = commitMode;
+		if(interval > 0) intervalMS = interval;
+		if(ops > 0) maxOps = ops;
+	}
+
+	/**
+	 * Parse the mode name from the config.
+	 *
+	 * @param str
+	 * @return
+	 */
+	public static int parseMode(String str)
+	{
+		int m = MODE_OP;
+		if(str != null)
+		{
+			str = str.trim().toLowerCase();
+			if(str.equals("group"))
+			{
+				m = MODE_GROUP;
+			}
+			else if(str.equals("manual"))
+			{
+				m = MODE_MANUAL;
+			}
+		}
+		return m;
+	}
+
+	public int getMode()
+	{
+		return mode;
+	}
+
+	/**
+	 * Continue numbering from a sequence number that was recorded in the last commit.  Call before start.
+	 * 
+	 * @param seq
+	 */
+	public void resume(long seq)
+	{
+		if(seq > writeSeq.get())
+		{
+			writeSeq.set(seq);
+			durableSeq = seq;
+		}
+	}
+
+	/**
+	 * Start the background committer, only needed for group mode.
+	 */
+	public void start()
+	{
+		if(mode != MODE_OP)
+		{
+			// don't lose buffered writes on a normal exit
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run()
+				{
+					stop();
+				}
+			}));
+		}
+
+		if(mode != MODE_GROUP || running) return;
+
+		running = true;
+		thread = new Thread(this,"nograph-committer-"+gm.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the background committer and make everything durable.
+	 */
+	public void stop()
+	{
+		running = false;
+		synchronized(waitLock)
+		{
+			waitLock.notifyAll();
+		}
+
+		if(thread != null)
+		{
+			try{thread.join(intervalMS*2);}catch(Exception ex){};
+			thread = null;
+		}
+
+		try
+		{
+			commitUpTo(writeSeq.get());
+		}
+		catch(NoGraphException ex)
+		{
+			logger.log(Level.SEVERE, "Error committing on stop", ex);
+		}
+	}
+
+	/**
+	 * Called after the index operations for a mutation have been applied.
+	 *
+	 * @return the write sequence number for the mutation
+	 * @throws NoGraphException if this mode commits now and the commit failed
+	 */
+	public long written() throws NoGraphException
+	{
+		long seq = writeSeq.incrementAndGet();
+
+		if(mode == MODE_OP)
+		{
+			commitUpTo(seq);
+		}
+		else if(mode == MODE_GROUP)
+		{
+			if(seq - durableSeq >= maxOps)
+			{
+				synchronized(waitLock)
+				{
+					waitLock.notifyAll();
+				}
+			}
+		}
+
+		return seq;
+	}
+
+	/**
+	 * The last sequence number handed out.
+	 *
+	 * @return
+	 */
+	public long getWriteSequence()
+	{
+		return writeSeq.get();
+	}
+
+	/**
+	 * The highest sequence number known to be committed.
+	 *
+	 * @return
+	 */
+	public long getDurableSequence()
+	{
+		return durableSeq;
+	}
+
+	/**
+	 * The number of commits that have failed.
+	 *
+	 * @return
+	 */
+	public long getFailures()
+	{
+		return failures;
+	}
+
+	/**
+	 * Commit everything written so far.
+	 *
+	 * @return the sequence number that is now durable
+	 * @throws NoGraphException if the commit failed
+	 */
+	public long flush() throws NoGraphException
+	{
+		long seq = writeSeq.get();
+		commitUpTo(seq);
+		return seq;
+	}
+
+	/**
+	 * Block until the specified sequence number has been committed.
+	 *
+	 * @param seq
+	 * @throws NoGraphException
+	 */
+	public void awaitDurable(long seq) throws NoGraphException
+	{
+		if(durableSeq >= seq) return;
+
+		if(mode != MODE_GROUP || !running)
+		{
+			// nobody else is going to do it
+			commitUpTo(seq);
+			return;
+		}
+
+		long failed = failures;
+		try
+		{
+			synchronized(waitLock)
+			{
+				waiters++;
+				try
+				{
+					waitLock.notifyAll();
+					while(durableSeq < seq && running)
+					{
+						if(failures != failed)
+						{
+							throw new NoGraphException("Commit failed, sequence " + seq + " is not durable");
+						}
+						waitLock.wait(intervalMS);
+					}
+				}
+				finally
+				{
+					waiters--;
+				}
+			}
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new NoGraphException("Interrupted waiting for commit", ex);
+		}
+
+		if(durableSeq < seq)
+		{
+			// stopped while we waited
+			commitUpTo(seq);
+		}
+	}
+
+	/**
+	 * Commit unless another thread already committed past seq while we waited for the lock.
+	 *
+	 * @param seq
+	 * @throws NoGraphException if the commit failed, the durable sequence number doesn't move
+	 */
+	protected void commitUpTo(long seq) throws NoGraphException
+	{
+		boolean ok = true;
+		synchronized(commitLock)
+		{
+			if(durableSeq >= seq) return;
+
+			// everything with a sequence number up to target has already been applied to the writers
+			long target = writeSeq.get();
+			ok = gm.commitIndexes(target);
+			if(ok)
+			{
+				durableSeq = target;
+			}
+			else
+			{
+				failures++;
+			}
+		}
+
+		synchronized(waitLock)
+		{
+			waitLock.notifyAll();
+		}
+
+		if(!ok)
+		{
+			throw new NoGraphException("Commit failed, sequence " + seq + " is not durable");
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		long last = System.currentTimeMillis();
+		while(running)
+		{
+			try
+			{
+				synchronized(waitLock)
+				{
+					long wait = intervalMS - (System.currentTimeMillis()-last);
+					// someone blocked in awaitDurable means commit now rather than at the end of the interval
+					if(wait > 0 && waiters == 0 && (writeSeq.get() - durableSeq) < maxOps)
+					{
+						waitLock.wait(wait);
+					}
+				}
+
+				if(writeSeq.get() > durableSeq)
+				{
+					commitUpTo(writeSeq.get());
+				}
+				last = System.currentTimeMillis();
+			}
+			catch(InterruptedException ex)
+			{
+				running = false;
+			}
+			catch(Exception ex)
+			{
+				logger.log(Level.SEVERE, "Error in background commit", ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,231 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nograph.util.json.JSONObject;
+import org.nograph.util.json.JSONString;
+
+/**
+ * Node and relationship counts by type plus the out and in degree of every node, kept up to date by the
+ * write paths so they can be read without a query.  The out degree counts relationships with the node as node1,
+ * the in degree as node2.
+ * 
+ * Updates are lock free so the ingest workers can count in parallel.  Counts that drop to zero stay in the maps,
+ * the getters leave them out.
+ * 
+ * @author aholinch
+ *
+ */
+public class GraphCounters implements JSONString
+{
+	protected Map<String,AtomicLong> nodeTypes = new ConcurrentHashMap<String,AtomicLong>();
+	protected Map<String,AtomicLong> relTypes = new ConcurrentHashMap<String,AtomicLong>();
+	protected Map<String,AtomicLong> outDegree = new ConcurrentHashMap<String,AtomicLong>();
+	protected Map<String,AtomicLong> inDegree = new ConcurrentHashMap<String,AtomicLong>();
+	
+	// the commit these counts match
+	protected long seq = 0;
+	protected volatile boolean dirty = false;
+	
+	public GraphCounters()
+	{
+		
+	}
+	
+	public void addNode(String type, long num)
+	{
+		add(nodeTypes,type,num);
+		dirty = true;
+	}
+	
+	public void addRelationship(String type, String node1, String node2, long num)
+	{
+		add(relTypes,type,num);
+		add(outDegree,node1,num);
+		add(inDegree,node2,num);
+		dirty = true;
+	}
+	
+	/**
+	 * Drop the degrees of a deleted node, its relationships have to be removed separately.
+	 * 
+	 * @param id
+	 */
+	public void removeNode(String id)
+	{
+		if(id == null) return;
+		outDegree.remove(id);
+		inDegree.remove(id);
+		dirty = true;
+	}
+	
+	protected void add(Map<String,AtomicLong> m, String key, long num)
+	{
+		if(key == null) return;
+		
+		AtomicLong cnt = m.get(key);
+		if(cnt == null)
+		{
+			cnt = new AtomicLong();
+			AtomicLong prev = m.putIfAbsent(key, cnt);
+			if(prev != null) cnt = prev;
+		}
+		cnt.addAndGet(num);
+	}
+	
+	protected long get(Map<String,AtomicLong> m, String key)
+	{
+		if(key == null) return 0;
+		
+		AtomicLong cnt = m.get(key);
+		if(cnt == null) return 0;
+		return cnt.get();
+	}
+	
+	public long getNodeCount(String type)
+	{
+		return get(nodeTypes,type);
+	}
+	
+	public long getRelationshipCount(String type)
+	{
+		return get(relTypes,type);
+	}
+	
+	public long getOutDegree(String id)
+	{
+		return get(outDegree,id);
+	}
+	
+	public long getInDegree(String id)
+	{
+		return get(inDegree,id);
+	}
+	
+	public Map<String,Long> getNodeCounts()
+	{
+		return copy(nodeTypes);
+	}
+	
+	public Map<String,Long> getRelationshipCounts()
+	{
+		return copy(relTypes);
+	}
+	
+	protected Map<String,Long> copy(Map<String,AtomicLong> m)
+	{
+		Map<String,Long> out = new HashMap<String,Long>();
+		Iterator<Map.Entry<String,AtomicLong>> it = m.entrySet().iterator();
+		Map.Entry<String,AtomicLong> me = null;
+		long cnt = 0;
+		while(it.hasNext())
+		{
+			me = it.next();
+			cnt = me.getValue().get();
+			if(cnt > 0) out.put(me.getKey(), cnt);
+		}
+		return out;
+	}
+	
+	public void clear()
+	{
+		nodeTypes.clear();
+		relTypes.clear();
+		outDegree.clear();
+		inDegree.clear();
+		dirty = true;
+	}
+	
+	public long getSequence()
+	{
+		return seq;
+	}
+	
+	public void setSequence(long num)
+	{
+		seq = num;
+	}
+	
+	public boolean isDirty()
+	{
+		return dirty;
+	}
+	
+	public void clearDirty()
+	{
+		dirty = false;
+	}
+	
+	public void markDirty()
+	{
+		dirty = true;
+	}
+	
+	@Override
+	public String toJSONString()
+	{
+		Map<String,Object> out = new HashMap<String,Object>();
+		out.put("seq", seq);
+		out.put("nodes", copy(nodeTypes));
+		out.put("rels", copy(relTypes));
+		out.put("out", copy(outDegree));
+		out.put("in", copy(inDegree));
+		
+		JSONObject obj = new JSONObject(out);
+		return obj.toString();
+	}
+	
+	public void fromJSONString(String json)
+	{
+		clear();
+		
+		JSONObject obj = new JSONObject(json);
+		seq = obj.optLong("seq", 0);
+		load(obj,"nodes",nodeTypes);
+		load(obj,"rels",relTypes);
+		load(obj,"out",outDegree);
+		load(obj,"in",inDegree);
+		
+		dirty = false;
+	}
+	
+	protected void load(JSONObject obj, String key, Map<String,AtomicLong> m)
+	{
+		if(!obj.has(key)) return;
+		
+		JSONObject o = obj.getJSONObject(key);
+		Iterator<String> it = o.keys();
+		String k = null;
+		while(it.hasNext())
+		{
+			k = it.next();
+			m.put(k, new AtomicLong(o.getLong(k)));
+		}
+	}
+	
+	public String toString()
+	{
+		return "nodeTypes=" + nodeTypes.size() + " relTypes=" + relTypes.size() + " nodesWithDegree=" + Math.max(outDegree.size(), inDegree.size());
+	}
+}
@@ -0,0 +1,382 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.nograph.GraphBatch;
+import org.nograph.NoGraphException;
+import org.nograph.Node;
+import org.nograph.Relationship;
+import org.nograph.lucene.LuceneIndex;
+import org.nograph.util.DateUtil;
+import org.nograph.util.FileUtil;
+import org.nograph.util.json.JSONObject;
+
+/**
+ * Dumps a whole graph to JSON Lines and restores it.  The first line is a header, then there is one
+ * {"node":..} line per node followed by one {"rel":..} line per relationship, in the TypedJSON format so property
+ * values come back as the same class.  Files ending in .gz are compressed.
+ *
+ * Export reads the stored fields one document at a time.  Restore parses chunks of lines on a pool of threads and
+ * writes them in file order, keeping the ids and moving the id allocator past them.  Into an empty graph the
+ * documents are added, otherwise they replace any with the same id.
+ *
+ * @author aholinch
+ *
+ */
+public class GraphDump
+{
+	private static final Logger logger = Logger.getLogger(GraphDump.class.getName());
+
+	public static final String FORMAT = "nograph-jsonl";
+	public static final int VERSION = 1;
+
+	public static final String NODE_KEY = "node";
+	public static final String REL_KEY = "rel";
+
+	protected LuceneGraphManager gm = null;
+	protected int threads = 0;
+	protected int chunkSize = 10000;
+
+	public GraphDump(LuceneGraphManager gm)
+	{
+		this.gm = gm;
+		threads = Math.max(1, Runtime.getRuntime().availableProcessors()-1);
+	}
+
+	public void setThreads(int num)
+	{
+		threads = Math.max(1, num);
+	}
+
+	public void setChunkSize(int size)
+	{
+		chunkSize = Math.max(1, size);
+	}
+
+	/**
+	 * Write the graph to a file, gzipped if the name ends in .gz.
+	 *
+	 * @param file
+	 * @return the number of nodes and relationships written
+	 * @throws NoGraphException
+	 */
+	public long exportGraph(String file) throws NoGraphException
+	{
+		OutputStream os = null;
+		try
+		{
+			os = new FileOutputStream(file);
+			if(file.toLowerCase().endsWith(".gz"))
+			{
+				os = new GZIPOutputStream(os, 1<<16);
+			}
+			long count = exportGraph(os);
+			os.close();
+			os = null;
+			return count;
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error exporting graph to " + file, ex);
+			throw new NoGraphException("Error exporting graph to " + file, ex);
+		}
+		finally
+		{
+			FileUtil.close(os);
+		}
+	}
+
+	/**
+	 * Write the graph to the stream, which is flushed but not closed.
+	 *
+	 * @param os
+	 * @return the number of nodes and relationships written
+	 * @throws NoGraphException
+	 */
+	public long exportGraph(OutputStream os) throws NoGraphException
+	{
+		long start = System.currentTimeMillis();
+		long count = 0;
+		try
+		{
+			// include everything already acknowledged
+			gm.awaitVisible(gm.getWriteSequence());
+
+			final Writer w = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 1<<16);
+
+			JSONObject header = new JSONObject();
+			header.put("format", FORMAT);
+			header.put("version", VERSION);
+			header.put("created", DateUtil.getISODate(new java.util.Date()));
+			writeLine(w, header);
+
+			final GenericNode n = new GenericNode();
+			count += gm.nodeIndex.visitDocuments(new MatchAllDocsQuery(), new LuceneIndex.DocumentVisitor() {
+				public void visit(Document doc) throws IOException
+				{
+					gm.docToNode(doc, n);
+					JSONObject obj = new JSONObject();
+					obj.put(NODE_KEY, TypedJSON.encodeHolder(n));
+					writeLine(w, obj);
+				}
+			});
+
+			final GenericRelationship r = new GenericRelationship();
+			count += gm.relIndex.visitDocuments(new MatchAllDocsQuery(), new LuceneIndex.DocumentVisitor() {
+				public void visit(Document doc) throws IOException
+				{
+					gm.docToRel(doc, r);
+					JSONObject obj = new JSONObject();
+					obj.put(REL_KEY, TypedJSON.encodeRelationship(r));
+					writeLine(w, obj);
+				}
+			});
+
+			w.flush();
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error exporting graph", ex);
+			throw new NoGraphException("Error exporting graph", ex);
+		}
+
+		logger.info("Exported " + count + " objects in " + (System.currentTimeMillis()-start) + " ms");
+		return count;
+	}
+
+	protected static void writeLine(Writer w, JSONObject obj) throws IOException
+	{
+		w.write(obj.toString());
+		w.write('\n');
+	}
+
+	/**
+	 * Restore a dump file, gzipped if the name ends in .gz.
+	 *
+	 * @param file
+	 * @return the number of nodes and relationships restored
+	 * @throws NoGraphException
+	 */
+	public long importGraph(String file) throws NoGraphException
+	{
+		InputStream is = FileUtil.getInputStream(file);
+		if(is == null)
+		{
+			throw new NoGraphException("Unable to open " + file);
+		}
+
+		try
+		{
+			if(file.toLowerCase().endsWith(".gz"))
+			{
+				is = new GZIPInputStream(is, 1<<16);
+			}
+			return importGraph(is);
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error importing graph from " + file, ex);
+			throw new NoGraphException("Error importing graph from " + file, ex);
+		}
+		finally
+		{
+			FileUtil.close(is);
+		}
+	}
+
+	/**
+	 * Restore a dump from the stream and flush the graph.  The stream is not closed.
+	 *
+	 * @param is
+	 * @return the number of nodes and relationships restored
+	 * @throws NoGraphException
+	 */
+	public long importGraph(InputStream is) throws NoGraphException
+	{
+		long start = System.currentTimeMillis();
+		long count = 0;
+		ExecutorService pool = null;
+		try
+		{
+			BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 1<<16);
+
+			String line = br.readLine();
+			if(line == null) return 0;
+			checkHeader(line);
+
+			boolean upsert = gm.nodeIndex.maxDoc() > 0 || gm.relIndex.maxDoc() > 0;
+
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "nograph-restore");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+			// bounds the parsed chunks waiting to be written
+			int maxPending = threads*2;
+			ArrayDeque<Future<GraphBatch>> pending = new ArrayDeque<Future<GraphBatch>>(maxPending);
+
+			List<String> lines = new ArrayList<String>(chunkSize);
+			boolean eof = false;
+			GraphBatch batch = null;
+			while(!eof)
+			{
+				line = br.readLine();
+				if(line == null)
+				{
+					eof = true;
+				}
+				else if(line.length() > 0)
+				{
+					lines.add(line);
+				}
+
+				if(lines.size() == chunkSize || (eof && lines.size() > 0))
+				{
+					final List<String> work = lines;
+					lines = new ArrayList<String>(chunkSize);
+					pending.add(pool.submit(new Callable<GraphBatch>() {
+						public GraphBatch call() throws NoGraphException
+						{
+							return parseLines(work);
+						}
+					}));
+				}
+
+				while(pending.size() > 0 && (pending.size() >= maxPending || eof))
+				{
+					batch = pending.poll().get();
+					gm.restoreBatch(batch, upsert);
+					count += batch.size();
+				}
+			}
+
+			gm.flush();
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(ExecutionException ex)
+		{
+			logger.log(Level.WARNING, "Error parsing graph dump", ex.getCause());
+			throw new NoGraphException("Error parsing graph dump", ex.getCause());
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error importing graph", ex);
+			throw new NoGraphException("Error importing graph", ex);
+		}
+		finally
+		{
+			if(pool != null) pool.shutdownNow();
+		}
+
+		logger.info("Imported " + count + " objects in " + (System.currentTimeMillis()-start) + " ms");
+		return count;
+	}
+
+	protected void checkHeader(String line) throws NoGraphException
+	{
+		JSONObject header = new JSONObject(line);
+		if(!FORMAT.equals(header.optString("format")))
+		{
+			throw new NoGraphException("Not a graph dump");
+		}
+		if(header.optInt("version") > VERSION)
+		{
+			throw new NoGraphException("Unsupported graph dump version " + header.optInt("version"));
+		}
+	}
+
+	protected static GraphBatch parseLines(List<String> lines) throws NoGraphException
+	{
+		GraphBatch batch = new GraphBatch();
+		int size = lines.size();
+		JSONObject obj = null;
+		JSONObject o = null;
+		for(int i=0; i<size; i++)
+		{
+			try
+			{
+				obj = new JSONObject(lines.get(i));
+			}
+			catch(Exception ex)
+			{
+				throw new NoGraphException("Bad line in graph dump: " + lines.get(i), ex);
+			}
+
+			o = obj.optJSONObject(NODE_KEY);
+			if(o != null)
+			{
+				Node n = TypedJSON.decodeNode(o);
+				batch.saveNode(n);
+				continue;
+			}
+
+			o = obj.optJSONObject(REL_KEY);
+			if(o != null)
+			{
+				Relationship r = TypedJSON.decodeRelationship(o);
+				batch.saveRelationship(r);
+			}
+		}
+		return batch;
+	}
+}
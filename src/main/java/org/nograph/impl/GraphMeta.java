@@ -41,13 +41,16 @@ public class GraphMeta implements JSONString
     protected Map<String,Map<String,String>> nodeProps = null;
     protected Map<String,Map<String,String>> relProps = null;
     
+    // true when a type or property was added or changed since the last snapshot
+    protected boolean dirty = false;
+    
     public GraphMeta()
     {
     	nodeProps = new HashMap<String,Map<String,String>>();
     	relProps = new HashMap<String,Map<String,String>>();
     }
     
-    public List<String> getPropertiesForNodeType(String type)
+    public synchronized List<String> getPropertiesForNodeType(String type)
     {
     	List<String> out = null;
     	
@@ -64,7 +67,7 @@ public class GraphMeta implements JSONString
     	return out;
     }
     
-    public List<String> getPropertiesForRelationshipType(String type)
+    public synchronized List<String> getPropertiesForRelationshipType(String type)
     {
     	List<String> out = null;
     	
@@ -81,7 +84,7 @@ public class GraphMeta implements JSONString
     	return out;
     }
     
-    public void updateNodeMeta(Node n)
+    public synchronized void updateNodeMeta(Node n)
     {
     	if(n != null)
     	{
@@ -91,7 +94,7 @@ public class GraphMeta implements JSONString
     	}
     }
     
-    public void updateRelationshipMeta(Relationship r)
+    public synchronized void updateRelationshipMeta(Relationship r)
     {
     	if(r != null)
     	{
@@ -108,6 +111,7 @@ public class GraphMeta implements JSONString
     	{
     		p = new HashMap<String,String>();
     		m.put(type, p);
+    		dirty = true;
     	}
     	
     	if(propMap != null)
@@ -124,12 +128,50 @@ public class GraphMeta implements JSONString
     			if(val != null)
     			{
     				valtype = getType(val);
-    				p.put(prop, valtype);
+    				if(!valtype.equals(p.put(prop, valtype)))
+    				{
+    					dirty = true;
+    				}
     			}
     		}
     	}
     }
     
+    /**
+     * Has anything changed since the last call to snapshotIfDirty or clearDirty.
+     * 
+     * @return
+     */
+    public synchronized boolean isDirty()
+    {
+    	return dirty;
+    }
+    
+    public synchronized void markDirty()
+    {
+    	dirty = true;
+    }
+    
+    public synchronized void clearDirty()
+    {
+    	dirty = false;
+    }
+    
+    /**
+     * Returns the JSON for the current state and clears the dirty flag, or null if nothing has changed.
+     * Changes made after the snapshot mark the meta dirty again.
+     * 
+     * @return
+     */
+    public synchronized String snapshotIfDirty()
+    {
+    	if(!dirty) return null;
+    	
+    	String json = toJSONString();
+    	dirty = false;
+    	return json;
+    }
+    
     @SuppressWarnings("rawtypes")
 	protected String getType(Object val)
     {
@@ -182,7 +224,7 @@ public class GraphMeta implements JSONString
     }
     
 	@Override
-	public String toJSONString()
+	public synchronized String toJSONString()
 	{
 		Map<String,Map<String,Map<String,String>>> out = new HashMap<String,Map<String,Map<String,String>>>();
 		out.put("nodes", nodeProps);
@@ -224,7 +266,7 @@ public class GraphMeta implements JSONString
 		return obj.toString();
 	}
 	
-	public void fromJSONString(String json)
+	public synchronized void fromJSONString(String json)
 	{
 		JSONObject obj = new JSONObject(json);
 		
@@ -243,7 +285,7 @@ public class GraphMeta implements JSONString
 				{
 					type = types.get(i);
 					map = o.getJSONObject(type);
-					updateMeta(nodeProps,type,map.toMap());
+					loadMeta(nodeProps,type,map);
 				}
 			}
 		} // end nodes
@@ -261,10 +303,41 @@ public class GraphMeta implements JSONString
 				{
 					type = types.get(i);
 					map = o.getJSONObject(type);
-					updateMeta(relProps,type,map.toMap());
+					loadMeta(relProps,type,map);
 				}
 			}
 		} // end rels
 		
+		// what was just read matches what is on disk
+		dirty = false;
 	} // end fromJSONString
+	
+	/**
+	 * The stored values are already type names so copy them instead of running them back through getType.
+	 * 
+	 * @param m
+	 * @param type
+	 * @param map
+	 */
+	protected void loadMeta(Map<String,Map<String,String>> m, String type, JSONObject map)
+	{
+		Map<String,String> p = m.get(type);
+		if(p == null)
+		{
+			p = new HashMap<String,String>();
+			m.put(type, p);
+		}
+		
+		if(map != null)
+		{
+			List<String> props = new ArrayList<String>(map.keySet());
+			int size = props.size();
+			String prop = null;
+			for(int i=0; i<size; i++)
+			{
+				prop = props.get(i);
+				p.put(prop, String.valueOf(map.get(prop)));
+			}
+		}
+	}
 }
@@ -0,0 +1,58 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+/**
+ * Hands out unique numeric ids for nodes and relationships.  Implementations must be thread safe and must never
+ * reuse an id, even after a crash.
+ * 
+ * @author aholinch
+ *
+ */
+public interface IDAllocator 
+{
+	/**
+	 * Get the next id.
+	 * 
+	 * @return
+	 */
+    public long nextID();
+    
+    /**
+     * Reserve a contiguous block of ids.
+     * 
+     * @param count
+     * @return the first id in the block
+     */
+    public long nextBlock(int count);
+    
+    /**
+     * The most recent id handed out.
+     * 
+     * @return
+     */
+    public long getCurrentID();
+    
+    /**
+     * Make sure ids handed out from now on are greater than id, for example after restoring objects that keep
+     * their ids.
+     * 
+     * @param id
+     */
+    public void advanceTo(long id);
+}
@@ -0,0 +1,480 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.nograph.NoGraphException;
+import org.nograph.Node;
+import org.nograph.PropertyHolder;
+import org.nograph.Relationship;
+
+/**
+ * Builds the indexes for an initial load without going through the live IndexWriters.  Chunks of nodes and
+ * relationships are spread over a set of worker threads, each writing its own temporary index with a large RAM
+ * buffer and no commits.  finish() merges the temporary indexes into the graph with addIndexes, moves the id
+ * store past every id used and commits, which also writes the graph meta sampled along the way.
+ *
+ * Nothing else should write to the graph while a build is running, and the writes skip the write-ahead log.
+ * Nodes without ids get them when they are added so relationships added later can refer to them.
+ *
+ * @author aholinch
+ *
+ */
+public class IndexBuilder
+{
+	private static final Logger logger = Logger.getLogger(IndexBuilder.class.getName());
+
+	public static final double DEFAULT_RAM_MB = 256.0;
+
+	protected LuceneGraphManager gm = null;
+	protected int threads = 0;
+	protected double ramBufferMB = DEFAULT_RAM_MB;
+	protected String tmpDir = null;
+
+	protected List<Worker> workers = null;
+	protected BlockingQueue<Task> queue = null;
+	protected volatile Exception failure = null;
+
+	protected AtomicLong maxID = new AtomicLong();
+	protected AtomicLong nodeCount = new AtomicLong();
+	protected AtomicLong relCount = new AtomicLong();
+
+	/**
+	 * A chunk of work, a task with neither list stops the worker.
+	 */
+	protected static class Task
+	{
+		protected List<Node> nodes = null;
+		protected List<Relationship> rels = null;
+	}
+
+	protected static final Task STOP = new Task();
+
+	public IndexBuilder(LuceneGraphManager gm)
+	{
+		this.gm = gm;
+		threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		tmpDir = gm.metaDir + "build/";
+	}
+
+	public void setThreads(int num)
+	{
+		threads = Math.max(1, num);
+	}
+
+	/**
+	 * RAM buffer of each temporary writer.
+	 *
+	 * @param mb
+	 */
+	public void setRAMBufferMB(double mb)
+	{
+		ramBufferMB = mb;
+	}
+
+	/**
+	 * Where the temporary indexes go, by default build/ in the meta dir.
+	 *
+	 * @param dir
+	 */
+	public void setTempDir(String dir)
+	{
+		if(dir != null && !dir.endsWith("/")) dir += "/";
+		tmpDir = dir;
+	}
+
+	/**
+	 * Create the temporary indexes and start the workers.
+	 *
+	 * @throws NoGraphException
+	 */
+	public void start() throws NoGraphException
+	{
+		if(gm.readOnlyIndex)
+		{
+			throw new NoGraphException("Graph is read only");
+		}
+
+		queue = new ArrayBlockingQueue<Task>(threads*2);
+		workers = new ArrayList<Worker>(threads);
+
+		try
+		{
+			Worker w = null;
+			for(int i=0; i<threads; i++)
+			{
+				w = new Worker(tmpDir + "part" + i + "/");
+				workers.add(w);
+			}
+		}
+		catch(Exception ex)
+		{
+			abort();
+			logger.log(Level.WARNING, "Error creating temporary indexes", ex);
+			throw new NoGraphException("Error creating temporary indexes", ex);
+		}
+
+		for(int i=0; i<threads; i++)
+		{
+			workers.get(i).start();
+		}
+	}
+
+	/**
+	 * Queue nodes for the build, blocking while the workers are busy.  Nodes without an id get one now.
+	 *
+	 * @param nodes
+	 * @throws NoGraphException
+	 */
+	public void addNodes(List<Node> nodes) throws NoGraphException
+	{
+		if(nodes == null || nodes.size() == 0) return;
+
+		Task t = new Task();
+		t.nodes = new ArrayList<Node>(nodes);
+		assignIDs(t.nodes);
+		put(t);
+	}
+
+	/**
+	 * Queue relationships for the build, their nodes must already have ids.
+	 *
+	 * @param rels
+	 * @throws NoGraphException
+	 */
+	public void addRelationships(List<Relationship> rels) throws NoGraphException
+	{
+		if(rels == null || rels.size() == 0) return;
+
+		Task t = new Task();
+		t.rels = new ArrayList<Relationship>(rels);
+		assignIDs(t.rels);
+		put(t);
+	}
+
+	protected void assignIDs(List<? extends PropertyHolder> list)
+	{
+		List<PropertyHolder> need = new ArrayList<PropertyHolder>();
+		int size = list.size();
+		PropertyHolder ph = null;
+		for(int i=0; i<size; i++)
+		{
+			ph = list.get(i);
+			if(ph.getID() == null) need.add(ph);
+		}
+
+		if(need.size() < size)
+		{
+			long max = gm.getMaxLongID(list);
+			long cur = 0;
+			while(true)
+			{
+				cur = maxID.get();
+				if(cur >= max || maxID.compareAndSet(cur, max)) break;
+			}
+		}
+
+		if(need.size() > 0) gm.assignIDs(need);
+	}
+
+	protected void put(Task t) throws NoGraphException
+	{
+		checkFailure();
+		try
+		{
+			queue.put(t);
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new NoGraphException("Interrupted while adding to build", ex);
+		}
+	}
+
+	protected void checkFailure() throws NoGraphException
+	{
+		if(failure != null)
+		{
+			throw new NoGraphException("Index build failed", failure);
+		}
+	}
+
+	/**
+	 * Wait for the workers, merge their indexes into the graph and commit.
+	 *
+	 * @return the number of nodes and relationships written
+	 * @throws NoGraphException
+	 */
+	public long finish() throws NoGraphException
+	{
+		long start = System.currentTimeMillis();
+		try
+		{
+			stopWorkers();
+			checkFailure();
+
+			int size = workers.size();
+			Directory nodeDirs[] = new Directory[size];
+			Directory relDirs[] = new Directory[size];
+			Worker w = null;
+			for(int i=0; i<size; i++)
+			{
+				w = workers.get(i);
+				w.closeWriters();
+				nodeDirs[i] = w.nodeDir;
+				relDirs[i] = w.relDir;
+			}
+
+			gm.nodeIndex.getWriter().addIndexes(nodeDirs);
+			gm.relIndex.getWriter().addIndexes(relDirs);
+			gm.clearCache();
+			
+			// the build doesn't count what it writes
+			gm.invalidateCounters();
+
+			if(maxID.get() > 0) gm.idAllocator.advanceTo(maxID.get());
+
+			gm.graphMeta.markDirty();
+			gm.commitScheduler.written();
+			gm.flush();
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error merging indexes", ex);
+			throw new NoGraphException("Error merging indexes", ex);
+		}
+		finally
+		{
+			cleanup();
+		}
+
+		long count = nodeCount.get() + relCount.get();
+		logger.info("Merged " + nodeCount.get() + " nodes and " + relCount.get() + " relationships in " + (System.currentTimeMillis()-start) + " ms");
+		return count;
+	}
+
+	/**
+	 * Stop the workers and throw away the temporary indexes.
+	 */
+	public void abort()
+	{
+		try
+		{
+			stopWorkers();
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error stopping workers", ex);
+		}
+		cleanup();
+	}
+
+	protected void stopWorkers() throws InterruptedException
+	{
+		if(workers == null) return;
+
+		int size = workers.size();
+		for(int i=0; i<size; i++)
+		{
+			if(workers.get(i).isAlive()) queue.put(STOP);
+		}
+		for(int i=0; i<size; i++)
+		{
+			workers.get(i).join();
+		}
+	}
+
+	protected void cleanup()
+	{
+		if(workers == null) return;
+
+		int size = workers.size();
+		for(int i=0; i<size; i++)
+		{
+			workers.get(i).closeWriters();
+			workers.get(i).delete();
+		}
+		workers = null;
+		new File(tmpDir).delete();
+	}
+
+	/**
+	 * Writes its share of the chunks to its own node and relationship indexes.
+	 */
+	protected class Worker extends Thread
+	{
+		protected String path = null;
+		protected Directory nodeDir = null;
+		protected Directory relDir = null;
+		protected IndexWriter nodeWriter = null;
+		protected IndexWriter relWriter = null;
+
+		protected Worker(String dir) throws Exception
+		{
+			super("nograph-build");
+			setDaemon(true);
+
+			path = dir;
+			nodeDir = FSDirectory.open(Paths.get(dir + "nodes"));
+			relDir = FSDirectory.open(Paths.get(dir + "rels"));
+			nodeWriter = new IndexWriter(nodeDir, getConfig());
+			relWriter = new IndexWriter(relDir, getConfig());
+		}
+
+		protected IndexWriterConfig getConfig()
+		{
+			// same codec as the graph since addIndexes copies the segments as they are
+			IndexWriterConfig iwc = gm.indexSettings.createWriterConfig(gm.createDefaultAnalyzer());
+			iwc.setOpenMode(OpenMode.CREATE);
+			iwc.setRAMBufferSizeMB(ramBufferMB);
+			iwc.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+			iwc.setUseCompoundFile(false);
+			iwc.setCommitOnClose(true);
+			return iwc;
+		}
+
+		public void run()
+		{
+			Document doc = new Document();
+			Task t = null;
+			while(true)
+			{
+				try
+				{
+					t = queue.take();
+					if(t == STOP) break;
+					if(failure != null) continue; // drain so producers don't block
+
+					if(t.nodes != null) writeNodes(t.nodes, doc);
+					if(t.rels != null) writeRels(t.rels, doc);
+				}
+				catch(InterruptedException ex)
+				{
+					break;
+				}
+				catch(Exception ex)
+				{
+					logger.log(Level.WARNING, "Error building index", ex);
+					failure = ex;
+				}
+			}
+		}
+
+		protected void writeNodes(List<Node> nodes, Document doc) throws Exception
+		{
+			int size = nodes.size();
+			Node n = null;
+			for(int i=0; i<size; i++)
+			{
+				doc.clear();
+				n = nodes.get(i);
+				gm.decorateNode(n);
+				if(gm.nodeToDoc(n, doc) != null)
+				{
+					nodeWriter.addDocument(doc);
+				}
+			}
+			gm.sampleNodeMeta(nodes);
+			nodeCount.addAndGet(size);
+		}
+
+		protected void writeRels(List<Relationship> rels, Document doc) throws Exception
+		{
+			int size = rels.size();
+			int count = 0;
+			Relationship r = null;
+			for(int i=0; i<size; i++)
+			{
+				doc.clear();
+				r = rels.get(i);
+				gm.decorateRel(r);
+				if(gm.relToDoc(r, doc) != null)
+				{
+					relWriter.addDocument(doc);
+					count++;
+				}
+			}
+			gm.sampleRelMeta(rels);
+			relCount.addAndGet(count);
+		}
+
+		protected void closeWriters()
+		{
+			try
+			{
+				if(nodeWriter != null) nodeWriter.close();
+				if(relWriter != null) relWriter.close();
+			}
+			catch(Exception ex)
+			{
+				logger.log(Level.WARNING, "Error closing temporary index", ex);
+			}
+			nodeWriter = null;
+			relWriter = null;
+		}
+
+		protected void delete()
+		{
+			try
+			{
+				nodeDir.close();
+				relDir.close();
+			}
+			catch(Exception ex)
+			{
+				logger.log(Level.FINE, "Error closing directory", ex);
+			}
+
+			deleteDir(new File(path + "nodes"));
+			deleteDir(new File(path + "rels"));
+			new File(path).delete();
+		}
+
+		protected void deleteDir(File dir)
+		{
+			File files[] = dir.listFiles();
+			if(files != null)
+			{
+				for(int i=0; i<files.length; i++)
+				{
+					files[i].delete();
+				}
+			}
+			dir.delete();
+		}
+	}
+}
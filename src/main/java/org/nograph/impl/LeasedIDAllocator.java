@@ -0,0 +1,185 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.nograph.util.FileUtil;
+
+/**
+ * Leases ranges of ids and only persists the end of the current lease.  Inside a lease allocation is a single
+ * atomic increment.  After a crash the counter restarts at the end of the last persisted lease, so ids may be
+ * skipped but are never reused.
+ * 
+ * @author aholinch
+ *
+ */
+public class LeasedIDAllocator implements IDAllocator 
+{
+	private static final Logger logger = Logger.getLogger(LeasedIDAllocator.class.getName());
+	
+	public static final int DEFAULT_LEASE = 10000;
+	
+	protected AtomicLong idgen = null;
+	protected String idFile = null;
+	protected int leaseSize = DEFAULT_LEASE;
+	protected volatile long leaseEnd = 0;
+	
+	public LeasedIDAllocator(String file, AtomicLong counter, int lease)
+	{
+		idFile = file;
+		idgen = counter;
+		if(lease > 0) leaseSize = lease;
+		
+		init();
+	}
+	
+	/**
+	 * Read the high water mark.  Older stores hold the last id used, which works the same way.
+	 */
+	protected void init()
+	{
+		long hw = 0;
+		File f = new File(idFile);
+		if(f.exists())
+		{
+			String str = FileUtil.getStringFromFile(idFile);
+			try
+			{
+				hw = Long.parseLong(str.trim());
+			}
+			catch(Exception ex)
+			{
+				logger.log(Level.SEVERE, "Unable to read id store " + idFile, ex);
+			}
+		}
+		
+		// the counter may be shared, never move it backwards
+		long cur = 0;
+		while(true)
+		{
+			cur = idgen.get();
+			if(cur >= hw || idgen.compareAndSet(cur, hw)) break;
+		}
+		
+		// the next id forces a new lease
+		leaseEnd = idgen.get();
+	}
+	
+	@Override
+	public long nextID()
+	{
+		long id = idgen.incrementAndGet();
+		if(id > leaseEnd)
+		{
+			extendLease(id);
+		}
+		return id;
+	}
+
+	@Override
+	public long nextBlock(int count)
+	{
+		long last = idgen.addAndGet(count);
+		if(last > leaseEnd)
+		{
+			extendLease(last);
+		}
+		return last-count+1;
+	}
+
+	@Override
+	public long getCurrentID()
+	{
+		return idgen.get();
+	}
+	
+	@Override
+	public void advanceTo(long id)
+	{
+		long cur = 0;
+		while(true)
+		{
+			cur = idgen.get();
+			if(cur >= id || idgen.compareAndSet(cur, id)) break;
+		}
+		
+		if(id > leaseEnd)
+		{
+			extendLease(id);
+		}
+	}
+	
+	public int getLeaseSize()
+	{
+		return leaseSize;
+	}
+	
+	/**
+	 * Persist a lease that covers the id before it is handed out.
+	 * 
+	 * @param id
+	 */
+	protected synchronized void extendLease(long id)
+	{
+		if(id <= leaseEnd) return; // another thread already did it
+		
+		long end = id + leaseSize;
+		writeHighWater(end);
+		leaseEnd = end;
+	}
+	
+	/**
+	 * Write to a temp file, sync it, and rename over the store so a crash leaves either the old or new value.
+	 * 
+	 * @param val
+	 */
+	protected void writeHighWater(long val)
+	{
+		String tmp = idFile + ".tmp";
+		FileOutputStream fos = null;
+		try
+		{
+			fos = new FileOutputStream(tmp);
+			fos.write(String.valueOf(val).getBytes(StandardCharsets.UTF_8));
+			fos.flush();
+			fos.getFD().sync();
+			fos.close();
+			fos = null;
+			
+			Files.move(Paths.get(tmp), Paths.get(idFile), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.SEVERE, "Error commiting id lease to disk", ex);
+			throw new IllegalStateException("Unable to lease ids", ex);
+		}
+		finally
+		{
+			FileUtil.close(fos);
+		}
+	}
+}
@@ -17,49 +17,83 @@ limitations under the License.
 */
 package org.nograph.impl;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FloatPoint;
 import org.apache.lucene.document.IntPoint;
 import org.apache.lucene.document.LongPoint;
 import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.nograph.DataDecorator;
+import org.nograph.GraphBatch;
 import org.nograph.GraphManager;
 import org.nograph.GraphQuery;
 import org.nograph.GraphQuery.Criterion;
-import org.nograph.GraphQuery.RangeCriterion;
-import org.nograph.GraphQuery.SetCriterion;
-import org.nograph.GraphQuery.SimpleCriterion;
+import org.nograph.IngestListener;
 import org.nograph.NoGraph;
 import org.nograph.NoGraphConfig;
 import org.nograph.NoGraphException;
 import org.nograph.Node;
 import org.nograph.Path;
+import org.nograph.PropertyHolder;
 import org.nograph.Relationship;
+import org.nograph.ResultIterator;
+import org.nograph.ResultPage;
+import org.nograph.lucene.IndexSettings;
 import org.nograph.lucene.LuceneIndex;
 import org.nograph.lucene.LuceneUtil;
 import org.nograph.util.FileUtil;
@@ -77,6 +111,7 @@ public class LuceneGraphManager implements GraphManager
 	// ids
 	protected static final AtomicLong idgen = new AtomicLong();
 	protected static String idsync = "mutex";
+	protected IDAllocator idAllocator = null;
 	
 	// instance
 	protected static String instsync = "mutex";
@@ -90,16 +125,88 @@ public class LuceneGraphManager implements GraphManager
 	protected String relDir = null;
 	protected String metaDir = null;
 	protected String idFile = null;
+	protected String commitMarkerFile = null;
+	
+	// optional write ahead log
+	protected WriteAheadLog wal = null;
+	protected boolean walEnabled = false;
 	
 	// indexes
 	protected LuceneIndex nodeIndex = null;
 	protected LuceneIndex relIndex = null;
 	protected boolean readOnlyIndex = false;
+	protected IndexSettings indexSettings = null;
+	protected int nodeSchema = SCHEMA_KEYWORD_KEYS;
+	protected int relSchema = SCHEMA_KEYWORD_KEYS;
+	
+	// null when caching is off
+	protected ObjectCache<Node> nodeCache = null;
+	protected ObjectCache<Relationship> relCache = null;
+	protected QueryCompiler queryCompiler = null;
+	
+	// counted writes hold the lock from reading the old versions until the index is updated
+	protected GraphCounters counters = null;
+	protected volatile boolean countersValid = false;
+	protected final ReentrantLock counterLock = new ReentrantLock();
+	protected String countersFile = null;
+	protected long countersPersistMS = 60000;
+	protected long countersWritten = 0;
+	
+	// what the counters need from writes the searchers may not see yet
+	protected PendingKeys pendingNodes = new PendingKeys();
+	protected PendingKeys pendingRels = new PendingKeys();
+	protected static final int MAX_PENDING_KEYS = 100000;
 	
 	public static final String PROP_ND = "node.dir";
 	public static final String PROP_RD = "rel.dir";
 	public static final String PROP_MD = "meta.dir";
 	public static final String PROP_READONLY = "index.readonly";
+	public static final String PROP_COMMIT_MODE = "commit.mode";
+	public static final String PROP_COMMIT_MS = "commit.interval.ms";
+	public static final String PROP_COMMIT_OPS = "commit.max.ops";
+	public static final String PROP_INGEST_THREADS = "ingest.threads";
+	public static final String PROP_INGEST_CHUNK = "ingest.chunk.size";
+	public static final String PROP_STREAM_BATCH = "stream.batch.size";
+	public static final String PROP_ID_LEASE = "id.lease.size";
+	public static final String PROP_REFRESH_MODE = "refresh.mode";
+	public static final String PROP_REFRESH_MAX_MS = "refresh.max.stale.ms";
+	public static final String PROP_REFRESH_MIN_MS = "refresh.min.stale.ms";
+	
+	// recorded in the user data of every index commit
+	public static final String COMMIT_SEQ_KEY = "nograph.seq";
+	public static final String WAL_LSN_KEY = "nograph.wal.lsn";
+	
+	// also in the commit data, an index with documents and no schema has analyzed id, type and node fields
+	public static final String SCHEMA_KEY = "nograph.schema";
+	public static final int SCHEMA_ANALYZED_KEYS = 1;
+	public static final int SCHEMA_KEYWORD_KEYS = 2;
+	
+	public static final String PROP_WAL = "wal.enabled";
+	public static final String PROP_WAL_DIR = "wal.dir";
+	public static final String PROP_WAL_SEGMENT_MB = "wal.segment.mb";
+	
+	// IndexWriter and Directory tuning, unset keeps the Lucene defaults
+	public static final String PROP_INDEX_RAM_MB = "index.ram.buffer.mb";
+	public static final String PROP_INDEX_MAX_DOCS = "index.max.buffered.docs";
+	public static final String PROP_INDEX_MERGE_POLICY = "index.merge.policy";
+	public static final String PROP_INDEX_MERGE_THREADS = "index.merge.threads";
+	public static final String PROP_INDEX_MERGE_COUNT = "index.merge.max.count";
+	public static final String PROP_INDEX_COMPRESSION = "index.compression";
+	public static final String PROP_INDEX_DIRECTORY = "index.directory";
+	public static final String PROP_INDEX_CFS = "index.compound.file";
+	
+	// optional caches for getNode and getRelationship
+	public static final String PROP_CACHE = "cache.enabled";
+	public static final String PROP_CACHE_ENTRIES = "cache.max.entries";
+	public static final String PROP_CACHE_MB = "cache.max.mb";
+	public static final int DEFAULT_CACHE_ENTRIES = 100000;
+	
+	// compiled GraphQuery criteria to keep, 0 compiles every query
+	public static final String PROP_QUERY_PLANS = "query.plans.max";
+	
+	// optional type and degree counters, saved to counters.json at most every counters.persist.ms
+	public static final String PROP_COUNTERS = "counters.enabled";
+	public static final String PROP_COUNTERS_PERSIST_MS = "counters.persist.ms";
 	
 	public static final String ID_KEY = BasePropertyHolder.ID_KEY;
 	public static final String TYPE_KEY = BasePropertyHolder.TYPE_KEY;
@@ -107,6 +214,10 @@ public class LuceneGraphManager implements GraphManager
 	public static final String N2_KEY = GenericRelationship.N2_KEY;
 	public static final String N1_TYPEKEY = GenericRelationship.N1_TYPEKEY;
 	public static final String N2_TYPEKEY = GenericRelationship.N2_TYPEKEY;
+	
+	// always loaded, even with a projection
+	protected static final String NODE_KEYS[] = {ID_KEY,TYPE_KEY};
+	protected static final String REL_KEYS[] = {N1_KEY,N1_TYPEKEY,N2_KEY,N2_TYPEKEY};
 
 	// meta info
 	protected GraphMeta graphMeta = null;
@@ -118,6 +229,17 @@ public class LuceneGraphManager implements GraphManager
 	protected boolean decorateNodes = false;
 	protected boolean decorateRels = false;
 	
+	// commits
+	protected CommitScheduler commitScheduler = null;
+	
+	// ingest workers
+	protected int ingestThreads = 1;
+	protected ExecutorService ingestPool = null;
+	protected final Object poolsync = new Object();
+	public static final int MIN_PARALLEL_BATCH = 1000;
+	protected int ingestChunkSize = 10000;
+	protected int streamBatchSize = 1000;
+	
 	
 	private LuceneGraphManager(String graphName)
 	{
@@ -181,1649 +303,3676 @@ public class LuceneGraphManager implements GraphManager
 		
 		idFile = metaDir+"id.store";
 		metaFile = metaDir+"graphmeta.json";
+		countersFile = metaDir+"counters.json";
+		commitMarkerFile = metaDir+"commit.pending";
 		
 		// ideally we'd let people configure this
 		Analyzer analyzer = null;
 		
+		indexSettings = createIndexSettings(config);
+		
 		analyzer = createDefaultAnalyzer();
-		nodeIndex = new LuceneIndex(nodeDir,analyzer,readOnlyIndex);
+		nodeIndex = new LuceneIndex(nodeDir,analyzer,readOnlyIndex,indexSettings);
 		
 		analyzer = createDefaultAnalyzer();
-		relIndex = new LuceneIndex(relDir,analyzer,readOnlyIndex);
+		relIndex = new LuceneIndex(relDir,analyzer,readOnlyIndex,indexSettings);
+		
+		// older indexes keep their analyzed keys until migrateSchema is run
+		nodeSchema = detectSchema(nodeIndex,"node");
+		relSchema = detectSchema(relIndex,"relationship");
+		nodeIndex.setAnalyzer(createQueryAnalyzer(nodeSchema));
+		relIndex.setAnalyzer(createQueryAnalyzer(relSchema));
+		
+		// background means reads can be up to refresh.max.stale.ms behind, use awaitVisible for read-your-writes
+		String refresh = getGraphProperty(config,PROP_REFRESH_MODE);
+		if(refresh != null && refresh.trim().equalsIgnoreCase("background"))
+		{
+			long maxStale = getGraphIntProperty(config,PROP_REFRESH_MAX_MS,1000);
+			long minStale = getGraphIntProperty(config,PROP_REFRESH_MIN_MS,25);
+			nodeIndex.startRefresher(maxStale,minStale);
+			relIndex.startRefresher(maxStale,minStale);
+		}
+		
+		createCaches(config);
+		queryCompiler = new QueryCompiler(getGraphIntProperty(config,PROP_QUERY_PLANS,QueryCompiler.DEFAULT_MAX_PLANS));
+		
+		// ids are leased in blocks from idFile
+		idAllocator = new LeasedIDAllocator(idFile,idgen,getGraphIntProperty(config,PROP_ID_LEASE,LeasedIDAllocator.DEFAULT_LEASE));
+		
+		loadGraphMeta();
+		
+		int mode = CommitScheduler.parseMode(getGraphProperty(config,PROP_COMMIT_MODE));
+		long ms = getGraphIntProperty(config,PROP_COMMIT_MS,1000);
+		int ops = getGraphIntProperty(config,PROP_COMMIT_OPS,1000);
+		commitScheduler = new CommitScheduler(this,mode,ms,ops);
+		String walProp = getGraphProperty(config,PROP_WAL);
+		walEnabled = !readOnlyIndex && walProp != null && walProp.trim().equalsIgnoreCase("true");
+		
+		commitScheduler.resume(checkCommitMarker());
+		
+		// before the log replay, which counts like any other write
+		createCounters(config);
+		
+		if(walEnabled)
+		{
+			String walDir = getGraphProperty(config,PROP_WAL_DIR);
+			if(walDir == null) walDir = metaDir+"wal/";
+			long segSize = getGraphIntProperty(config,PROP_WAL_SEGMENT_MB,64)*1024L*1024L;
+			openWAL(walDir,segSize);
+		}
+		
+		commitScheduler.start();
+		
+		ingestThreads = Math.max(1, getGraphIntProperty(config,PROP_INGEST_THREADS,1));
+		setIngestChunkSize(getGraphIntProperty(config,PROP_INGEST_CHUNK,ingestChunkSize));
+		setStreamBatchSize(getGraphIntProperty(config,PROP_STREAM_BATCH,streamBatchSize));
+	}
+	
+	/**
+	 * Look up a config value for this graph, using the name prefix for anything other than the default graph.
+	 * 
+	 * @param config
+	 * @param key
+	 * @return
+	 */
+	protected String getGraphProperty(NoGraphConfig config, String key)
+	{
+		if(name == null || name.trim().length() == 0 || name.equals(NoGraphConfig.DEFAULT_NAME))
+		{
+			return config.getProperty(key);
+		}
 		
-		// read id from idFile
-		synchronized(idsync)
+		return config.getProperty(name+"."+key);
+	}
+	
+	protected int getGraphIntProperty(NoGraphConfig config, String key, int defVal)
+	{
+		int val = defVal;
+		String str = getGraphProperty(config,key);
+		if(str != null)
 		{
-			FileReader fr = null;
-			BufferedReader br = null;
 			try
 			{
-				File f = new File(idFile);
-				if(f.exists())
-				{
-					fr = new FileReader(idFile);
-					br = new BufferedReader(fr);
-					
-					String line = br.readLine();
-					
-					long id = Long.parseLong(line.trim());
-					idgen.set(id);
-				}
+				val = Integer.parseInt(str.trim());
 			}
 			catch(Exception ex)
 			{
-				logger.log(Level.WARNING, "Error getting id", ex);
+				logger.warning("Bad value for " + key + ": " + str);
 			}
-			finally
+		}
+		return val;
+	}
+	
+	protected double getGraphDoubleProperty(NoGraphConfig config, String key, double defVal)
+	{
+		double val = defVal;
+		String str = getGraphProperty(config,key);
+		if(str != null)
+		{
+			try
 			{
-				if(fr != null)try{fr.close();}catch(Exception ex){}
-				if(br != null)try{br.close();}catch(Exception ex){}
+				val = Double.parseDouble(str.trim());
+			}
+			catch(Exception ex)
+			{
+				logger.warning("Bad value for " + key + ": " + str);
 			}
 		}
-		
-		loadGraphMeta();
+		return val;
 	}
 	
 	/**
-	 * This is inspired by Neo4j's whitespace, lowercase analyzer.
+	 * Read the index.* tuning keys for this graph.  Both indexes share the settings.
 	 * 
+	 * @param config
 	 * @return
 	 */
-	protected Analyzer createDefaultAnalyzer()
+	protected IndexSettings createIndexSettings(NoGraphConfig config)
 	{
-		/*
-		Analyzer anlzr = new Analyzer()
-	    {
-	        @Override
-	        protected TokenStreamComponents createComponents( String fieldName )
-	        {
-	            Tokenizer source = new WhitespaceTokenizer();
-	            TokenStream filter = new LowerCaseFilter( source );
-	            return new TokenStreamComponents( source, filter );
-	        }
-
-	        @Override
-	        public String toString()
-	        {
-	            return "LOWER_CASE_WHITESPACE_ANALYZER";
-	        }
-	    };
-	    
-	    return anlzr;
-	    */
-		//stop words may be too much, but I really like seeing the punctuation going away
-	    return new StandardAnalyzer();
+		IndexSettings settings = new IndexSettings();
+		settings.setRAMBufferMB(getGraphDoubleProperty(config,PROP_INDEX_RAM_MB,settings.getRAMBufferMB()));
+		settings.setMaxBufferedDocs(getGraphIntProperty(config,PROP_INDEX_MAX_DOCS,settings.getMaxBufferedDocs()));
+		settings.setMergePolicy(getGraphProperty(config,PROP_INDEX_MERGE_POLICY));
+		settings.setMergeThreads(getGraphIntProperty(config,PROP_INDEX_MERGE_THREADS,0));
+		settings.setMaxMergeCount(getGraphIntProperty(config,PROP_INDEX_MERGE_COUNT,0));
+		settings.setCompression(getGraphProperty(config,PROP_INDEX_COMPRESSION));
+		settings.setDirectoryType(getGraphProperty(config,PROP_INDEX_DIRECTORY));
+		
+		String cfs = getGraphProperty(config,PROP_INDEX_CFS);
+		if(cfs != null)
+		{
+			settings.setUseCompoundFile(Boolean.valueOf(cfs.trim()));
+		}
+		
+		logger.fine("Index settings " + settings);
+		return settings;
 	}
 	
-	public static LuceneGraphManager getInstance(String name)
+	public IndexSettings getIndexSettings()
 	{
-		if(name == null || name.trim().length() == 0) name = NoGraphConfig.DEFAULT_NAME;
+		return indexSettings;
+	}
+	
+	/**
+	 * Set up the node and relationship caches if cache.enabled is true.  Each gets cache.max.entries and, when
+	 * set, cache.max.mb.
+	 * 
+	 * @param config
+	 */
+	protected void createCaches(NoGraphConfig config)
+	{
+		String str = getGraphProperty(config,PROP_CACHE);
+		if(str == null || !str.trim().equalsIgnoreCase("true")) return;
+		
+		int entries = getGraphIntProperty(config,PROP_CACHE_ENTRIES,DEFAULT_CACHE_ENTRIES);
+		long bytes = (long)(getGraphDoubleProperty(config,PROP_CACHE_MB,0)*1024*1024);
+		nodeCache = new ObjectCache<Node>(entries,bytes);
+		relCache = new ObjectCache<Relationship>(entries,bytes);
+		logger.info("Caching up to " + entries + " nodes and relationships");
+	}
+	
+	/**
+	 * @return null if caching is off
+	 */
+	public ObjectCache<Node> getNodeCache()
+	{
+		return nodeCache;
+	}
+	
+	/**
+	 * @return null if caching is off
+	 */
+	public ObjectCache<Relationship> getRelationshipCache()
+	{
+		return relCache;
+	}
+	
+	/**
+	 * Drop everything cached, for when the indexes were changed behind the graph's back.
+	 */
+	public void clearCache()
+	{
+		if(nodeCache != null) nodeCache.clear();
+		if(relCache != null) relCache.clear();
+	}
+	
+	/**
+	 * Remove saved or deleted nodes from the cache.  This has to happen after the index writes so a reader
+	 * refilling the cache sees the new version.
+	 * 
+	 * @param ids
+	 * @param deleted also remove cached relationships on either end of the nodes
+	 */
+	protected void uncacheNodes(Collection<String> ids, boolean deleted)
+	{
+		if(nodeCache == null || ids == null || ids.size() == 0) return;
 		
-		if(graphMap == null)
+		nodeCache.invalidate(ids);
+		
+		if(deleted)
 		{
-			synchronized(instsync)
-			{
-				// yes, check again
-				if(graphMap == null)
+			final Set<String> set = (ids instanceof Set)?(Set<String>)ids:new HashSet<String>(ids);
+			relCache.invalidateMatching(new ObjectCache.Matcher<Relationship>() {
+				public boolean matches(Relationship r)
 				{
-					graphMap = new HashMap<String,LuceneGraphManager>();
+					return set.contains(r.getNode1ID()) || set.contains(r.getNode2ID());
 				}
-			}
+			});
 		}
+	}
+	
+	protected void uncacheRels(Collection<String> ids)
+	{
+		if(relCache == null || ids == null || ids.size() == 0) return;
 		
-		LuceneGraphManager instance = null;
+		relCache.invalidate(ids);
+	}
+	
+	protected void createCounters(NoGraphConfig config)
+	{
+		String prop = getGraphProperty(config,PROP_COUNTERS);
+		if(prop == null || !prop.trim().equalsIgnoreCase("true")) return;
 		
-		instance = graphMap.get(name);
+		countersPersistMS = getGraphIntProperty(config,PROP_COUNTERS_PERSIST_MS,(int)countersPersistMS);
+		counters = new GraphCounters();
+		countersValid = false;
 		
-		if(instance == null)
+		nodeIndex.addRefreshListener(pendingNodes);
+		relIndex.addRefreshListener(pendingRels);
+		
+		try
 		{
-			synchronized(instsync)
+			File f = new File(countersFile);
+			if(f.exists())
 			{
-				// yes, check again
-				instance = graphMap.get(name);
-				if(instance == null)
+				counters.fromJSONString(FileUtil.getStringFromFile(countersFile));
+				
+				// saved with a later commit than the index has, or missing writes made since
+				countersValid = counters.getSequence() == getCommittedSequence();
+				if(!countersValid)
 				{
-					instance = new LuceneGraphManager(name);
-					graphMap.put(name, instance);
+					logger.info("Counters are from commit " + counters.getSequence() + ", they will be rebuilt when first read");
 				}
-			}			
+			}
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error reading counters, they will be rebuilt when first read", ex);
 		}
 		
-		return instance;
+		if(!readOnlyIndex)
+		{
+			// normal exits save them so the next start doesn't have to rebuild
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run()
+				{
+					try
+					{
+						saveCounters();
+					}
+					catch(Exception ex)
+					{
+						logger.log(Level.WARNING, "Error saving counters", ex);
+					}
+				}
+			}));
+		}
 	}
 	
-	@Override
-	public String getName()
+	/**
+	 * @return the counters, null unless counters.enabled is set
+	 */
+	public GraphCounters getCounters()
 	{
-		return name;
+		return counters;
 	}
 	
-	@Override
-	public void setName(String str)
+	/**
+	 * The counters are rebuilt the next time they are read.
+	 */
+	public void invalidateCounters()
 	{
-		name = str;
+		countersValid = false;
 	}
-
-	@Override
-	public void saveNode(Node n) throws NoGraphException 
+	
+	/**
+	 * Recount every type and degree from the index.  Writes wait until it is done.
+	 * 
+	 * @throws NoGraphException
+	 */
+	public void rebuildCounters() throws NoGraphException
 	{
-		if(n == null) return;
+		if(counters == null) return;
 		
-		boolean doDelete = true;
-		if(n.getID() == null)
-		{
-			String id = getNextNodeID();
-			n.setID(id);
-			doDelete = false;
-		}
-			
+		long start = System.currentTimeMillis();
+		counterLock.lock();
 		try
 		{
-			decorateNode(n);
+			nodeIndex.refresh();
+			relIndex.refresh();
 			
-			Document doc = nodeToDoc(n,null);
-			if(doDelete)
+			// everything is visible now
+			pendingNodes.clear();
+			pendingRels.clear();
+			counters.clear();
+			
+			Map<String,Long> m = nodeIndex.getFacetCounts(new MatchAllDocsQuery(), TYPE_KEY);
+			if(m == null) throw new NoGraphException("Error counting nodes");
+			Iterator<Map.Entry<String,Long>> it = m.entrySet().iterator();
+			Map.Entry<String,Long> me = null;
+			while(it.hasNext())
 			{
-				// there is no update, only delete and save again
-				nodeIndex.deleteDocument(ID_KEY,n.getID());
+				me = it.next();
+				counters.addNode(me.getKey(), me.getValue());
 			}
-			nodeIndex.saveDocument(doc);
 			
-			nodeIndex.commit();
+			// relationship keys come from doc values
+			LuceneIndex.DocumentBatches batches = relIndex.openBatches(new MatchAllDocsQuery(),10000,getCountFields(),true);
+			try
+			{
+				List<Document> docs = null;
+				while((docs = batches.next()) != null)
+				{
+					int size = docs.size();
+					for(int i=0; i<size; i++)
+					{
+						countRelDoc(docs.get(i),1);
+					}
+				}
+			}
+			finally
+			{
+				batches.close();
+			}
 			
-			graphMeta.updateNodeMeta(n);
-			// if there's and index commit then write the meta
-			writeGraphMeta();
+			countersValid = true;
 		}
-		catch(Exception ex)
+		finally
 		{
-			logger.log(Level.WARNING, "Error saving node", ex);
-			throw new NoGraphException("Error saving node", ex);
+			counterLock.unlock();
 		}
+		
+		logger.info("Rebuilt counters in " + (System.currentTimeMillis()-start) + " ms: " + counters);
 	}
-
-	@Override
-	public void deleteNode(Node n) throws NoGraphException 
-	{
-		if(n == null) return;
-		if(n.getID() == null) throw new NoGraphException("No node id");
-
-		deleteNode(n.getID());
-	}
-
-	@Override
-	public void deleteNode(String id) throws NoGraphException 
+	
+	/**
+	 * Make the counters current and save them with a commit, so the next start can use them as they are.
+	 * 
+	 * @throws NoGraphException
+	 */
+	public void saveCounters() throws NoGraphException
 	{
+		if(counters == null || readOnlyIndex) return;
+		
+		counterLock.lock();
 		try
 		{
-			nodeIndex.deleteDocument(ID_KEY, id);
-			relIndex.deleteDocuments(new Term(N1_KEY,id));
-			relIndex.deleteDocuments(new Term(N2_KEY,id));
-			nodeIndex.commit();
-			relIndex.commit();
+			flush();
+			if(countersValid) writeCounters(getCommittedSequence());
 		}
-		catch(Exception ex)
+		finally
 		{
-			throw new NoGraphException("Error deleting",ex);
+			counterLock.unlock();
 		}
 	}
-
-	@Override
-	public Node getNode(String id) throws NoGraphException 
+	
+	protected void writeCounters(long seq)
 	{
-		Node n = null;
 		try
 		{
-			TermQuery tq = new TermQuery(new Term(ID_KEY,id));
-			List<Document> docs = nodeIndex.search(tq);
-			if(docs != null && docs.size() > 0)
-			{
-				Document doc = docs.get(0);
-				n = docToNode(doc,n);
-			}
+			counters.setSequence(seq);
+			String json = counters.toJSONString();
+			counters.clearDirty();
+			writeFileAtomic(countersFile,json);
+			countersWritten = System.currentTimeMillis();
 		}
 		catch(Exception ex)
 		{
-			logger.log(Level.WARNING, "Error getting node", ex);
-			throw new NoGraphException("Error getting node",ex);
+			// try again at the next commit
+			counters.markDirty();
+			logger.log(Level.SEVERE, "Error writing counters", ex);
 		}
-		return n;
 	}
-
-	@Override
-	public void ingestNodes(List<Node> nodes) throws NoGraphException 
+	
+	/**
+	 * @return the sequence number of the newest commit of either index
+	 */
+	protected long getCommittedSequence()
 	{
-		if(nodes == null || nodes.size() == 0) return;
-			
-		try
-		{
-			Document doc = new Document();
-			int size = nodes.size();
-			List<String> ids = getNextNodeIDs(size);
-			Document d = null;
-			Node n = null;
-			
-			decorateNodes(nodes);
-			
-			sampleNodeMeta(nodes);
-			
-			for(int i=0; i<size; i++)
-			{
-				doc.clear();
-				
-				n = nodes.get(i);
-				n.setID(ids.get(i));
-				
-				d = nodeToDoc(n,doc);
-				
-				if(d != null)
-				{
-					// d is the marker, doc is the actual reused instance
-					nodeIndex.saveDocument(doc);
-				}				
-			}
-			
-			nodeIndex.commit();
-		}
-		catch(Exception ex)
-		{
-			logger.log(Level.WARNING, "Error ingesting nodes", ex);
-			throw new NoGraphException("Error ingesting nodes", ex);
-		}
+		return Math.max(getCommitSequence(nodeIndex), getCommitSequence(relIndex));
 	}
-
-	@Override
-	public void saveNodes(List<Node> nodes) throws NoGraphException 
+	
+	protected GraphCounters readCounters() throws NoGraphException
 	{
-		if(nodes == null || nodes.size() == 0) return;
-		
-		int size = nodes.size();
-		
-		List<Node> newNodes = new ArrayList<Node>(size/2);
-		List<Node> existingNodes = new ArrayList<Node>(size/2);
-		List<String> delIDs = new ArrayList<String>(size/2);
+		if(!countersValid) rebuildCounters();
+		return counters;
+	}
+	
+	protected boolean countWrites()
+	{
+		return counters != null && countersValid;
+	}
+	
+	protected void lockCounters()
+	{
+		if(counters != null) counterLock.lock();
+	}
+	
+	protected void unlockCounters()
+	{
+		if(counterLock.isHeldByCurrentThread()) counterLock.unlock();
+	}
+	
+	protected Set<String> getCountFields()
+	{
+		Set<String> fields = new HashSet<String>();
+		fields.add(ID_KEY);
+		fields.add(TYPE_KEY);
+		fields.add(N1_KEY);
+		fields.add(N2_KEY);
+		return fields;
+	}
+	
+	/**
+	 * The keys of what is in the index now for the ids, type for nodes and type and both ends for relationships.
+	 * 
+	 * @param index
+	 * @param ids
+	 * @param rels
+	 * @return
+	 * @throws NoGraphException
+	 */
+	protected Map<String,String[]> getCountKeys(LuceneIndex index, Collection<String> ids, boolean rels) throws NoGraphException
+	{
+		PendingKeys pending = rels?pendingRels:pendingNodes;
+		if(pending.size() > MAX_PENDING_KEYS)
+		{
+			// nothing has refreshed in a while, one refresh empties it
+			index.refresh();
+		}
 		
-		Node n = null;
-		for(int i=0; i<size; i++)
+		// pending has what the searcher may be missing, the rest come from the searcher as it is
+		// checked before the searcher is acquired, a refresh drops entries only after the new searcher is in place
+		Map<String,String[]> keys = new ConcurrentHashMap<String,String[]>();
+		List<String> lookup = new ArrayList<String>(ids.size());
+		PendingKeys.Entry e = null;
+		for(String id:ids)
 		{
-			n = nodes.get(i);
-			if(n.getID() == null)
+			e = pending.get(id);
+			if(e == null)
 			{
-				newNodes.add(n);
+				if(id != null) lookup.add(id);
 			}
-			else
+			else if(e.keys != null)
 			{
-				existingNodes.add(n);
-				delIDs.add(n.getID());
+				keys.put(id, e.keys);
 			}
 		}
 		
-		if(newNodes.size() > 0)
-		{
-			// bulk insert with id assignment
-			ingestNodes(newNodes);
-		}
+		Map<String,Document> docs = index.getDocuments(ID_KEY,lookup,getCountFields(),null,false);
 		
-		if(existingNodes.size() > 0)
+		Iterator<Map.Entry<String,Document>> it = docs.entrySet().iterator();
+		Map.Entry<String,Document> me = null;
+		Document d = null;
+		while(it.hasNext())
 		{
-			// we have to remove existing and add again
-			deleteNodesByID(delIDs);
-			try
-			{
-				Document doc = new Document();
-				size = existingNodes.size();
-				Document d = null;
-				
-				// new nodes were decorated by ingestNodes
-				decorateNodes(existingNodes);
-				sampleNodeMeta(existingNodes);
-				
-				for(int i=0; i<size; i++)
-				{
-					doc.clear();
-					
-					n = existingNodes.get(i);
-					
-					d = nodeToDoc(n,doc);
-					
-					if(d != null)
-					{
-						// d is the marker, doc is the actual reused instance, expected to be the same
-						nodeIndex.saveDocument(doc);
-					}
-				}
-
-				nodeIndex.commit();
-				
-			}
-			catch(Exception ex)
+			me = it.next();
+			d = me.getValue();
+			if(rels)
 			{
-				logger.log(Level.WARNING, "Error saving nodes", ex);
-				throw new NoGraphException("Error saving nodes", ex);
+				keys.put(me.getKey(), new String[]{d.get(TYPE_KEY),d.get(N1_KEY),d.get(N2_KEY)});
 			}
-		}
-	}
-
-	@Override
-	public void deleteNodes(List<Node> nodes) throws NoGraphException 
-	{
-		if(nodes == null || nodes.size() == 0) return;
-		int size = nodes.size();
-		List<String> ids = new ArrayList<String>(size);
-		String id = null;
-		for(int i=0; i<size; i++)
-		{
-			id = nodes.get(i).getID();
-			if(id != null)
+			else
 			{
-				ids.add(id);
+				keys.put(me.getKey(), new String[]{d.get(TYPE_KEY)});
 			}
 		}
-		
-		deleteNodesByID(ids);
+		return keys;
 	}
-
-	@Override
-	public void deleteNodesByID(List<String> ids) throws NoGraphException 
+	
+	/**
+	 * Count a node that was just written.  prev holds what was there before, for upserts, and is updated so an
+	 * id written twice in one call is only counted once.
+	 * 
+	 * @param n
+	 * @param prev
+	 */
+	protected void countNodeWrite(Node n, Map<String,String[]> prev)
 	{
-		if(ids == null || ids.size() == 0) return;
-		
-		Term t = null;
-		int size = ids.size();
-		String id = null;
-		try
-		{
-			for(int i=0; i<size; i++)
-			{
-				id = ids.get(i);
-				t = new Term(ID_KEY,id);
-				nodeIndex.deleteDocuments(t);
-				relIndex.deleteDocuments(new Term(N1_KEY,id));
-				relIndex.deleteDocuments(new Term(N2_KEY,id));
-			}
-			
-			nodeIndex.commit();
-			relIndex.commit();
-
-		}
-		catch(Exception ex)
+		String keys[] = new String[]{n.getType()};
+		if(prev != null)
 		{
-			throw new NoGraphException(ex);
+			String old[] = prev.put(n.getID(), keys);
+			if(old != null) counters.addNode(old[0], -1);
 		}
+		counters.addNode(n.getType(), 1);
+		pendingNodes.put(n.getID(), keys);
 	}
-
-	@Override
-	public void saveRelationship(Relationship r) throws NoGraphException 
+	
+	protected void countRelWrite(Relationship r, Map<String,String[]> prev)
 	{
-		if(r == null) return;
-		
-		boolean doDelete = true;
-		if(r.getID() == null)
-		{
-			String id = getNextRelID();
-			r.setID(id);
-			doDelete = false;
-		}
-			
-		try
-		{
-			decorateRel(r);
-			Document doc = relToDoc(r,null);
-			if(doDelete)
-			{
-				// there is no update, only delete and save again
-				relIndex.deleteDocument(ID_KEY,r.getID());
-			}
-			relIndex.saveDocument(doc);
-			
-			graphMeta.updateRelationshipMeta(r);
-
-			relIndex.commit();
-			
-			writeGraphMeta();
-		}
-		catch(Exception ex)
+		String keys[] = new String[]{r.getType(),r.getNode1ID(),r.getNode2ID()};
+		if(prev != null)
 		{
-			logger.log(Level.WARNING, "Error saving rel", ex);
-			throw new NoGraphException("Error saving rel", ex);
+			String old[] = prev.put(r.getID(), keys);
+			if(old != null) counters.addRelationship(old[0], old[1], old[2], -1);
 		}
+		counters.addRelationship(r.getType(), r.getNode1ID(), r.getNode2ID(), 1);
+		pendingRels.put(r.getID(), keys);
 	}
-
-	@Override
-	public void deleteRelationship(Relationship r) throws NoGraphException 
+	
+	/**
+	 * @param d
+	 * @param num -1 to remove it
+	 */
+	protected void countRelDoc(Document d, long num)
 	{
-		if(r == null) return;
-		if(r.getID() == null) throw new NoGraphException("No rel id");
-
-		deleteRelationship(r.getID());
+		counters.addRelationship(d.get(TYPE_KEY), d.get(N1_KEY), d.get(N2_KEY), num);
 	}
-
-	@Override
-	public void deleteRelationship(String id) throws NoGraphException
+	
+	/**
+	 * Record deletes once they are in the index writer, a refresh started before that would drop them too early.
+	 * 
+	 * @param pending
+	 * @param ids
+	 */
+	protected void pendingDeletes(PendingKeys pending, Collection<String> ids)
 	{
-		try
-		{
-			relIndex.deleteDocument(ID_KEY, id);
-			
-			relIndex.commit();
-
-		}
-		catch(Exception ex)
+		for(String id:ids)
 		{
-			throw new NoGraphException("Error deleting",ex);
+			pending.delete(id);
 		}
 	}
-
-	@Override
-	public Relationship getRelationship(String id, boolean fetchNodes) throws NoGraphException 
+	
+	/**
+	 * Delete the nodes and every relationship on either end of them.
+	 * 
+	 * @param ids
+	 * @throws NoGraphException
+	 */
+	protected void deleteNodeDocs(Collection<String> ids) throws NoGraphException
 	{
-		Relationship r = null;
+		lockCounters();
 		try
 		{
-			TermQuery tq = new TermQuery(new Term(ID_KEY,id));
-			List<Document> docs = relIndex.search(tq);
-			if(docs != null && docs.size() > 0)
+			List<String> relIDs = null;
+			if(countWrites())
 			{
-				Document doc = docs.get(0);
-				r = docToRel(doc,r);
+				Map<String,String[]> keys = getCountKeys(nodeIndex,ids,false);
+				Iterator<String[]> it = keys.values().iterator();
+				while(it.hasNext())
+				{
+					counters.addNode(it.next()[0], -1);
+				}
 				
-				List<Relationship> tmp = new ArrayList<Relationship>();
-				tmp.add(r);
+				final Set<String> idSet = new HashSet<String>();
+				List<BytesRef> terms = new ArrayList<BytesRef>(ids.size());
+				for(String id:ids)
+				{
+					if(id != null && idSet.add(id)) terms.add(new BytesRef(id));
+				}
+				Query q = new BooleanQuery.Builder()
+						.add(new TermInSetQuery(N1_KEY,terms), BooleanClause.Occur.SHOULD)
+						.add(new TermInSetQuery(N2_KEY,terms), BooleanClause.Occur.SHOULD)
+						.build();
 				
-				if(fetchNodes)
+				// copied before the searcher is acquired, anything a refresh drops after this the searcher has
+				final Map<String,PendingKeys.Entry> pending = pendingRels.snapshot();
+				
+				// the relationships the searcher has, less any changed since it was opened
+				final List<Document> gone = new ArrayList<Document>();
+				relIndex.visitDocuments(q, getCountFields(), new LuceneIndex.DocumentVisitor() {
+					public void visit(Document doc) throws IOException
+					{
+						if(!pending.containsKey(doc.get(ID_KEY))) gone.add(doc);
+					}
+				}, false);
+				
+				// plus the ones written since that point at the nodes
+				Iterator<Map.Entry<String,PendingKeys.Entry>> pit = pending.entrySet().iterator();
+				Map.Entry<String,PendingKeys.Entry> me = null;
+				String k[] = null;
+				Document d = null;
+				while(pit.hasNext())
 				{
-					populateNodesForRels(tmp);
+					me = pit.next();
+					k = me.getValue().keys;
+					if(k != null && (idSet.contains(k[1]) || idSet.contains(k[2])))
+					{
+						d = new Document();
+						d.add(new StoredField(ID_KEY,me.getKey()));
+						if(k[0] != null) d.add(new StoredField(TYPE_KEY,k[0]));
+						d.add(new StoredField(N1_KEY,k[1]));
+						d.add(new StoredField(N2_KEY,k[2]));
+						gone.add(d);
+					}
+				}
+				
+				int size = gone.size();
+				relIDs = new ArrayList<String>(size);
+				for(int i=0; i<size; i++)
+				{
+					d = gone.get(i);
+					countRelDoc(d,-1);
+					relIDs.add(d.get(ID_KEY));
 				}
+				
+				for(String id:ids)
+				{
+					counters.removeNode(id);
+				}
+			}
+			
+			// set based deletes, the rels on either end go with the nodes
+			nodeIndex.deleteDocuments(ID_KEY,ids);
+			relIndex.deleteDocuments(N1_KEY,ids);
+			relIndex.deleteDocuments(N2_KEY,ids);
+			
+			if(relIDs != null)
+			{
+				pendingDeletes(pendingNodes,ids);
+				pendingDeletes(pendingRels,relIDs);
 			}
 		}
-		catch(Exception ex)
+		finally
 		{
-			logger.log(Level.WARNING, "Error getting rel", ex);
-			throw new NoGraphException("Error getting rel",ex);
+			unlockCounters();
 		}
-		return r;
 	}
-
-	@Override
-	public void ingestRelationships(List<Relationship> rels) throws NoGraphException 
+	
+	protected void deleteRelDocs(Collection<String> ids) throws NoGraphException
 	{
-		if(rels == null || rels.size() == 0) return;
-		
+		lockCounters();
 		try
 		{
-			Document doc = new Document();
-			int size = rels.size();
-			List<String> ids = getNextRelIDs(size);
-			Document d = null;
-			Relationship r = null;
-			
-			decorateRels(rels);
-			sampleRelMeta(rels);
-			
-			for(int i=0; i<size; i++)
+			if(countWrites())
 			{
-				doc.clear();
-				
-				r = rels.get(i);
-				r.setID(ids.get(i));
-				
-				d = relToDoc(r,doc);
-				
-				if(d != null)
+				Map<String,String[]> keys = getCountKeys(relIndex,ids,true);
+				Iterator<String[]> it = keys.values().iterator();
+				String k[] = null;
+				while(it.hasNext())
 				{
-					// d is the marker, doc is the actual reused instance
-					relIndex.saveDocument(doc);
+					k = it.next();
+					counters.addRelationship(k[0], k[1], k[2], -1);
 				}
 			}
 			
-			relIndex.commit();
+			relIndex.deleteDocuments(ID_KEY,ids);
+			if(countWrites()) pendingDeletes(pendingRels,ids);
 		}
-		catch(Exception ex)
+		finally
 		{
-			logger.log(Level.WARNING, "Error ingesting rels", ex);
-			throw new NoGraphException("Error ingesting rels", ex);
+			unlockCounters();
 		}
-
 	}
-
-	@Override
-	public void saveRelationships(List<Relationship> rels) throws NoGraphException 
+	
+	/**
+	 * Cache a private copy of a node just read, unless the read may have missed a write.
+	 * 
+	 * @param n
+	 * @param stamp taken from the cache before the read
+	 * @param current whether the searcher saw every write
+	 */
+	protected void cacheNode(Node n, long stamp, boolean current)
 	{
-		if(rels == null || rels.size() == 0) return;
-		
-		int size = rels.size();
+		if(nodeCache == null || n == null || !current) return;
 		
-		List<Relationship> newRels = new ArrayList<Relationship>(size/2);
-		List<Relationship> existingRels = new ArrayList<Relationship>(size/2);
-		List<String> delIDs = new ArrayList<String>(size/2);
+		Node copy = copyNode(n);
+		nodeCache.put(copy.getID(),copy,ObjectCache.estimateSize(copy.getPropertyMap())+64,stamp);
+	}
+	
+	protected void cacheRel(Relationship r, long stamp, boolean current)
+	{
+		if(relCache == null || r == null || !current) return;
 		
-		Relationship r = null;
-		for(int i=0; i<size; i++)
+		Relationship copy = copyRel(r);
+		relCache.put(copy.getID(),copy,ObjectCache.estimateSize(copy.getPropertyMap())+128,stamp);
+	}
+	
+	protected List<String> getIDs(List<? extends PropertyHolder> list, int start, int end)
+	{
+		List<String> ids = new ArrayList<String>(end-start);
+		for(int i=start; i<end; i++)
 		{
-			r = rels.get(i);
-			if(r.getID() == null)
-			{
-				newRels.add(r);
-			}
-			else
-			{
-				existingRels.add(r);
-				delIDs.add(r.getID());
-			}
+			ids.add(list.get(i).getID());
 		}
+		return ids;
+	}
+	
+	/**
+	 * Copies are cached and handed out so callers can change what they get back.
+	 * 
+	 * @param n
+	 * @return
+	 */
+	protected Node copyNode(Node n)
+	{
+		Node out = new GenericNode();
+		out.setID(n.getID());
+		out.setType(n.getType());
+		out.setPropertyMap(copyProperties(n.getPropertyMap()));
+		return out;
+	}
+	
+	protected Relationship copyRel(Relationship r)
+	{
+		Relationship out = new GenericRelationship();
+		out.setID(r.getID());
+		out.setType(r.getType());
+		out.setPropertyMap(copyProperties(r.getPropertyMap()));
 		
-		if(newRels.size() > 0)
+		// only the ids and types, fetched nodes are never cached with the relationship
+		Node n = null;
+		if(r.getNode1() != null)
 		{
-			// bulk insert with id assignment
-			ingestRelationships(newRels);
+			n = new GenericNode();
+			n.setID(r.getNode1ID());
+			n.setType(r.getNode1Type());
+			out.setNode1(n);
 		}
-		
-		if(existingRels.size() > 0)
+		if(r.getNode2() != null)
 		{
-			// we have to remove existing and add again
-			deleteNodesByID(delIDs);
-			try
-			{
-				Document doc = new Document();
-				size = existingRels.size();
-				Document d = null;
-
-				// new rels are decorated by ingestRelationships
-				decorateRels(existingRels);
-				sampleRelMeta(existingRels);
-				
-				for(int i=0; i<size; i++)
-				{
-					doc.clear();
-					
-					r = existingRels.get(i);
-					
-					d = relToDoc(r,doc);
-					
-					if(d != null)
-					{
-						// d is the marker, doc is the actual reused instance, expected to be the same
-						relIndex.saveDocument(doc);
-					}
-				}
-
-				relIndex.commit();
-			}
-			catch(Exception ex)
-			{
-				logger.log(Level.WARNING, "Error saving rels", ex);
-				throw new NoGraphException("Error saving rels", ex);
-			}
+			n = new GenericNode();
+			n.setID(r.getNode2ID());
+			n.setType(r.getNode2Type());
+			out.setNode2(n);
 		}
+		return out;
 	}
-
-	@Override
-	public void deleteRelationships(List<Relationship> rels) throws NoGraphException 
+	
+	/**
+	 * Stored values are strings and numbers, only the multi-valued lists need their own copy.
+	 * 
+	 * @param map
+	 * @return
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	protected Map<String,Object> copyProperties(Map<String,Object> map)
 	{
-		if(rels == null || rels.size() == 0) return;
-		int size = rels.size();
-		List<String> ids = new ArrayList<String>(size);
-		String id = null;
-		for(int i=0; i<size; i++)
+		Iterator<Map.Entry<String,Object>> it = map.entrySet().iterator();
+		Map.Entry<String,Object> me = null;
+		while(it.hasNext())
 		{
-			id = rels.get(i).getID();
-			if(id != null)
+			me = it.next();
+			if(me.getValue() instanceof List)
 			{
-				ids.add(id);
+				me.setValue(new ArrayList((List)me.getValue()));
 			}
 		}
-		
-		deleteRelationshipsByID(ids);
+		return map;
 	}
+	
+	/**
+	 * This is inspired by Neo4j's whitespace, lowercase analyzer.
+	 * 
+	 * @return
+	 */
+	protected Analyzer createDefaultAnalyzer()
+	{
+		/*
+		Analyzer anlzr = new Analyzer()
+	    {
+	        @Override
+	        protected TokenStreamComponents createComponents( String fieldName )
+	        {
+	            Tokenizer source = new WhitespaceTokenizer();
+	            TokenStream filter = new LowerCaseFilter( source );
+	            return new TokenStreamComponents( source, filter );
+	        }
 
-	@Override
-	public void deleteRelationshipsByID(List<String> ids) throws NoGraphException 
+	        @Override
+	        public String toString()
+	        {
+	            return "LOWER_CASE_WHITESPACE_ANALYZER";
+	        }
+	    };
+	    
+	    return anlzr;
+	    */
+		//stop words may be too much, but I really like seeing the punctuation going away
+	    return new StandardAnalyzer();
+	}
+	
+	/**
+	 * Queries on the keyword fields need to match the exact value, everything else is analyzed as before.
+	 * 
+	 * @param schema
+	 * @return
+	 */
+	protected Analyzer createQueryAnalyzer(int schema)
 	{
-		if(ids == null || ids.size() == 0) return;
+		Analyzer def = createDefaultAnalyzer();
+		if(schema < SCHEMA_KEYWORD_KEYS) return def;
 		
-		Term t = null;
-		int size = ids.size();
-		String id = null;
-		try
+		Map<String,Analyzer> m = new HashMap<String,Analyzer>();
+		Analyzer kw = new KeywordAnalyzer();
+		for(int i=0; i<NODE_KEYS.length; i++)
 		{
-			for(int i=0; i<size; i++)
-			{
-				id = ids.get(i);
-				t = new Term(ID_KEY,id);
-				relIndex.deleteDocuments(t);
-			}
-			
-			relIndex.commit();
-
+			m.put(NODE_KEYS[i], kw);
 		}
-		catch(Exception ex)
+		for(int i=0; i<REL_KEYS.length; i++)
 		{
-			throw new NoGraphException(ex);
+			m.put(REL_KEYS[i], kw);
 		}
+		return new PerFieldAnalyzerWrapper(def,m);
 	}
-
-	@Override
-	public List<Node> findNodes(String key, Object val) throws NoGraphException 
+	
+	/**
+	 * The schema from the last commit.  Empty indexes get the current one.
+	 * 
+	 * @param index
+	 * @param name for the log
+	 * @return
+	 */
+	protected int detectSchema(LuceneIndex index, String name)
 	{
-		if(val == null) return null;
-		if(key == null) return null;
-		
-		List<Node> nodes = null;
-		
-		try
+		String str = index.getCommitData().get(SCHEMA_KEY);
+		if(str != null)
 		{
-			List<Document> docs = null;			
-			
-			Query q = getQuery(key,val,nodeIndex.getAnalyzer());
-			
-			docs = nodeIndex.search(q);
-			
-			nodes = getNodesFromDocs(docs);
+			try
+			{
+				return Integer.parseInt(str.trim());
+			}
+			catch(Exception ex)
+			{
+				logger.warning("Bad schema " + str);
+			}
 		}
-		catch(Exception ex)
+		
+		if(index.maxDoc() > 0)
 		{
-			logger.log(Level.SEVERE, "Error searching nodes", ex);
-			throw new NoGraphException("Error searching nodes", ex);
+			logger.warning("The " + name + " index has analyzed id and type fields, run migrateSchema to use keyword fields");
+			return SCHEMA_ANALYZED_KEYS;
 		}
-		
-		return nodes;
+		return SCHEMA_KEYWORD_KEYS;
 	}
-
-	@Override
-	public List<Relationship> findRelationships(String key, Object val, boolean fetchNodes) throws NoGraphException 
+	
+	/**
+	 * @return true if either index still has analyzed id, type or node fields
+	 */
+	public boolean needsSchemaMigration()
 	{
-		if(val == null) return null;
-		if(key == null) return null;
+		return nodeSchema < SCHEMA_KEYWORD_KEYS || relSchema < SCHEMA_KEYWORD_KEYS;
+	}
+	
+	/**
+	 * Rewrite any index from before keyword fields so the id, type and node fields are exact match StringFields.
+	 * Every document is read back and written to a temporary index under the meta dir, then the live index is
+	 * replaced with it and both are committed.  Nothing else may write to the graph while this runs.
+	 * 
+	 * @return the number of documents rewritten
+	 * @throws NoGraphException
+	 */
+	public long migrateSchema() throws NoGraphException
+	{
+		if(readOnlyIndex) throw new NoGraphException("Graph is read only");
+		if(!needsSchemaMigration()) return 0;
 		
-		List<Relationship> rels = null;
+		long start = System.currentTimeMillis();
+		long count = 0;
+		
+		// anything buffered goes in with the old schema first
+		flush();
 		
 		try
 		{
-			List<Document> docs = null;
-			
-			Query q = getQuery(key,val,relIndex.getAnalyzer());
-			
-			docs = relIndex.search(q);
+			if(nodeSchema < SCHEMA_KEYWORD_KEYS)
+			{
+				nodeSchema = SCHEMA_KEYWORD_KEYS;
+				count += migrateIndex(nodeIndex,true);
+				nodeIndex.setAnalyzer(createQueryAnalyzer(nodeSchema));
+			}
 			
-			rels = getRelsFromDocs(docs, fetchNodes);
+			if(relSchema < SCHEMA_KEYWORD_KEYS)
+			{
+				relSchema = SCHEMA_KEYWORD_KEYS;
+				count += migrateIndex(relIndex,false);
+				relIndex.setAnalyzer(createQueryAnalyzer(relSchema));
+			}
 		}
 		catch(Exception ex)
 		{
-			logger.log(Level.SEVERE, "Error searching rels", ex);
-			throw new NoGraphException("Error searching rels", ex);
+			logger.log(Level.SEVERE, "Error migrating indexes", ex);
+			throw new NoGraphException("Error migrating indexes", ex);
+		}
+		finally
+		{
+			clearCache();
 		}
 		
-		return rels;
+		commitScheduler.written();
+		flush();
+		
+		logger.info("Migrated " + count + " documents in " + (System.currentTimeMillis()-start) + " ms");
+		return count;
 	}
 	
-	protected Query getQuery(String key, Object val, Analyzer analyzer)
+	protected long migrateIndex(LuceneIndex index, final boolean nodes) throws Exception
 	{
-		Query q = null;
-		if(val instanceof Number)
+		String tmp = metaDir + "migrate/" + (nodes?"nodes":"rels");
+		Directory dir = FSDirectory.open(Paths.get(tmp));
+		try
 		{
-			if(val instanceof Double)
-			{
-				q = DoublePoint.newExactQuery(key, (Double)val);
-			}
-			else if(val instanceof Integer)
-			{
-				q = IntPoint.newExactQuery(key, (Integer)val);
-			}
-			else if(val instanceof Long)
-			{
-				q = LongPoint.newExactQuery(key, (Long)val);
-			}
-			else if(val instanceof Float)
+			IndexWriterConfig iwc = indexSettings.createWriterConfig(createDefaultAnalyzer());
+			iwc.setOpenMode(OpenMode.CREATE);
+			final IndexWriter w = new IndexWriter(dir,iwc);
+			
+			final Document out = new Document();
+			final long skipped[] = new long[1];
+			long count = index.visitDocuments(new MatchAllDocsQuery(), new LuceneIndex.DocumentVisitor() {
+				public void visit(Document doc) throws IOException
+				{
+					// a fresh holder each time, docTo* leaves fields alone when the document has no value for them
+					out.clear();
+					Document d = null;
+					if(nodes)
+					{
+						GenericNode n = new GenericNode();
+						docToNode(doc,n);
+						d = nodeToDoc(n,out);
+					}
+					else
+					{
+						GenericRelationship r = new GenericRelationship();
+						docToRel(doc,r);
+						d = relToDoc(r,out);
+					}
+					
+					if(d == null)
+					{
+						skipped[0]++;
+						return;
+					}
+					w.addDocument(d);
+				}
+			});
+			
+			if(skipped[0] > 0)
 			{
-				q = FloatPoint.newExactQuery(key, (Float)val);
+				logger.warning("Dropped " + skipped[0] + " documents that could not be converted, relationships need both node ids");
+				count -= skipped[0];
 			}
+			w.close();
+			
+			// deleteAll drops the old field definitions too so the new ones can come in
+			IndexWriter live = index.getWriter();
+			live.deleteAll();
+			live.addIndexes(dir);
+			
+			return count;
 		}
-		else
+		finally
 		{
-			try
-			{
-				QueryParser qp = new QueryParser(key,analyzer);
-				
-				// need this for some queries
-				q = qp.parse(key+":"+String.valueOf(val));
-				
-				// need this for other queries!!!!!!
-				//q = new TermQuery(new Term(key,String.valueOf(val)));
-			}
-			catch(Exception ex)
+			dir.close();
+			File files[] = new File(tmp).listFiles();
+			if(files != null)
 			{
-				logger.warning("Error parsing query:"+ex.getMessage());
+				for(int i=0; i<files.length; i++)
+				{
+					files[i].delete();
+				}
 			}
+			new File(tmp).delete();
+			new File(metaDir + "migrate/").delete();
 		}
-		
-		return q;
 	}
 	
-	protected List<Node> getNodesFromDocs(List<Document> docs) throws NoGraphException
+	public static LuceneGraphManager getInstance(String name)
 	{
-		List<Node> nodes = null;
+		if(name == null || name.trim().length() == 0) name = NoGraphConfig.DEFAULT_NAME;
 		
-		if(docs != null)
+		if(graphMap == null)
 		{
-			int size = docs.size();
-			nodes = new ArrayList<Node>(size);
-			
-			Node n = null;
-			Document d = null;
-			
-			for(int i=0; i<size; i++)
+			synchronized(instsync)
 			{
-				d = docs.get(i);
-				n = docToNode(d,null);
-				if(n != null)
+				// yes, check again
+				if(graphMap == null)
 				{
-					nodes.add(n);
+					graphMap = new HashMap<String,LuceneGraphManager>();
 				}
-			}	
+			}
 		}
 		
-		return nodes;
-	}
-	
-	protected List<Relationship> getRelsFromDocs(List<Document> docs, boolean fetchNodes) throws NoGraphException
-	{
-		List<Relationship> rels = null;
+		LuceneGraphManager instance = null;
 		
-		if(docs != null)
+		instance = graphMap.get(name);
+		
+		if(instance == null)
 		{
-			int size = docs.size();
-			rels = new ArrayList<Relationship>(size);
-			
-			Relationship r = null;
-			Document d = null;
-			
-			for(int i=0; i<size; i++)
+			synchronized(instsync)
 			{
-				d = docs.get(i);
-				r = docToRel(d,null);
-				if(r != null)
+				// yes, check again
+				instance = graphMap.get(name);
+				if(instance == null)
 				{
-					rels.add(r);
+					instance = new LuceneGraphManager(name);
+					graphMap.put(name, instance);
 				}
-			}
-			
-			if(fetchNodes)
-			{
-				populateNodesForRels(rels);	
-			}
-		}		
+			}			
+		}
 		
-		return rels;
+		return instance;
 	}
 	
-    public List<Node> findNodes(GraphQuery query) throws NoGraphException
-    {
-    	List<Node> nodes = null;
-    	if(query == null)
-    	{
-    		logger.warning("Null query");
-    		return null;
-    	}
-    	
+	@Override
+	public String getName()
+	{
+		return name;
+	}
+	
+	@Override
+	public void setName(String str)
+	{
+		name = str;
+	}
+
+	@Override
+	public void saveNode(Node n) throws NoGraphException 
+	{
+		if(n == null) return;
+		
+		boolean isUpdate = true;
+		if(n.getID() == null)
+		{
+			String id = getNextNodeID();
+			n.setID(id);
+			isUpdate = false;
+		}
+		
+		long lsn = walSaveNodes(Collections.singletonList(n));
+		lockCounters();
 		try
 		{
-			List<Document> docs = null;			
-
-			
-			String qs = queryToString(query);
-			logger.info(qs);
-			
-			// use the same parser on ingest and query and it's all good
-			QueryParser qp = new QueryParser(TYPE_KEY,nodeIndex.getAnalyzer());
-			Query q = qp.parse(qs);
-			
-			//Query q = getQ(query.getCriterion(),nodeIndex.getAnalyzer());
-			//logger.info(q.toString());
+			decorateNode(n);
 			
-			int maxResults = query.getMaxResults();
+			Map<String,String[]> prev = null;
+			if(isUpdate && countWrites()) prev = getCountKeys(nodeIndex,Collections.singletonList(n.getID()),false);
 			
-			if(maxResults < 1)
+			Document doc = nodeToDoc(n,null);
+			if(isUpdate)
 			{
-				docs = nodeIndex.search(q);
+				// atomically replaces any existing version
+				nodeIndex.updateDocument(ID_KEY,n.getID(),doc);
 			}
 			else
 			{
-				docs = nodeIndex.search(q,maxResults);
+				nodeIndex.saveDocument(doc);
 			}
 			
-			nodes = getNodesFromDocs(docs);
+			if(countWrites()) countNodeWrite(n,prev);
+			
+			// the meta is persisted with the next commit
+			graphMeta.updateNodeMeta(n);
 		}
 		catch(Exception ex)
 		{
-			logger.log(Level.SEVERE, "Error searching nodes", ex);
-			throw new NoGraphException("Error searching nodes", ex);
+			logger.log(Level.WARNING, "Error saving node", ex);
+			throw new NoGraphException("Error saving node", ex);
 		}
-    	    	
-    	return nodes;
-    }
-    
-    public List<Relationship> findRelationships(GraphQuery query) throws NoGraphException
-    {
-    	List<Relationship> rels = null;
+		finally
+		{
+			unlockCounters();
+			uncacheNodes(Collections.singletonList(n.getID()),false);
+			walApplied(lsn);
+		}
+		
+		commitScheduler.written();
+		walSync(lsn);
+	}
 
-    	if(query == null)
-    	{
-    		logger.warning("Null query");
-    		return null;
-    	}
-    	
+	@Override
+	public void deleteNode(Node n) throws NoGraphException 
+	{
+		if(n == null) return;
+		if(n.getID() == null) throw new NoGraphException("No node id");
+
+		deleteNode(n.getID());
+	}
+
+	@Override
+	public void deleteNode(String id) throws NoGraphException 
+	{
+		long lsn = walDeleteNodes(Collections.singletonList(id));
 		try
 		{
-			List<Document> docs = null;			
+			deleteNodeDocs(Collections.singletonList(id));
+		}
+		catch(Exception ex)
+		{
+			throw new NoGraphException("Error deleting",ex);
+		}
+		finally
+		{
+			uncacheNodes(Collections.singleton(id),true);
+			walApplied(lsn);
+		}
+		
+		commitScheduler.written();
+		walSync(lsn);
+	}
 
-			String qs = queryToString(query);
-			logger.info(qs);
+	@Override
+	public Node getNode(String id) throws NoGraphException 
+	{
+		Node n = null;
+		
+		ObjectCache<Node> cache = nodeCache;
+		long stamp = 0;
+		if(cache != null)
+		{
+			n = cache.get(id);
+			if(n != null) return copyNode(n);
+			stamp = cache.getStamp();
+		}
+		
+		try
+		{
+			TermQuery tq = new TermQuery(new Term(ID_KEY,id));
+			boolean current[] = new boolean[1];
+			Document doc = nodeIndex.searchFirst(tq,current);
+			n = docToNode(doc,n);
 			
-			QueryParser qp = new QueryParser(TYPE_KEY,relIndex.getAnalyzer());
-			Query q = qp.parse(qs);
+			// a searcher missing some writes could hand back a version that was already invalidated
+			cacheNode(n,stamp,current[0]);
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error getting node", ex);
+			throw new NoGraphException("Error getting node",ex);
+		}
+		return n;
+	}
+
+	@Override
+	public void ingestNodes(List<Node> nodes) throws NoGraphException 
+	{
+		if(nodes == null || nodes.size() == 0) return;
+		
+		assignIDs(nodes);
+		long lsn = walSaveNodes(nodes);
+		try
+		{
+			// decorates as well
+			writeNodeDocs(nodes,false);
 			
-			int maxResults = query.getMaxResults();
+			sampleNodeMeta(nodes);
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error ingesting nodes", ex);
+			throw new NoGraphException("Error ingesting nodes", ex);
+		}
+		finally
+		{
+			walApplied(lsn);
+		}
+		
+		commitScheduler.written();
+		walSync(lsn);
+	}
+
+	@Override
+	public long ingestNodes(Stream<Node> nodes, IngestListener listener) throws NoGraphException
+	{
+		if(nodes == null) return 0;
+		
+		return ingestNodes(nodes.iterator(), listener);
+	}
+	
+	@Override
+	public long ingestNodes(Iterator<Node> nodes, IngestListener listener) throws NoGraphException
+	{
+		if(nodes == null) return 0;
+		
+		long total = 0;
+		long lsn = 0;
+		List<Node> chunk = new ArrayList<Node>(ingestChunkSize);
+		
+		try
+		{
+			while(nodes.hasNext())
+			{
+				chunk.add(nodes.next());
+				
+				if(chunk.size() == ingestChunkSize || !nodes.hasNext())
+				{
+					assignIDs(chunk);
+					lsn = walSaveNodes(chunk);
+					try
+					{
+						writeNodeDocs(chunk,false);
+					}
+					finally
+					{
+						walApplied(lsn);
+					}
+					sampleNodeMeta(chunk);
+					
+					total += chunk.size();
+					chunk.clear();
+					
+					if(listener != null) listener.ingested(total);
+				}
+			}
 			
-			if(maxResults < 1)
+			if(total > 0)
 			{
-				docs = relIndex.search(q);
+				commitScheduler.written();
+				walSync(lsn);
 			}
-			else
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error ingesting nodes", ex);
+			throw new NoGraphException("Error ingesting nodes", ex);
+		}
+		
+		return total;
+	}
+	
+	@Override
+	public long ingestRelationships(Stream<Relationship> rels, IngestListener listener) throws NoGraphException
+	{
+		if(rels == null) return 0;
+		
+		return ingestRelationships(rels.iterator(), listener);
+	}
+	
+	@Override
+	public long ingestRelationships(Iterator<Relationship> rels, IngestListener listener) throws NoGraphException
+	{
+		if(rels == null) return 0;
+		
+		long total = 0;
+		long lsn = 0;
+		List<Relationship> chunk = new ArrayList<Relationship>(ingestChunkSize);
+		
+		try
+		{
+			while(rels.hasNext())
 			{
-				docs = relIndex.search(q,maxResults);
+				chunk.add(rels.next());
+				
+				if(chunk.size() == ingestChunkSize || !rels.hasNext())
+				{
+					assignIDs(chunk);
+					lsn = walSaveRelationships(chunk);
+					try
+					{
+						writeRelDocs(chunk,false);
+					}
+					finally
+					{
+						walApplied(lsn);
+					}
+					sampleRelMeta(chunk);
+					
+					total += chunk.size();
+					chunk.clear();
+					
+					if(listener != null) listener.ingested(total);
+				}
 			}
 			
-			rels = getRelsFromDocs(docs,query.getFetchNodesForRelationships());
+			if(total > 0)
+			{
+				commitScheduler.written();
+				walSync(lsn);
+			}
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
 		}
 		catch(Exception ex)
 		{
-			logger.log(Level.SEVERE, "Error searching rels", ex);
-			throw new NoGraphException("Error searching rels", ex);
+			logger.log(Level.WARNING, "Error ingesting rels", ex);
+			throw new NoGraphException("Error ingesting rels", ex);
 		}
-
-    	return rels;
-    }
-
-	protected String queryToString(GraphQuery query)
+		
+		return total;
+	}
+	
+	public int getIngestChunkSize()
+	{
+		return ingestChunkSize;
+	}
+	
+	/**
+	 * The number of records the streaming ingest methods pull before handing them to the index.
+	 * 
+	 * @param size
+	 */
+	public void setIngestChunkSize(int size)
+	{
+		if(size > 0) ingestChunkSize = size;
+	}
+	
+	public int getStreamBatchSize()
+	{
+		return streamBatchSize;
+	}
+	
+	/**
+	 * The number of documents the result iterators read and decode at a time.
+	 * 
+	 * @param size
+	 */
+	public void setStreamBatchSize(int size)
+	{
+		if(size > 0) streamBatchSize = size;
+	}
+	
+	/**
+	 * Decorate, convert, and write the nodes to the index.  Large lists are split across the ingest workers.
+	 * 
+	 * @param nodes
+	 * @param upsert replace any existing document with the same id instead of just adding
+	 * @throws NoGraphException
+	 */
+	protected void writeNodeDocs(final List<Node> nodes, final boolean upsert) throws NoGraphException
 	{
-		Criterion crit = query.getCriterion();
-		if(crit == null)
+		lockCounters();
+		try
 		{
-			logger.warning("No criterion specified");
-			return null;
+			// what the upserts replace, read before any of them are written
+			final Map<String,String[]> prev = upsert && countWrites()?getCountKeys(nodeIndex,getIDs(nodes,0,nodes.size()),false):null;
+			
+			int size = nodes.size();
+			int nw = getIngestWorkers(size);
+			if(nw < 2)
+			{
+				writeNodeDocs(nodes,0,size,upsert,prev);
+				return;
+			}
+			
+			List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(nw);
+			int chunk = (size+nw-1)/nw;
+			for(int i=0; i<size; i+=chunk)
+			{
+				final int start = i;
+				final int end = Math.min(size, i+chunk);
+				tasks.add(new Callable<Object>() {
+					public Object call() throws Exception
+					{
+						writeNodeDocs(nodes,start,end,upsert,prev);
+						return null;
+					}
+				});
+			}
+			runIngestTasks(tasks);
+		}
+		finally
+		{
+			unlockCounters();
+		}
+	}
+	
+	/**
+	 * Single threaded conversion of part of the list.  Each caller gets its own reused Document.
+	 * 
+	 * @param nodes
+	 * @param start
+	 * @param end
+	 * @param upsert
+	 * @param prev the counter keys of the versions being replaced, null if not counting upserts
+	 * @throws NoGraphException
+	 */
+	protected void writeNodeDocs(List<Node> nodes, int start, int end, boolean upsert, Map<String,String[]> prev) throws NoGraphException
+	{
+		Document doc = new Document();
+		Document d = null;
+		Node n = null;
+		
+		try
+		{
+			for(int i=start; i<end; i++)
+			{
+				doc.clear();
+				
+				n = nodes.get(i);
+				decorateNode(n);
+				
+				d = nodeToDoc(n,doc);
+				
+				if(d != null)
+				{
+					// d is the marker, doc is the actual reused instance
+					if(upsert)
+					{
+						nodeIndex.updateDocument(ID_KEY,n.getID(),doc);
+					}
+					else
+					{
+						nodeIndex.saveDocument(doc);
+					}
+					
+					if(countWrites()) countNodeWrite(n,prev);
+				}				
+			}
+		}
+		finally
+		{
+			if(nodeCache != null) uncacheNodes(getIDs(nodes,start,end),false);
+		}
+	}
+	
+	protected void writeRelDocs(final List<Relationship> rels, final boolean upsert) throws NoGraphException
+	{
+		lockCounters();
+		try
+		{
+			final Map<String,String[]> prev = upsert && countWrites()?getCountKeys(relIndex,getIDs(rels,0,rels.size()),true):null;
+			
+			int size = rels.size();
+			int nw = getIngestWorkers(size);
+			if(nw < 2)
+			{
+				writeRelDocs(rels,0,size,upsert,prev);
+				return;
+			}
+			
+			List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(nw);
+			int chunk = (size+nw-1)/nw;
+			for(int i=0; i<size; i+=chunk)
+			{
+				final int start = i;
+				final int end = Math.min(size, i+chunk);
+				tasks.add(new Callable<Object>() {
+					public Object call() throws Exception
+					{
+						writeRelDocs(rels,start,end,upsert,prev);
+						return null;
+					}
+				});
+			}
+			runIngestTasks(tasks);
+		}
+		finally
+		{
+			unlockCounters();
+		}
+	}
+	
+	protected void writeRelDocs(List<Relationship> rels, int start, int end, boolean upsert, Map<String,String[]> prev) throws NoGraphException
+	{
+		Document doc = new Document();
+		Document d = null;
+		Relationship r = null;
+		
+		try
+		{
+			for(int i=start; i<end; i++)
+			{
+				doc.clear();
+				
+				r = rels.get(i);
+				decorateRel(r);
+				
+				d = relToDoc(r,doc);
+				
+				if(d != null)
+				{
+					// d is the marker, doc is the actual reused instance
+					if(upsert)
+					{
+						relIndex.updateDocument(ID_KEY,r.getID(),doc);
+					}
+					else
+					{
+						relIndex.saveDocument(doc);
+					}
+					
+					if(countWrites()) countRelWrite(r,prev);
+				}
+			}
+		}
+		finally
+		{
+			if(relCache != null) uncacheRels(getIDs(rels,start,end));
+		}
+	}
+	
+	/**
+	 * How many workers to use for a batch of this size.  Small batches stay on the calling thread.
+	 * 
+	 * @param size
+	 * @return
+	 */
+	protected int getIngestWorkers(int size)
+	{
+		if(ingestThreads < 2 || size < 2*MIN_PARALLEL_BATCH) return 1;
+		
+		return Math.min(ingestThreads, size/MIN_PARALLEL_BATCH);
+	}
+	
+	/**
+	 * Run the tasks on the ingest pool and wait for all of them.
+	 * 
+	 * @param tasks
+	 * @throws NoGraphException
+	 */
+	protected void runIngestTasks(List<Callable<Object>> tasks) throws NoGraphException
+	{
+		ExecutorService pool = getIngestPool();
+		List<Future<Object>> futures = new ArrayList<Future<Object>>(tasks.size());
+		
+		for(int i=0; i<tasks.size(); i++)
+		{
+			futures.add(pool.submit(tasks.get(i)));
+		}
+		
+		Exception err = null;
+		for(int i=0; i<futures.size(); i++)
+		{
+			try
+			{
+				futures.get(i).get();
+			}
+			catch(ExecutionException ex)
+			{
+				if(err == null) err = (ex.getCause() instanceof Exception)?(Exception)ex.getCause():ex;
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				if(err == null) err = ex;
+			}
+		}
+		
+		if(err != null)
+		{
+			if(err instanceof NoGraphException) throw (NoGraphException)err;
+			throw new NoGraphException("Error in ingest worker", err);
+		}
+	}
+	
+	protected ExecutorService getIngestPool()
+	{
+		synchronized(poolsync)
+		{
+			if(ingestPool == null)
+			{
+				final String prefix = "nograph-ingest-"+name+"-";
+				ingestPool = Executors.newFixedThreadPool(ingestThreads, new ThreadFactory() {
+					int cnt = 0;
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r,prefix+(cnt++));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			return ingestPool;
+		}
+	}
+	
+	public int getIngestThreads()
+	{
+		return ingestThreads;
+	}
+	
+	/**
+	 * Set the number of threads used to ingest large batches.  One means ingest on the calling thread.
+	 * The data decorator must be thread safe when this is more than one.
+	 * 
+	 * @param num
+	 */
+	public void setIngestThreads(int num)
+	{
+		synchronized(poolsync)
+		{
+			if(num < 1) num = 1;
+			ingestThreads = num;
+			if(ingestPool != null)
+			{
+				ingestPool.shutdown();
+				ingestPool = null;
+			}
+		}
+	}
+	
+	@Override
+	public void saveNodes(List<Node> nodes) throws NoGraphException 
+	{
+		if(nodes == null || nodes.size() == 0) return;
+		
+		int size = nodes.size();
+		
+		List<Node> newNodes = new ArrayList<Node>(size/2);
+		List<Node> existingNodes = new ArrayList<Node>(size/2);
+		
+		Node n = null;
+		for(int i=0; i<size; i++)
+		{
+			n = nodes.get(i);
+			if(n.getID() == null)
+			{
+				newNodes.add(n);
+			}
+			else
+			{
+				existingNodes.add(n);
+			}
+		}
+		
+		assignIDs(newNodes);
+		long lsn = walSaveNodes(nodes);
+		try
+		{
+			if(newNodes.size() > 0)
+			{
+				writeNodeDocs(newNodes,false);
+			}
+			
+			if(existingNodes.size() > 0)
+			{
+				// updateDocument replaces the old version, nothing to delete first
+				writeNodeDocs(existingNodes,true);
+			}
+			
+			sampleNodeMeta(nodes);
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error saving nodes", ex);
+			throw new NoGraphException("Error saving nodes", ex);
+		}
+		finally
+		{
+			walApplied(lsn);
+		}
+		
+		// one commit for the inserts and the updates
+		commitScheduler.written();
+		walSync(lsn);
+	}
+
+	@Override
+	public void deleteNodes(List<Node> nodes) throws NoGraphException 
+	{
+		if(nodes == null || nodes.size() == 0) return;
+		int size = nodes.size();
+		List<String> ids = new ArrayList<String>(size);
+		String id = null;
+		for(int i=0; i<size; i++)
+		{
+			id = nodes.get(i).getID();
+			if(id != null)
+			{
+				ids.add(id);
+			}
+		}
+		
+		deleteNodesByID(ids);
+	}
+
+	@Override
+	public void deleteNodesByID(List<String> ids) throws NoGraphException 
+	{
+		if(ids == null || ids.size() == 0) return;
+		
+		long lsn = walDeleteNodes(ids);
+		try
+		{
+			deleteNodeDocs(ids);
+		}
+		catch(Exception ex)
+		{
+			throw new NoGraphException(ex);
+		}
+		finally
+		{
+			uncacheNodes(ids,true);
+			walApplied(lsn);
+		}
+		
+		commitScheduler.written();
+		walSync(lsn);
+	}
+	
+	@Override
+	public long deleteNodes(GraphQuery query) throws NoGraphException
+	{
+		if(query == null || query.getCriterion() == null)
+		{
+			throw new NoGraphException("No criterion for delete");
+		}
+		
+		List<String> ids = null;
+		try
+		{
+			// the query has to see every earlier write
+			nodeIndex.waitForLatest();
+			
+			// need the ids to remove the relationships too
+			Query q = buildQuery(query,nodeIndex);
+			ids = nodeIndex.getFieldValues(q, ID_KEY);
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error finding nodes to delete", ex);
+			throw new NoGraphException("Error finding nodes to delete", ex);
+		}
+		
+		deleteNodesByID(ids);
+		
+		return ids.size();
+	}
+
+	@Override
+	public void saveRelationship(Relationship r) throws NoGraphException 
+	{
+		if(r == null) return;
+		
+		boolean isUpdate = true;
+		if(r.getID() == null)
+		{
+			String id = getNextRelID();
+			r.setID(id);
+			isUpdate = false;
+		}
+		
+		if(r.getNode1ID() == null || r.getNode2ID() == null)
+		{
+			throw new NoGraphException("Relationship must have node1 and node2 with ids");
+		}
+		
+		long lsn = walSaveRelationships(Collections.singletonList(r));
+		lockCounters();
+		try
+		{
+			decorateRel(r);
+			Document doc = relToDoc(r,null);
+			if(doc == null)
+			{
+				throw new NoGraphException("Relationship must have node1 and node2 with ids");
+			}
+			
+			Map<String,String[]> prev = null;
+			if(isUpdate && countWrites()) prev = getCountKeys(relIndex,Collections.singletonList(r.getID()),true);
+			
+			if(isUpdate)
+			{
+				// atomically replaces any existing version
+				relIndex.updateDocument(ID_KEY,r.getID(),doc);
+			}
+			else
+			{
+				relIndex.saveDocument(doc);
+			}
+			
+			if(countWrites()) countRelWrite(r,prev);
+			
+			// the meta is persisted with the next commit
+			graphMeta.updateRelationshipMeta(r);
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error saving rel", ex);
+			throw new NoGraphException("Error saving rel", ex);
+		}
+		finally
+		{
+			unlockCounters();
+			uncacheRels(Collections.singletonList(r.getID()));
+			walApplied(lsn);
+		}
+		
+		commitScheduler.written();
+		walSync(lsn);
+	}
+
+	@Override
+	public void deleteRelationship(Relationship r) throws NoGraphException 
+	{
+		if(r == null) return;
+		if(r.getID() == null) throw new NoGraphException("No rel id");
+
+		deleteRelationship(r.getID());
+	}
+
+	@Override
+	public void deleteRelationship(String id) throws NoGraphException
+	{
+		long lsn = walDeleteRelationships(Collections.singletonList(id));
+		try
+		{
+			deleteRelDocs(Collections.singletonList(id));
+		}
+		catch(Exception ex)
+		{
+			throw new NoGraphException("Error deleting",ex);
+		}
+		finally
+		{
+			uncacheRels(Collections.singletonList(id));
+			walApplied(lsn);
+		}
+		
+		commitScheduler.written();
+		walSync(lsn);
+	}
+
+	@Override
+	public Relationship getRelationship(String id, boolean fetchNodes) throws NoGraphException 
+	{
+		Relationship r = null;
+		
+		ObjectCache<Relationship> cache = relCache;
+		long stamp = 0;
+		if(cache != null)
+		{
+			r = cache.get(id);
+			if(r != null)
+			{
+				r = copyRel(r);
+				if(fetchNodes)
+				{
+					populateNodesForRels(Collections.singletonList(r));
+				}
+				return r;
+			}
+			stamp = cache.getStamp();
+		}
+		
+		try
+		{
+			TermQuery tq = new TermQuery(new Term(ID_KEY,id));
+			boolean current[] = new boolean[1];
+			Document doc = relIndex.searchFirst(tq,current);
+			if(doc != null)
+			{
+				r = docToRel(doc,r);
+				cacheRel(r,stamp,current[0]);
+				
+				List<Relationship> tmp = new ArrayList<Relationship>();
+				tmp.add(r);
+				
+				if(fetchNodes)
+				{
+					populateNodesForRels(tmp);
+				}
+			}
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error getting rel", ex);
+			throw new NoGraphException("Error getting rel",ex);
+		}
+		return r;
+	}
+
+	@Override
+	public void ingestRelationships(List<Relationship> rels) throws NoGraphException 
+	{
+		if(rels == null || rels.size() == 0) return;
+		
+		assignIDs(rels);
+		long lsn = walSaveRelationships(rels);
+		try
+		{
+			// decorates as well
+			writeRelDocs(rels,false);
+			
+			sampleRelMeta(rels);
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error ingesting rels", ex);
+			throw new NoGraphException("Error ingesting rels", ex);
+		}
+		finally
+		{
+			walApplied(lsn);
+		}
+		
+		commitScheduler.written();
+		walSync(lsn);
+
+	}
+
+	@Override
+	public void saveRelationships(List<Relationship> rels) throws NoGraphException 
+	{
+		if(rels == null || rels.size() == 0) return;
+		
+		int size = rels.size();
+		
+		List<Relationship> newRels = new ArrayList<Relationship>(size/2);
+		List<Relationship> existingRels = new ArrayList<Relationship>(size/2);
+		
+		Relationship r = null;
+		for(int i=0; i<size; i++)
+		{
+			r = rels.get(i);
+			if(r.getID() == null)
+			{
+				newRels.add(r);
+			}
+			else
+			{
+				existingRels.add(r);
+			}
+		}
+		
+		assignIDs(newRels);
+		long lsn = walSaveRelationships(rels);
+		try
+		{
+			if(newRels.size() > 0)
+			{
+				writeRelDocs(newRels,false);
+			}
+			
+			if(existingRels.size() > 0)
+			{
+				// updateDocument replaces the old version, nothing to delete first
+				writeRelDocs(existingRels,true);
+			}
+			
+			sampleRelMeta(rels);
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error saving rels", ex);
+			throw new NoGraphException("Error saving rels", ex);
+		}
+		finally
+		{
+			walApplied(lsn);
+		}
+		
+		// one commit for the inserts and the updates
+		commitScheduler.written();
+		walSync(lsn);
+	}
+
+	@Override
+	public void deleteRelationships(List<Relationship> rels) throws NoGraphException 
+	{
+		if(rels == null || rels.size() == 0) return;
+		int size = rels.size();
+		List<String> ids = new ArrayList<String>(size);
+		String id = null;
+		for(int i=0; i<size; i++)
+		{
+			id = rels.get(i).getID();
+			if(id != null)
+			{
+				ids.add(id);
+			}
+		}
+		
+		deleteRelationshipsByID(ids);
+	}
+
+	@Override
+	public void deleteRelationshipsByID(List<String> ids) throws NoGraphException 
+	{
+		if(ids == null || ids.size() == 0) return;
+		
+		long lsn = walDeleteRelationships(ids);
+		try
+		{
+			deleteRelDocs(ids);
+		}
+		catch(Exception ex)
+		{
+			throw new NoGraphException(ex);
+		}
+		finally
+		{
+			uncacheRels(ids);
+			walApplied(lsn);
+		}
+		
+		commitScheduler.written();
+		walSync(lsn);
+	}
+	
+	@Override
+	public long deleteRelationships(GraphQuery query) throws NoGraphException
+	{
+		if(query == null || query.getCriterion() == null)
+		{
+			throw new NoGraphException("No criterion for delete");
+		}
+		
+		long count = 0;
+		try
+		{
+			Query q = buildQuery(query,relIndex);
+			if(wal != null)
+			{
+				// the log records ids, not queries
+				relIndex.waitForLatest();
+				List<String> ids = relIndex.getFieldValues(q, ID_KEY);
+				deleteRelationshipsByID(ids);
+				return ids.size();
+			}
+			
+			lockCounters();
+			try
+			{
+				// the count and delete have to see every earlier write, a stale searcher would count 0 and skip the delete
+				relIndex.waitForLatest();
+				count = relIndex.count(q);
+				if(count > 0)
+				{
+					final List<String> relIDs = new ArrayList<String>();
+					if(countWrites())
+					{
+						relIndex.visitDocuments(q, getCountFields(), new LuceneIndex.DocumentVisitor() {
+							public void visit(Document doc) throws IOException
+							{
+								countRelDoc(doc,-1);
+								relIDs.add(doc.get(ID_KEY));
+							}
+						});
+					}
+					
+					relIndex.deleteDocuments(q);
+					if(countWrites()) pendingDeletes(pendingRels,relIDs);
+					
+					// no ids to go by
+					if(relCache != null) relCache.clear();
+				}
+			}
+			finally
+			{
+				unlockCounters();
+			}
+			if(count > 0) commitScheduler.written();
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error deleting rels", ex);
+			throw new NoGraphException("Error deleting rels", ex);
+		}
+		
+		return count;
+	}
+
+	@Override
+	public List<Node> findNodes(String key, Object val) throws NoGraphException 
+	{
+		if(val == null) return null;
+		if(key == null) return null;
+		
+		List<Node> nodes = null;
+		
+		try
+		{
+			List<Document> docs = null;			
+			
+			Query q = getQuery(key,val,nodeIndex.getAnalyzer());
+			
+			docs = nodeIndex.search(q);
+			
+			nodes = getNodesFromDocs(docs);
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.SEVERE, "Error searching nodes", ex);
+			throw new NoGraphException("Error searching nodes", ex);
+		}
+		
+		return nodes;
+	}
+
+	@Override
+	public List<Relationship> findRelationships(String key, Object val, boolean fetchNodes) throws NoGraphException 
+	{
+		if(val == null) return null;
+		if(key == null) return null;
+		
+		List<Relationship> rels = null;
+		
+		try
+		{
+			List<Document> docs = null;
+			
+			Query q = getQuery(key,val,relIndex.getAnalyzer());
+			
+			docs = relIndex.search(q);
+			
+			rels = getRelsFromDocs(docs, fetchNodes);
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.SEVERE, "Error searching rels", ex);
+			throw new NoGraphException("Error searching rels", ex);
+		}
+		
+		return rels;
+	}
+	
+	protected Query getQuery(String key, Object val, Analyzer analyzer)
+	{
+		Query q = null;
+		if(val instanceof Number)
+		{
+			if(val instanceof Double)
+			{
+				q = DoublePoint.newExactQuery(key, (Double)val);
+			}
+			else if(val instanceof Integer)
+			{
+				q = IntPoint.newExactQuery(key, (Integer)val);
+			}
+			else if(val instanceof Long)
+			{
+				q = LongPoint.newExactQuery(key, (Long)val);
+			}
+			else if(val instanceof Float)
+			{
+				q = FloatPoint.newExactQuery(key, (Float)val);
+			}
+		}
+		else
+		{
+			try
+			{
+				QueryParser qp = new QueryParser(key,analyzer);
+				
+				// need this for some queries
+				q = qp.parse(key+":"+String.valueOf(val));
+				
+				// need this for other queries!!!!!!
+				//q = new TermQuery(new Term(key,String.valueOf(val)));
+			}
+			catch(Exception ex)
+			{
+				logger.warning("Error parsing query:"+ex.getMessage());
+			}
+		}
+		
+		return q;
+	}
+	
+	/**
+	 * The stored fields to load for a projection, always including the id, type and for relationships the node
+	 * keys.  Property names are lower cased the same way they are when indexed.
+	 * 
+	 * @param fields
+	 * @param rels
+	 * @return null to load everything
+	 */
+	protected Set<String> getLoadFields(List<String> fields, boolean rels)
+	{
+		if(fields == null) return null;
+		
+		Set<String> load = new HashSet<String>();
+		Collections.addAll(load, NODE_KEYS);
+		if(rels) Collections.addAll(load, REL_KEYS);
+		
+		int size = fields.size();
+		String key = null;
+		for(int i=0; i<size; i++)
+		{
+			key = fields.get(i);
+			if(key != null) load.add(key.toLowerCase());
+		}
+		return load;
+	}
+	
+	/**
+	 * @param fields
+	 * @param rels
+	 * @return true if every field has a doc values copy
+	 */
+	protected boolean isKeysOnly(Set<String> fields, boolean rels)
+	{
+		if(fields == null) return false;
+		
+		int num = NODE_KEYS.length;
+		if(rels) num += REL_KEYS.length;
+		return fields.size() == num;
+	}
+	
+	protected List<Node> getNodesFromDocs(List<Document> docs) throws NoGraphException
+	{
+		List<Node> nodes = null;
+		
+		if(docs != null)
+		{
+			int size = docs.size();
+			nodes = new ArrayList<Node>(size);
+			
+			Node n = null;
+			Document d = null;
+			
+			for(int i=0; i<size; i++)
+			{
+				d = docs.get(i);
+				n = docToNode(d,null);
+				if(n != null)
+				{
+					nodes.add(n);
+				}
+			}	
+		}
+		
+		return nodes;
+	}
+	
+	protected List<Relationship> getRelsFromDocs(List<Document> docs, boolean fetchNodes) throws NoGraphException
+	{
+		List<Relationship> rels = null;
+		
+		if(docs != null)
+		{
+			int size = docs.size();
+			rels = new ArrayList<Relationship>(size);
+			
+			Relationship r = null;
+			Document d = null;
+			
+			for(int i=0; i<size; i++)
+			{
+				d = docs.get(i);
+				r = docToRel(d,null);
+				if(r != null)
+				{
+					rels.add(r);
+				}
+			}
+			
+			if(fetchNodes)
+			{
+				populateNodesForRels(rels);	
+			}
+		}		
+		
+		return rels;
+	}
+	
+    public List<Node> findNodes(GraphQuery query) throws NoGraphException
+    {
+    	List<Node> nodes = null;
+    	if(query == null)
+    	{
+    		logger.warning("Null query");
+    		return null;
+    	}
+    	
+		try
+		{
+			List<Document> docs = null;			
+
+			Query q = buildQuery(query,nodeIndex);
+			
+			int maxResults = query.getMaxResults();
+			if(maxResults < 1) maxResults = nodeIndex.getDefaultMaxHits();
+			
+			Set<String> fields = getLoadFields(query.getFields(),false);
+			docs = nodeIndex.search(q,maxResults,fields,isKeysOnly(fields,false));
+			
+			nodes = getNodesFromDocs(docs);
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.SEVERE, "Error searching nodes", ex);
+			throw new NoGraphException("Error searching nodes", ex);
+		}
+    	    	
+    	return nodes;
+    }
+    
+    public List<Relationship> findRelationships(GraphQuery query) throws NoGraphException
+    {
+    	List<Relationship> rels = null;
+
+    	if(query == null)
+    	{
+    		logger.warning("Null query");
+    		return null;
+    	}
+    	
+		try
+		{
+			List<Document> docs = null;			
+
+			Query q = buildQuery(query,relIndex);
+			
+			int maxResults = query.getMaxResults();
+			if(maxResults < 1) maxResults = relIndex.getDefaultMaxHits();
+			
+			Set<String> fields = getLoadFields(query.getFields(),true);
+			docs = relIndex.search(q,maxResults,fields,isKeysOnly(fields,true));
+			
+			rels = getRelsFromDocs(docs,query.getFetchNodesForRelationships());
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.SEVERE, "Error searching rels", ex);
+			throw new NoGraphException("Error searching rels", ex);
+		}
+
+    	return rels;
+    }
+
+    public ResultPage<Node> findNodesPage(GraphQuery query) throws NoGraphException
+    {
+    	if(query == null)
+    	{
+    		logger.warning("Null query");
+    		return null;
+    	}
+    	
+		try
+		{
+			Query q = buildQuery(query,nodeIndex);
+			
+			// pages are in id order and the cursor is the last id, so it stays valid across updates and merges
+			String cursor[] = {query.getCursor()};
+			Set<String> fields = getLoadFields(query.getFields(),false);
+			List<Document> docs = nodeIndex.searchAfter(q,query.getPageSize(),ID_KEY,cursor,fields,isKeysOnly(fields,false));
+			
+			return new ResultPage<Node>(getNodesFromDocs(docs),cursor[0]);
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.SEVERE, "Error searching nodes", ex);
+			throw new NoGraphException("Error searching nodes", ex);
+		}
+    }
+    
+    public ResultPage<Relationship> findRelationshipsPage(GraphQuery query) throws NoGraphException
+    {
+    	if(query == null)
+    	{
+    		logger.warning("Null query");
+    		return null;
+    	}
+    	
+		try
+		{
+			Query q = buildQuery(query,relIndex);
+			
+			String cursor[] = {query.getCursor()};
+			Set<String> fields = getLoadFields(query.getFields(),true);
+			List<Document> docs = relIndex.searchAfter(q,query.getPageSize(),ID_KEY,cursor,fields,isKeysOnly(fields,true));
+			
+			return new ResultPage<Relationship>(getRelsFromDocs(docs,query.getFetchNodesForRelationships()),cursor[0]);
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.SEVERE, "Error searching rels", ex);
+			throw new NoGraphException("Error searching rels", ex);
+		}
+    }
+
+    public ResultIterator<Node> iterateNodes(GraphQuery query) throws NoGraphException
+    {
+    	if(query == null)
+    	{
+    		logger.warning("Null query");
+    		return null;
+    	}
+    	
+    	LuceneIndex.DocumentBatches batches = null;
+		try
+		{
+			Query q = buildQuery(query,nodeIndex);
+			Set<String> fields = getLoadFields(query.getFields(),false);
+			batches = nodeIndex.openBatches(q,streamBatchSize,fields,isKeysOnly(fields,false));
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.SEVERE, "Error searching nodes", ex);
+			throw new NoGraphException("Error searching nodes", ex);
+		}
+		
+		return new BatchIterator<Node>(batches) {
+			protected List<Node> decode(List<Document> docs) throws NoGraphException
+			{
+				return getNodesFromDocs(docs);
+			}
+		};
+    }
+    
+    public ResultIterator<Relationship> iterateRelationships(GraphQuery query) throws NoGraphException
+    {
+    	if(query == null)
+    	{
+    		logger.warning("Null query");
+    		return null;
+    	}
+    	
+    	LuceneIndex.DocumentBatches batches = null;
+		try
+		{
+			Query q = buildQuery(query,relIndex);
+			Set<String> fields = getLoadFields(query.getFields(),true);
+			batches = relIndex.openBatches(q,streamBatchSize,fields,isKeysOnly(fields,true));
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.SEVERE, "Error searching rels", ex);
+			throw new NoGraphException("Error searching rels", ex);
+		}
+		
+		// nodes are fetched a batch at a time too
+		final boolean fetchNodes = query.getFetchNodesForRelationships();
+		return new BatchIterator<Relationship>(batches) {
+			protected List<Relationship> decode(List<Document> docs) throws NoGraphException
+			{
+				return getRelsFromDocs(docs,fetchNodes);
+			}
+		};
+    }
+    
+    public Stream<Node> streamNodes(GraphQuery query) throws NoGraphException
+    {
+    	ResultIterator<Node> it = iterateNodes(query);
+    	if(it == null) return null;
+    	return toStream(it);
+    }
+    
+    public Stream<Relationship> streamRelationships(GraphQuery query) throws NoGraphException
+    {
+    	ResultIterator<Relationship> it = iterateRelationships(query);
+    	if(it == null) return null;
+    	return toStream(it);
+    }
+    
+    protected <T> Stream<T> toStream(final ResultIterator<T> it)
+    {
+    	Stream<T> stream = StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED|Spliterator.NONNULL), false);
+    	return stream.onClose(new Runnable() {
+    		public void run()
+    		{
+    			it.close();
+    		}
+    	});
+    }
+    
+	/**
+	 * Turn the graph query into a Lucene query for the given index.
+	 * 
+	 * @param query
+	 * @param index
+	 * @return
+	 * @throws Exception
+	 */
+	protected Query buildQuery(GraphQuery query, LuceneIndex index) throws Exception
+	{
+		// plans depend on the analyzer, which depends on the schema of the index
+		String scope = (index == relIndex?"r":"n") + (index == relIndex?relSchema:nodeSchema) + ":";
+		Query q = queryCompiler.compile(query.getCriterion(),index.getAnalyzer(),scope);
+		
+		if(logger.isLoggable(Level.FINE)) logger.fine(q.toString());
+		
+		return q;
+	}
+	
+	/**
+	 * @return the compiler turning GraphQuery criteria into Lucene queries
+	 */
+	public QueryCompiler getQueryCompiler()
+	{
+		return queryCompiler;
+	}
+	
+	/**
+	 * Keyword fields hold the whole value as one term, so it goes to the parser quoted or spaces and operators
+	 * in it would split it up.
+	 * 
+	 * @param key
+	 * @param val
+	 * @return
+	 */
+	protected String keyValue(String key, Object val)
+	{
+		String str = String.valueOf(val);
+		if(isKeyField(key))
+		{
+			str = "\"" + str.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+		}
+		return str;
+	}
+	
+	protected boolean isKeyField(String key)
+	{
+		for(int i=0; i<NODE_KEYS.length; i++)
+		{
+			if(NODE_KEYS[i].equals(key)) return true;
+		}
+		for(int i=0; i<REL_KEYS.length; i++)
+		{
+			if(REL_KEYS[i].equals(key)) return true;
+		}
+		return false;
+	}
+	
+	protected List<String> analyze(String text, Analyzer analyzer)
+	{
+		return analyze("",text,analyzer);
+	}
+	
+	/**
+	 * Analyze the text as if it were going into the field, which matters for per field analyzers.
+	 * 
+	 * @param field
+	 * @param text
+	 * @param analyzer
+	 * @return
+	 */
+	protected List<String> analyze(String field, String text, Analyzer analyzer)
+	{
+	    List<String> out = new ArrayList<String>();
+	    TokenStream ts = null;
+	    try
+	    {
+		    ts = analyzer.tokenStream(field, text);
+		    CharTermAttribute attr = ts.addAttribute(CharTermAttribute.class);
+		    ts.reset();
+		    while(ts.incrementToken()) {
+		       out.add(attr.toString());
+		    }
+	    }
+	    catch(Exception ex)
+	    {
+	    	logger.info("Error analyzing text:" + ex.getMessage());
+	    }
+	    finally
+	    {
+	    	if(ts != null)try{ts.close();}catch(Exception ex){};
+	    }
+	    return out;
+	}
+	
+	@Override
+	public List<Node> getNodes(Collection<String> ids) throws NoGraphException
+	{
+		if(ids == null) return null;
+		
+		Map<String,Node> m = buildNodeMap(ids);
+		List<Node> nodes = new ArrayList<Node>(ids.size());
+		for(String id:ids)
+		{
+			nodes.add(m.get(id));
+		}
+		return nodes;
+	}
+	
+	@Override
+	public List<Relationship> getRelationships(Collection<String> ids, boolean fetchNodes) throws NoGraphException
+	{
+		if(ids == null) return null;
+		
+		Map<String,Relationship> m = buildRelMap(ids);
+		List<Relationship> rels = new ArrayList<Relationship>(ids.size());
+		List<Relationship> found = new ArrayList<Relationship>(m.size());
+		Relationship r = null;
+		for(String id:ids)
+		{
+			r = m.get(id);
+			rels.add(r);
+			if(r != null) found.add(r);
+		}
+		
+		if(fetchNodes)
+		{
+			populateNodesForRels(found);
+		}
+		return rels;
+	}
+	
+	/**
+	 * Fetch the nodes by id and then return as a map.  Cached nodes are used first and the rest are read in
+	 * chunks from one searcher.  Ids that aren't found are not in the map.
+	 * 
+	 * @param ids
+	 * @return
+	 * @throws NoGraphException
+	 */
+	protected Map<String,Node> buildNodeMap(Collection<String> ids) throws NoGraphException
+	{
+		Map<String,Node> m = new HashMap<String,Node>();
+		if(ids == null || ids.size() == 0) return m;
+		
+		Set<String> need = new HashSet<String>(ids);
+		need.remove(null);
+		
+		ObjectCache<Node> cache = nodeCache;
+		long stamp = 0;
+		if(cache != null)
+		{
+			Iterator<String> iter = need.iterator();
+			String id = null;
+			Node n = null;
+			while(iter.hasNext())
+			{
+				id = iter.next();
+				n = cache.get(id);
+				if(n != null)
+				{
+					m.put(id, copyNode(n));
+					iter.remove();
+				}
+			}
+			stamp = cache.getStamp();
+		}
+		
+		if(need.size() == 0) return m;
+		
+		logger.fine("Building node map for " + need.size() + " nodes");
+		
+		boolean current[] = new boolean[1];
+		Map<String,Document> docs = nodeIndex.getDocuments(ID_KEY,need,current);
+		Iterator<Map.Entry<String,Document>> iter = docs.entrySet().iterator();
+		Map.Entry<String,Document> me = null;
+		Node n = null;
+		while(iter.hasNext())
+		{
+			me = iter.next();
+			n = docToNode(me.getValue(),null);
+			if(n != null)
+			{
+				m.put(me.getKey(), n);
+				cacheNode(n,stamp,current[0]);
+			}
+		}
+		
+		return m;
+	}
+	
+	/**
+	 * Same as buildNodeMap for relationships, without their nodes.
+	 * 
+	 * @param ids
+	 * @return
+	 * @throws NoGraphException
+	 */
+	protected Map<String,Relationship> buildRelMap(Collection<String> ids) throws NoGraphException
+	{
+		Map<String,Relationship> m = new HashMap<String,Relationship>();
+		if(ids == null || ids.size() == 0) return m;
+		
+		Set<String> need = new HashSet<String>(ids);
+		need.remove(null);
+		
+		ObjectCache<Relationship> cache = relCache;
+		long stamp = 0;
+		if(cache != null)
+		{
+			Iterator<String> iter = need.iterator();
+			String id = null;
+			Relationship r = null;
+			while(iter.hasNext())
+			{
+				id = iter.next();
+				r = cache.get(id);
+				if(r != null)
+				{
+					m.put(id, copyRel(r));
+					iter.remove();
+				}
+			}
+			stamp = cache.getStamp();
+		}
+		
+		if(need.size() == 0) return m;
+		
+		boolean current[] = new boolean[1];
+		Map<String,Document> docs = relIndex.getDocuments(ID_KEY,need,current);
+		Iterator<Map.Entry<String,Document>> iter = docs.entrySet().iterator();
+		Map.Entry<String,Document> me = null;
+		Relationship r = null;
+		while(iter.hasNext())
+		{
+			me = iter.next();
+			r = docToRel(me.getValue(),null);
+			if(r != null)
+			{
+				m.put(me.getKey(), r);
+				cacheRel(r,stamp,current[0]);
+			}
+		}
+		
+		return m;
+	}
+	
+	/**
+	 * The relationships have node ids, now let's turn them into full nodes.
+	 * 
+	 * @param rels
+	 * @throws NoGraphException
+	 */
+	protected void populateNodesForRels(List<Relationship> rels) throws NoGraphException
+	{
+		if(rels == null || rels.size() == 0) return;
+		
+		Map<String,Node> nodeMap = new HashMap<String,Node>();
+		
+		int size = rels.size();
+		Node n = null;
+		String id = null;
+		Relationship r = null;
+		
+		Map<String,String> mids = new HashMap<String,String>();
+		
+		String hold = "";
+		
+		// first pass is to build ids
+        for(int i=0; i<size; i++)
+        {
+        	r = rels.get(i);
+        	mids.put(r.getNode1ID(),hold);
+        	mids.put(r.getNode2ID(),hold);
+        }
+        
+        // one bulk read, anything missing from the map isn't in the graph
+        nodeMap = buildNodeMap(mids.keySet());
+        
+        for(int i=0; i<size; i++)
+        {
+        	r = rels.get(i);
+
+        	id = r.getNode1ID();
+        	n = nodeMap.get(id);
+        	r.setNode1(n);
+        	
+        	id = r.getNode2ID();
+        	n = nodeMap.get(id);
+        	r.setNode2(n);
+        }
+	}
+	
+	/**
+	 * Convert Lucene document to node, filling the instance if not null, creating one otherwise.
+	 * 
+	 * @param doc
+	 * @param n
+	 * @return
+	 */
+	protected Node docToNode(Document doc, Node n)
+	{
+		if(doc == null) return null;
+		if(n == null) n = new GenericNode();
+		
+		Map<String,Object> map = LuceneUtil.fromDoc(doc);
+		
+		Object val = null;
+		
+		val = map.get(ID_KEY);
+		if(val != null)
+		{
+			n.setID(String.valueOf(val));
+		}
+		map.remove(ID_KEY);
+		
+		val = map.get(TYPE_KEY);
+		if(val != null)
+		{
+			n.setType(String.valueOf(val));
+		}
+		map.remove(TYPE_KEY);
+		
+		n.setPropertyMap(map);
+		
+		return n;
+	}
+	
+	protected Document nodeToDoc(Node n, Document doc)
+	{
+		if(n == null) return null;
+		if(doc == null) doc = new Document();
+		
+		Map<String,Object> map = n.getPropertyMap();
+		map.put(ID_KEY, n.getID());
+		map.put(TYPE_KEY, n.getType());
+		
+		// stored value
+		if(map.containsKey(BasePropertyHolder.SV_KEY))
+		{
+			String sv = n.getStoredValue();
+			map.remove(BasePropertyHolder.SV_KEY);
+			if(sv != null)
+			{
+				doc.add(new StoredField(BasePropertyHolder.SV_KEY,sv));
+			}
+		}
+		
+		if(nodeSchema >= SCHEMA_KEYWORD_KEYS)
+		{
+			addKeyFields(map,NODE_KEYS,doc);
+		}
+		
+		LuceneUtil.toDoc(map, doc, true);
+		
+		// lets id and type only queries skip the stored fields
+		LuceneUtil.addDocValues(doc, ID_KEY, n.getID());
+		LuceneUtil.addDocValues(doc, TYPE_KEY, n.getType());
+		
+		return doc;
+	}
+	
+	protected Relationship docToRel(Document doc, Relationship r)
+	{
+		if(doc == null) return null;
+		if(r == null) r = new GenericRelationship();
+		
+		Map<String,Object> map = LuceneUtil.fromDoc(doc);
+		
+		Object val = null;
+		
+		val = map.get(ID_KEY);
+		if(val != null)
+		{
+			r.setID(String.valueOf(val));
+		}
+		map.remove(ID_KEY);
+		
+		val = map.get(TYPE_KEY);
+		if(val != null)
+		{
+			r.setType(String.valueOf(val));
+		}
+		map.remove(TYPE_KEY);
+		
+		val = map.get(N1_KEY);
+		if(val != null)
+		{
+			Node n = new GenericNode();
+			n.setID(String.valueOf(val));
+			r.setNode1(n);
+			val = map.get(N1_TYPEKEY);
+			if(val != null)
+			{
+				n.setType(String.valueOf(val));
+			}
+		}
+		map.remove(N1_KEY);
+		map.remove(N1_TYPEKEY);
+		
+		val = map.get(N2_KEY);
+		if(val != null)
+		{
+			Node n = new GenericNode();
+			n.setID(String.valueOf(val));
+			r.setNode2(n);
+			val = map.get(N2_TYPEKEY);
+			if(val != null)
+			{
+				n.setType(String.valueOf(val));
+			}
 		}
+		map.remove(N2_KEY);
+		map.remove(N2_TYPEKEY);
 		
-		String qs = getQS(crit);
+		r.setPropertyMap(map);
 		
-		return qs;
+		return r;
 	}
-
-	protected String getQS(Criterion crit)
+	
+	protected Document relToDoc(Relationship r, Document doc)
 	{
-		String qs = null;
+		if(r == null) return null;
 		
-		if(crit instanceof SimpleCriterion)
-		{
-			qs = getSimpleCriterion((SimpleCriterion)crit);
-		}
-		else if(crit instanceof SetCriterion)
+		Map<String,Object> map = r.getPropertyMap();
+		map.put(ID_KEY, r.getID());
+		map.put(TYPE_KEY, r.getType());
+		Node n = null;
+		
+		n = r.getNode1();
+		if(n == null) return null; // must have a node1
+		if(n.getID() == null) return null;
+		map.put(N1_KEY, n.getID());
+		if(n.getType() != null) map.put(N1_TYPEKEY, n.getType()); // type can be null?
+		
+		n = r.getNode2();
+		if(n == null) return null; // must have a node2
+		if(n.getID() == null) return null;
+		map.put(N2_KEY, n.getID());
+		if(n.getType() != null) map.put(N2_TYPEKEY, n.getType()); // type can be null?
+		
+		if(doc == null) doc = new Document();
+		
+		// stored value
+		if(map.containsKey(BasePropertyHolder.SV_KEY))
 		{
-			qs = getSetCriterion((SetCriterion)crit);
+			String sv = r.getStoredValue();
+			map.remove(BasePropertyHolder.SV_KEY);
+			if(sv != null)
+			{
+				doc.add(new StoredField(BasePropertyHolder.SV_KEY,sv));
+			}
 		}
-		else if(crit instanceof RangeCriterion)
+		
+		if(relSchema >= SCHEMA_KEYWORD_KEYS)
 		{
-			qs = getRangeCriterion((RangeCriterion)crit);
+			addKeyFields(map,NODE_KEYS,doc);
+			addKeyFields(map,REL_KEYS,doc);
 		}
 		
-		return qs;
+		LuceneUtil.toDoc(map, doc, true);
+		
+		LuceneUtil.addDocValues(doc, ID_KEY, r.getID());
+		LuceneUtil.addDocValues(doc, TYPE_KEY, r.getType());
+		LuceneUtil.addDocValues(doc, N1_KEY, r.getNode1ID());
+		LuceneUtil.addDocValues(doc, N1_TYPEKEY, r.getNode1Type());
+		LuceneUtil.addDocValues(doc, N2_KEY, r.getNode2ID());
+		LuceneUtil.addDocValues(doc, N2_TYPEKEY, r.getNode2Type());
+		
+		return doc;
 	}
 	
-	protected Query getQ(Criterion crit, Analyzer lyzer)
+	/**
+	 * Move the system keys out of the property map into exact match keyword fields.
+	 * 
+	 * @param map
+	 * @param keys
+	 * @param doc
+	 */
+	protected void addKeyFields(Map<String,Object> map, String keys[], Document doc)
 	{
-		Query q = null;
-		
-		if(crit instanceof SimpleCriterion)
-		{
-			q = getSimpleCriterionAsQ((SimpleCriterion)crit,lyzer);
-		}
-		else if(crit instanceof SetCriterion)
+		Object val = null;
+		for(int i=0; i<keys.length; i++)
 		{
-			q = getSetCriterionAsQ((SetCriterion)crit,lyzer);
+			val = map.remove(keys[i]);
+			if(val != null)
+			{
+				doc.add(new StringField(keys[i],String.valueOf(val),Field.Store.YES));
+			}
 		}
-		else if(crit instanceof RangeCriterion)
+	}
+
+	protected String getNextNodeID()
+	{
+		return String.valueOf(idAllocator.nextID());
+	}
+	
+	protected String getNextRelID()
+	{
+		// share a common incrementer
+		return getNextNodeID();
+	}
+	
+	protected List<String> getNextNodeIDs(int count)
+	{
+		List<String> out = new ArrayList<String>(count);
+		long iid = getNextIDBlock(count);
+		for(int i=0; i<count; i++)
 		{
-			q = getRangeCriterionAsQ((RangeCriterion)crit,lyzer);
+			out.add(String.valueOf(iid+i));
 		}
 		
-		return q;
+		return out;
 	}
-
+	
 	/**
-	 * Convert the simple criterion to a lucene style query string.
+	 * Reserve a contiguous block of ids.
 	 * 
-	 * @param crit
-	 * @return
+	 * @param count
+	 * @return the first id in the block
+	 */
+	protected long getNextIDBlock(int count)
+	{
+		return idAllocator.nextBlock(count);
+	}
+	
+	/**
+	 * Give every item in the list a new id from a single block.
+	 * 
+	 * @param list
 	 */
-	protected String getSimpleCriterion(SimpleCriterion crit)
+	protected void assignIDs(List<? extends PropertyHolder> list)
 	{
-		String valueStr = null;
+		int size = list.size();
+		if(size == 0) return;
 		
-		Object val = crit.getValue();
-		if(val == null)
-		{
-			valueStr = "null";
-		}
-		else if(val instanceof Criterion)
-		{
-			valueStr = "("+getQS((Criterion)val)+")";
-		}
-		else
+		long first = getNextIDBlock(size);
+		for(int i=0; i<size; i++)
 		{
-			valueStr = String.valueOf(val);
+			list.get(i).setID(String.valueOf(first+i));
 		}
-		
-		String qs = null;
-		
-		if(crit.getOperator()==SimpleCriterion.OP_EQUAL)
+	}
+	
+	protected List<String> getNextRelIDs(int count)
+	{
+		// share a common incrementer
+		return getNextNodeIDs(count);
+	}
+	
+	public IDAllocator getIDAllocator()
+	{
+		return idAllocator;
+	}
+	
+	/**
+	 * Replace the id allocator.  The new one must not hand out ids the old one already has.
+	 * 
+	 * @param allocator
+	 */
+	public void setIDAllocator(IDAllocator allocator)
+	{
+		if(allocator != null) idAllocator = allocator;
+	}
+
+	protected void loadGraphMeta()
+	{
+		synchronized(metasync)
 		{
-			qs = crit.getKey()+":"+valueStr;
-		}
-		
-		return qs;
+			graphMeta = new GraphMeta();
+			File f = new File(metaFile);
+			if(f.exists())
+			{
+				String json = FileUtil.getStringFromFile(metaFile);
+				graphMeta.fromJSONString(json);
+			}	
+		}		
 	}
 	
-	protected String getRangeCriterion(RangeCriterion crit)
+	/**
+	 * Most bulk inserts are going to be for identical property types, so we don't need to see each one.
+	 * 
+	 * @param nodes
+	 */
+	protected void sampleNodeMeta(List<Node> nodes) 
 	{
-		String valueStr1 = null;
-		String valueStr2 = null;
+		if(nodes == null || nodes.size() == 0) return;
 		
-		Object val = crit.getMinValue();
-		if(val == null)
+		int size = nodes.size();
+		if(size < 10)
 		{
-			valueStr1 = "null";
+			for(int i=0; i<size; i++)
+			{
+				graphMeta.updateNodeMeta(nodes.get(i));
+			}
 		}
 		else
 		{
-			valueStr1 = String.valueOf(val);
+			graphMeta.updateNodeMeta(nodes.get(0));
+			graphMeta.updateNodeMeta(nodes.get(size-1));
+			graphMeta.updateNodeMeta(nodes.get(size/2));
+			graphMeta.updateNodeMeta(nodes.get(size/4));
+			graphMeta.updateNodeMeta(nodes.get(3*size/4));
 		}
-		
-		val = crit.getMaxValue();
-		if(val == null)
+	}
+
+	protected void sampleRelMeta(List<Relationship> rels) 
+	{
+		if(rels == null || rels.size() == 0) return;
+		// sample first middle and last
+		int size = rels.size();
+		if(size < 5)
 		{
-			valueStr2 = "null";
+			for(int i=0; i<size; i++)
+			{
+				graphMeta.updateRelationshipMeta(rels.get(i));
+			}
 		}
 		else
 		{
-			valueStr2 = String.valueOf(val);
-		}
-		
-		String minB = "{";
-		String maxB = "}";
-		if(crit.getMinInclusive())
-		{
-			minB = "[";
-		}
-		if(crit.getMaxInclusive())
-		{
-			maxB = "]";
+			graphMeta.updateRelationshipMeta(rels.get(0));
+			graphMeta.updateRelationshipMeta(rels.get(size-1));
+			graphMeta.updateRelationshipMeta(rels.get(size/2));
 		}
-		
-		String qs = crit.getKey()+":"+minB + valueStr1 + " TO " + valueStr2 + maxB;
-		
-		
-		return qs;
 	}
+
 	
-	protected List<String> analyze(String text, Analyzer analyzer)
+	/**
+	 * Persist the meta if it has changed.  Writes a temp file and renames it over the old one so a crash
+	 * never leaves a truncated meta file behind.
+	 */
+	protected void writeGraphMeta()
 	{
-	    List<String> out = new ArrayList<String>();
-	    TokenStream ts = null;
-	    try
-	    {
-		    ts = analyzer.tokenStream("", text);
-		    CharTermAttribute attr = ts.addAttribute(CharTermAttribute.class);
-		    ts.reset();
-		    while(ts.incrementToken()) {
-		       out.add(attr.toString());
-		    }
-	    }
-	    catch(Exception ex)
-	    {
-	    	logger.info("Error analyzing text:" + ex.getMessage());
-	    }
-	    finally
-	    {
-	    	if(ts != null)try{ts.close();}catch(Exception ex){};
-	    }
-	    return out;
+		synchronized(metasync)
+		{
+			GraphMeta meta = graphMeta;
+			String json = meta.snapshotIfDirty();
+			if(json == null) return;
+			
+			try
+			{
+				writeFileAtomic(metaFile,json);
+			}
+			catch(Exception ex)
+			{
+				// try again at the next commit
+				meta.markDirty();
+				logger.log(Level.SEVERE, "Error commiting meta to disk", ex);
+			}
+			
+		} // end sync
 	}
 	
-	protected Query getSimpleCriterionAsQ(SimpleCriterion crit, Analyzer lyzer)
+	/**
+	 * Write to a temp file, sync it and rename it over the file so a crash leaves either the old or new contents.
+	 * 
+	 * @param file
+	 * @param str
+	 * @throws IOException
+	 */
+	protected void writeFileAtomic(String file, String str) throws IOException
 	{
-		Query q = null;
-		
-		String valueStr = null;
-		
-		Object val = crit.getValue();
-		if(val == null)
-		{
-			valueStr = "null";
-		}
-		else if(val instanceof Criterion)
-		{
-			valueStr = "("+getQS((Criterion)val)+")";
-		}
-		else
+		String tmp = file + ".tmp";
+		FileOutputStream fos = null;
+		try
 		{
-			valueStr = String.valueOf(val);
-			if(lyzer != null)
-			{
-				List<String> txts = analyze(valueStr,lyzer);
-				if(txts != null && txts.size() > 0)
-				{
-					//logger.info(txts.toString());
-					valueStr = txts.get(0);
-				}
-			}
+			fos = new FileOutputStream(tmp);
+			fos.write(str.getBytes(StandardCharsets.UTF_8));
+			fos.flush();
+			fos.getFD().sync();
+			fos.close();
+			fos = null;
+			
+			Files.move(Paths.get(tmp), Paths.get(file), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 		}
-		
-		
-		
-		if(crit.getOperator()==SimpleCriterion.OP_EQUAL)
+		finally
 		{
-			q = new TermQuery(new Term(crit.getKey(),valueStr));
+			FileUtil.close(fos);
 		}
-		
-		return q;
 	}
 	
-	protected Query getRangeCriterionAsQ(RangeCriterion crit, Analyzer lyzer)
+	/**
+	 * Commit both indexes.  Called by the commit scheduler, which decides how often this happens.
+	 * 
+	 * Each commit records the write sequence number.  When both indexes have changes a marker is written first
+	 * and removed once both commits succeed, so a crash between the two commits can be detected at startup.
+	 * 
+	 * @param seq everything up to this write sequence number has been applied to the writers
+	 * @return false if either index failed to commit
+	 */
+	protected boolean commitIndexes(long seq)
 	{
-		Query q = null;
-		Object val1 = crit.getMinValue();
-		Object val2 = crit.getMaxValue();
-		String key = crit.getKey();
+		boolean nodes = nodeIndex.hasUncommittedChanges();
+		boolean rels = relIndex.hasUncommittedChanges();
 		
-		if(val1 instanceof Number)
+		long walLSN = 0;
+		if(wal != null)
 		{
-			Number n1 = (Number)val1;
-			Number n2 = (Number)val2;
-			if(val1 instanceof Integer)
-			{
-				q = IntPoint.newRangeQuery(key, n1.intValue(), n2.intValue());
-			}
-			if(val1 instanceof Double)
-			{
-				q = DoublePoint.newRangeQuery(key, n1.doubleValue(), n2.doubleValue());
-			}
-			if(val1 instanceof Long)
-			{
-				q = LongPoint.newRangeQuery(key, n1.longValue(), n2.longValue());
-			}
-			if(val1 instanceof Float)
+			// taken before committing, anything applied after this is just replayed again
+			walLSN = wal.getAppliedLSN();
+			
+			// both indexes record the LSN so the log can be truncated
+			if(nodes || rels)
 			{
-				q = FloatPoint.newRangeQuery(key, n1.floatValue(), n2.floatValue());
+				nodes = true;
+				rels = true;
 			}
 		}
-		else
+		
+		boolean both = nodes && rels;
+		
+		// the snapshot has to match the commit exactly, counted writes wait until it is written
+		// a busy lock just means the snapshot waits for a later commit
+		boolean snap = (nodes || rels) && counters != null && countersValid && counters.isDirty() && !readOnlyIndex &&
+				System.currentTimeMillis()-countersWritten >= countersPersistMS && counterLock.tryLock();
+		
+		if(both)
 		{
-			String minS = String.valueOf(val1);
-			if(lyzer != null)
+			try
 			{
-				List<String> txts = analyze(minS,lyzer);
-				if(txts != null && txts.size() > 0)
-				{
-					//logger.info(txts.toString());
-					minS = txts.get(0);
-				}
+				writeFileAtomic(commitMarkerFile,String.valueOf(seq));
 			}
-			
-			String maxS = String.valueOf(val2);
-			if(lyzer != null)
+			catch(Exception ex)
 			{
-				List<String> txts = analyze(maxS,lyzer);
-				if(txts != null && txts.size() > 0)
-				{
-					//logger.info(txts.toString());
-					maxS = txts.get(0);
-				}
+				logger.log(Level.SEVERE, "Error writing commit marker", ex);
 			}
-			
-			q = TermRangeQuery.newStringRange(key, minS, maxS, crit.getMinInclusive(), crit.getMaxInclusive());
 		}
-		
-		return q;
-	}
-	
-	/**
-	 * Convert the set criterion to a lucene style query string.
-	 * 
-	 * @param crit
-	 * @return
-	 */
-	protected String getSetCriterion(SetCriterion crit)
-	{
-		int op = crit.getSetOperation();
-		String opStr = " AND ";
-		if(op == SetCriterion.COMB_OR)
+		
+		Map<String,String> data = new HashMap<String,String>();
+		data.put(COMMIT_SEQ_KEY, String.valueOf(seq));
+		if(wal != null) data.put(WAL_LSN_KEY, String.valueOf(walLSN));
+		
+		boolean ok = true;
+		
+		// nodes first, losing the rel half of a commit never leaves a relationship without its nodes
+		if(nodes)
 		{
-			opStr = " OR ";
+			data.put(SCHEMA_KEY, String.valueOf(nodeSchema));
+			ok = nodeIndex.commit(new HashMap<String,String>(data));
 		}
 		
-		int numcrit = crit.getNumCriteria();
-		if(numcrit < 1)
+		// so the rels wait for a commit where the nodes make it, the marker stays for reconcileIndexes
+		if(rels && ok)
 		{
-			logger.warning("No criteria");
-			return null;
+			data.put(SCHEMA_KEY, String.valueOf(relSchema));
+			ok = relIndex.commit(new HashMap<String,String>(data));
 		}
 		
-		Criterion tmpcrit = null;
-		String tmp = null;
-		String qs = null;
+		if(both && ok)
+		{
+			new File(commitMarkerFile).delete();
+		}
 		
-		tmpcrit = crit.getCriterion(0);
-		tmp = getQS(tmpcrit);
-		if(numcrit > 1)
+		if(wal != null && ok && (nodes || rels))
 		{
-			qs = "("+tmp+")";
-			for(int i=1; i<numcrit; i++)
-			{
-				tmpcrit = crit.getCriterion(i);
-				tmp = getQS(tmpcrit);
-				qs += opStr+"("+tmp+")";
-			}
+			wal.checkpoint(walLSN);
 		}
-		else
+		
+		// only touches the disk if a type or property changed
+		writeGraphMeta();
+		
+		if(snap)
 		{
-			qs = tmp;
+			if(ok) writeCounters(getCommittedSequence());
+			counterLock.unlock();
 		}
-		return qs;
+		
+		return ok;
 	}
-
+	
 	/**
-	 * Convert the set criterion to a lucene style query string.
+	 * Look for a commit that only made it into one of the indexes and repair it.
 	 * 
-	 * @param crit
-	 * @return
+	 * @return the last committed write sequence number
 	 */
-	protected Query getSetCriterionAsQ(SetCriterion crit, Analyzer lyzer)
+	protected long checkCommitMarker()
 	{
-		Query q = null;
+		long nodeSeq = getCommitSequence(nodeIndex);
+		long relSeq = getCommitSequence(relIndex);
+		long seq = Math.max(nodeSeq, relSeq);
 		
-		int op = crit.getSetOperation();
+		File f = new File(commitMarkerFile);
+		if(readOnlyIndex || !f.exists()) return seq;
 		
-		BooleanClause.Occur occur = BooleanClause.Occur.MUST;
-
-		if(op == SetCriterion.COMB_OR)
+		long pending = -1;
+		try
 		{
-			occur = BooleanClause.Occur.SHOULD;
+			pending = Long.parseLong(FileUtil.getStringFromFile(commitMarkerFile).trim());
 		}
-		
-		int numcrit = crit.getNumCriteria();
-		if(numcrit < 1)
+		catch(Exception ex)
 		{
-			logger.warning("No criteria");
-			return null;
+			logger.log(Level.WARNING, "Unreadable commit marker", ex);
 		}
 		
-		BooleanQuery.Builder bqb  = new BooleanQuery.Builder();
-		
-		Criterion tmpcrit = null;
-		Query tmp = null;
+		// neither or both made it is consistent, exactly one is not
+		// the log replays whatever the lagging index is missing
+		if(pending > 0 && (nodeSeq >= pending) != (relSeq >= pending) && !walEnabled)
+		{
+			logger.warning("Commit " + pending + " only reached the " + (nodeSeq >= pending?"node":"relationship") + " index, reconciling");
+			reconcileIndexes();
+			commitIndexes(seq);
+		}
 		
-		tmpcrit = crit.getCriterion(0);
-		tmp = getQ(tmpcrit,lyzer);
-		if(numcrit > 1)
+		f.delete();
+		return seq;
+	}
+	
+	protected long getCommitSequence(LuceneIndex index)
+	{
+		return getCommitLong(index,COMMIT_SEQ_KEY);
+	}
+	
+	protected long getCommitLong(LuceneIndex index, String key)
+	{
+		long seq = 0;
+		String str = index.getCommitData().get(key);
+		if(str != null)
 		{
-			bqb.add(tmp,occur);
-			for(int i=1; i<numcrit; i++)
+			try
 			{
-				tmpcrit = crit.getCriterion(i);
-				tmp = getQ(tmpcrit,lyzer);
-				bqb.add(tmp,occur);
+				seq = Long.parseLong(str);
+			}
+			catch(Exception ex)
+			{
+				logger.log(Level.WARNING, "Bad commit sequence " + str, ex);
 			}
 		}
-		else
-		{
-			q = tmp;
-		}
-		
-		q = bqb.build();
-		return q;
+		return seq;
 	}
-
+	
 	/**
-	 * Fetch the nodes by id and then return as a map.
-	 * 
-	 * @param ids
-	 * @return
-	 * @throws NoGraphException
+	 * Delete relationships that point at nodes that are not in the node index.  Nodes are committed before
+	 * relationships, so after a partial commit these can only be left behind by node deletes.
 	 */
-	protected Map<String,Node> buildNodeMap(List<String> ids) throws NoGraphException
+	protected void reconcileIndexes()
 	{
-		Map<String,Node> m = null;
-		if(ids == null || ids.size() == 0) return m;
-		
 		try
 		{
-			BooleanQuery.Builder bqb  = new BooleanQuery.Builder();
-			int size = ids.size();
-			logger.info("Building node map for " + size + " nodes");
+			// a failed read throws so the repair is skipped rather than run against a partial id set
+			Query all = new MatchAllDocsQuery();
+			Set<String> nodeIDs = new HashSet<String>(nodeIndex.getFieldValues(all, ID_KEY));
+			List<String> n1 = relIndex.getFieldValues(all,N1_KEY);
+			List<String> n2 = relIndex.getFieldValues(all,N2_KEY);
 			
-			BooleanQuery.setMaxClauseCount(size);
-			
-			String id = null;
-			for(int i=0; i<size; i++)
+			if(nodeIDs.size() == 0 && (n1.size() > 0 || n2.size() > 0))
 			{
-				id = ids.get(i);
-				bqb.add(new TermQuery(new Term(ID_KEY,id)), BooleanClause.Occur.SHOULD);
+				// would take every relationship with it, more likely the node index is what's wrong
+				logger.severe("Node index is empty but relationships exist, not removing any relationships");
+				return;
 			}
 			
-			BooleanQuery q = bqb.build();
-			
-			List<Document> docs = null;			
-
-			
-			docs = nodeIndex.search(q);
-			
-			List<Node> nodes = getNodesFromDocs(docs);
+			Set<String> missing = new HashSet<String>();
+			addMissing(n1,nodeIDs,missing);
+			addMissing(n2,nodeIDs,missing);
 			
-			size = nodes.size();
-			m = new HashMap<String,Node>(size);
-			Node n = null;
-			for(int i=0; i<size; i++)
+			if(missing.size() > 0)
 			{
-				n = nodes.get(i);
-				id = n.getID();
-				m.put(id, n);
+				logger.warning("Removing relationships for " + missing.size() + " missing nodes");
+				relIndex.deleteDocuments(N1_KEY,missing);
+				relIndex.deleteDocuments(N2_KEY,missing);
+				uncacheNodes(missing,true);
 			}
 		}
 		catch(Exception ex)
 		{
-			logger.log(Level.SEVERE, "Error searching nodes", ex);
-			throw new NoGraphException("Error searching nodes", ex);
+			logger.log(Level.SEVERE, "Error reconciling indexes, skipping the repair", ex);
 		}
-
-		
-		return m;
 	}
 	
-	/**
-	 * The relationships have node ids, now let's turn them into full nodes.
-	 * 
-	 * @param rels
-	 * @throws NoGraphException
-	 */
-	protected void populateNodesForRels(List<Relationship> rels) throws NoGraphException
+	protected void addMissing(List<String> ids, Set<String> present, Set<String> missing)
 	{
-		if(rels == null || rels.size() == 0) return;
-		
-		Map<String,Node> nodeMap = new HashMap<String,Node>();
+		if(ids == null) return;
 		
-		int size = rels.size();
-		Node n = null;
+		int size = ids.size();
 		String id = null;
-		Relationship r = null;
-		
-		Map<String,String> mids = new HashMap<String,String>();
-		
-		String hold = "";
-		
-		// first pass is to build ids
-        for(int i=0; i<size; i++)
-        {
-        	r = rels.get(i);
-        	mids.put(r.getNode1ID(),hold);
-        	mids.put(r.getNode2ID(),hold);
-        }
-        
-        List<String> ids = new ArrayList<String>(mids.keySet());
-        nodeMap = buildNodeMap(ids);
-        if(nodeMap == null)
-        {
-        	nodeMap = new HashMap<String,Node>();
-        }
-        
-        for(int i=0; i<size; i++)
-        {
-        	r = rels.get(i);
-
-        	// we should do a bulk query, which is what buildNodeMap does, but slow and steady will win the race for now
-        	id = r.getNode1ID();
-        	n = nodeMap.get(id);
-        	if(n == null)
-        	{
-        		n = getNode(id);
-        		nodeMap.put(id, n);
-        	}
-        	r.setNode1(n);
-        	
-        	id = r.getNode2ID();
-        	n = nodeMap.get(id);
-        	if(n == null)
-        	{
-        		n = getNode(id);
-        		nodeMap.put(id, n);
-        	}
-        	r.setNode2(n);
-        }
-	}
-	
-	/**
-	 * Convert Lucene document to node, filling the instance if not null, creating one otherwise.
-	 * 
-	 * @param doc
-	 * @param n
-	 * @return
-	 */
-	protected Node docToNode(Document doc, Node n)
-	{
-		if(doc == null) return null;
-		if(n == null) n = new GenericNode();
-		
-		Map<String,Object> map = LuceneUtil.fromDoc(doc);
-		
-		Object val = null;
-		
-		val = map.get(ID_KEY);
-		if(val != null)
-		{
-			n.setID(String.valueOf(val));
-		}
-		map.remove(ID_KEY);
-		
-		val = map.get(TYPE_KEY);
-		if(val != null)
-		{
-			n.setType(String.valueOf(val));
-		}
-		map.remove(TYPE_KEY);
-		
-		n.setPropertyMap(map);
-		
-		return n;
-	}
-	
-	protected Document nodeToDoc(Node n, Document doc)
-	{
-		if(n == null) return null;
-		if(doc == null) doc = new Document();
-		
-		Map<String,Object> map = n.getPropertyMap();
-		map.put(ID_KEY, n.getID());
-		map.put(TYPE_KEY, n.getType());
-		
-		// stored value
-		if(map.containsKey(BasePropertyHolder.SV_KEY))
+		for(int i=0; i<size; i++)
 		{
-			String sv = n.getStoredValue();
-			map.remove(BasePropertyHolder.SV_KEY);
-			if(sv != null)
+			id = ids.get(i);
+			if(!present.contains(id))
 			{
-				doc.add(new StoredField(BasePropertyHolder.SV_KEY,sv));
+				missing.add(id);
 			}
 		}
-		
-		LuceneUtil.toDoc(map, doc, true);
-		
-		return doc;
 	}
 	
-	protected Relationship docToRel(Document doc, Relationship r)
+	@Override
+	public long saveBatch(GraphBatch batch) throws NoGraphException
 	{
-		if(doc == null) return null;
-		if(r == null) r = new GenericRelationship();
+		if(batch == null || batch.isEmpty()) return commitScheduler.getWriteSequence();
 		
-		Map<String,Object> map = LuceneUtil.fromDoc(doc);
-		
-		Object val = null;
+		List<Node> nodes = batch.getNodes();
+		List<Relationship> rels = batch.getRelationships();
 		
-		val = map.get(ID_KEY);
-		if(val != null)
-		{
-			r.setID(String.valueOf(val));
-		}
-		map.remove(ID_KEY);
+		List<Node> newNodes = new ArrayList<Node>();
+		List<Node> existingNodes = new ArrayList<Node>();
+		List<Relationship> newRels = new ArrayList<Relationship>();
+		List<Relationship> existingRels = new ArrayList<Relationship>();
 		
-		val = map.get(TYPE_KEY);
-		if(val != null)
-		{
-			r.setType(String.valueOf(val));
-		}
-		map.remove(TYPE_KEY);
+		// nodes and rels share the id counter so one block covers both
+		List<PropertyHolder> needIDs = new ArrayList<PropertyHolder>();
 		
-		val = map.get(N1_KEY);
-		if(val != null)
+		int size = nodes.size();
+		Node n = null;
+		for(int i=0; i<size; i++)
 		{
-			Node n = new GenericNode();
-			n.setID(String.valueOf(val));
-			r.setNode1(n);
-			val = map.get(N1_TYPEKEY);
-			if(val != null)
+			n = nodes.get(i);
+			if(n.getID() == null)
 			{
-				n.setType(String.valueOf(val));
+				newNodes.add(n);
+				needIDs.add(n);
+			}
+			else
+			{
+				existingNodes.add(n);
 			}
 		}
-		map.remove(N1_KEY);
-		map.remove(N1_TYPEKEY);
 		
-		val = map.get(N2_KEY);
-		if(val != null)
+		size = rels.size();
+		Relationship r = null;
+		for(int i=0; i<size; i++)
 		{
-			Node n = new GenericNode();
-			n.setID(String.valueOf(val));
-			r.setNode2(n);
-			val = map.get(N2_TYPEKEY);
-			if(val != null)
+			r = rels.get(i);
+			if(r.getID() == null)
 			{
-				n.setType(String.valueOf(val));
+				newRels.add(r);
+				needIDs.add(r);
+			}
+			else
+			{
+				existingRels.add(r);
 			}
 		}
-		map.remove(N2_KEY);
-		map.remove(N2_TYPEKEY);
 		
-		r.setPropertyMap(map);
+		// nodes get their ids before the batch is logged or any rel docs are built
+		assignIDs(needIDs);
 		
-		return r;
+		long lsn = walLog(batch);
+		try
+		{
+			writeBatch(newNodes,existingNodes,newRels,existingRels,batch.getDeletedNodeIDs(),batch.getDeletedRelationshipIDs());
+		}
+		finally
+		{
+			walApplied(lsn);
+		}
+		
+		// a single commit covers both indexes
+		long seq = commitScheduler.written();
+		walSync(lsn);
+		return seq;
 	}
 	
-	protected Document relToDoc(Relationship r, Document doc)
+	/**
+	 * Write nodes and relationships that keep the ids they already have, as when restoring a dump.  The id
+	 * allocator is moved past the largest numeric id first so later saves can't reuse a restored id.
+	 * 
+	 * @param batch saves only
+	 * @param upsert replace documents with the same id, not needed when the graph started empty
+	 * @throws NoGraphException
+	 */
+	protected void restoreBatch(GraphBatch batch, boolean upsert) throws NoGraphException
 	{
-		if(r == null) return null;
-		
-		Map<String,Object> map = r.getPropertyMap();
-		map.put(ID_KEY, r.getID());
-		map.put(TYPE_KEY, r.getType());
-		Node n = null;
-		
-		n = r.getNode1();
-		if(n == null) return null; // must have a node1
-		if(n.getID() == null) return null;
-		map.put(N1_KEY, n.getID());
-		if(n.getType() != null) map.put(N1_TYPEKEY, n.getType()); // type can be null?
-		
-		n = r.getNode2();
-		if(n == null) return null; // must have a node2
-		if(n.getID() == null) return null;
-		map.put(N2_KEY, n.getID());
-		if(n.getType() != null) map.put(N2_TYPEKEY, n.getType()); // type can be null?
+		if(batch == null || batch.isEmpty()) return;
 		
-		if(doc == null) doc = new Document();
+		List<Node> nodes = batch.getNodes();
+		List<Relationship> rels = batch.getRelationships();
+		List<Node> noNodes = new ArrayList<Node>();
+		List<Relationship> noRels = new ArrayList<Relationship>();
+		List<String> noIDs = new ArrayList<String>();
 		
-		// stored value
-		if(map.containsKey(BasePropertyHolder.SV_KEY))
+		long max = Math.max(getMaxLongID(nodes), getMaxLongID(rels));
+		if(max > 0) idAllocator.advanceTo(max);
+		
+		long lsn = walLog(batch);
+		try
 		{
-			String sv = r.getStoredValue();
-			map.remove(BasePropertyHolder.SV_KEY);
-			if(sv != null)
+			if(upsert)
 			{
-				doc.add(new StoredField(BasePropertyHolder.SV_KEY,sv));
+				writeBatch(noNodes,nodes,noRels,rels,noIDs,noIDs);
+			}
+			else
+			{
+				writeBatch(nodes,noNodes,rels,noRels,noIDs,noIDs);
 			}
 		}
+		finally
+		{
+			walApplied(lsn);
+		}
 		
-		LuceneUtil.toDoc(map, doc, true);
-		
-		return doc;
+		commitScheduler.written();
+		walSync(lsn);
 	}
-
-	protected String getNextNodeID()
+	
+	protected long getMaxLongID(List<? extends PropertyHolder> list)
 	{
+		long max = 0;
+		int size = list.size();
 		String id = null;
-		synchronized(idsync)
+		for(int i=0; i<size; i++)
 		{
-			long iid = idgen.incrementAndGet();
-			id = String.valueOf(iid);
-			writeNewID();
+			id = list.get(i).getID();
+			if(id == null) continue;
+			try
+			{
+				max = Math.max(max, Long.parseLong(id));
+			}
+			catch(NumberFormatException ex)
+			{
+				// not one of ours
+			}
 		}
-		return id;
-	}
-	
-	protected String getNextRelID()
-	{
-		// share a common incrementer
-		return getNextNodeID();
+		return max;
 	}
 	
-	protected List<String> getNextNodeIDs(int count)
+	protected void writeBatch(List<Node> newNodes, List<Node> existingNodes, List<Relationship> newRels, List<Relationship> existingRels, List<String> nodeDeletes, List<String> relDeletes) throws NoGraphException
 	{
-		List<String> out = new ArrayList<String>(count);
-		synchronized(idsync)
+		lockCounters();
+		try
 		{
-			long iid = 0;
-			for(int i=0; i<count; i++)
+			if(newNodes.size() > 0) writeNodeDocs(newNodes,false);
+			if(existingNodes.size() > 0) writeNodeDocs(existingNodes,true);
+			if(newRels.size() > 0) writeRelDocs(newRels,false);
+			if(existingRels.size() > 0) writeRelDocs(existingRels,true);
+			
+			if(nodeDeletes.size() > 0)
+			{
+				deleteNodeDocs(nodeDeletes);
+			}
+			
+			if(relDeletes.size() > 0)
 			{
-				iid = idgen.incrementAndGet();
-				out.add(String.valueOf(iid));
+				deleteRelDocs(relDeletes);
 			}
-			writeNewID();
+			
+			sampleNodeMeta(newNodes);
+			sampleNodeMeta(existingNodes);
+			sampleRelMeta(newRels);
+			sampleRelMeta(existingRels);
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error saving batch", ex);
+			throw new NoGraphException("Error saving batch", ex);
+		}
+		finally
+		{
+			unlockCounters();
+			
+			// saves were handled as they were written
+			uncacheNodes(nodeDeletes,true);
+			uncacheRels(relDeletes);
 		}
-		
-		return out;
 	}
 	
-	protected List<String> getNextRelIDs(int count)
+	/**
+	 * Log a batch whose new items already have ids.
+	 * 
+	 * @param batch
+	 * @return the LSN, 0 when there is no log
+	 * @throws NoGraphException
+	 */
+	protected long walLog(GraphBatch batch) throws NoGraphException
 	{
-		// share a common incrementer
-		return getNextNodeIDs(count);
+		if(wal == null) return 0;
+		return wal.append(batch);
+	}
+	
+	protected long walSaveNodes(List<Node> nodes) throws NoGraphException
+	{
+		if(wal == null) return 0;
+		GraphBatch batch = new GraphBatch();
+		batch.saveNodes(nodes);
+		return wal.append(batch);
+	}
+	
+	protected long walSaveRelationships(List<Relationship> rels) throws NoGraphException
+	{
+		if(wal == null) return 0;
+		GraphBatch batch = new GraphBatch();
+		batch.saveRelationships(rels);
+		return wal.append(batch);
+	}
+	
+	protected long walDeleteNodes(List<String> ids) throws NoGraphException
+	{
+		if(wal == null) return 0;
+		GraphBatch batch = new GraphBatch();
+		batch.getDeletedNodeIDs().addAll(ids);
+		return wal.append(batch);
+	}
+	
+	protected long walDeleteRelationships(List<String> ids) throws NoGraphException
+	{
+		if(wal == null) return 0;
+		GraphBatch batch = new GraphBatch();
+		batch.getDeletedRelationshipIDs().addAll(ids);
+		return wal.append(batch);
 	}
 	
 	/**
-	 * Commit the new id to disk
+	 * The logged write has been applied to the index writers, or failed.
+	 * 
+	 * @param lsn
 	 */
-	protected void writeNewID()
+	protected void walApplied(long lsn)
 	{
-		// should only be called from within a synchronized block, but confirm
-		synchronized(idsync)
-		{
-			// TODO consider using the write lock mechanism on the Lucene directory
-			FileWriter fw = null;
-			try
-			{
-				fw = new FileWriter(idFile);
-				fw.write(String.valueOf(idgen.get()));
-				fw.flush();
-				fw.close();
-				fw = null;
-			}
-			catch(Exception ex)
-			{
-				logger.log(Level.SEVERE, "Error commiting id to disk", ex);
-			}
-			finally
-			{
-				if(fw != null)try{fw.close();}catch(Exception ex){};
-			}
-			
-		} // end sync
+		if(lsn > 0) wal.applied(lsn);
 	}
-
-	protected void loadGraphMeta()
+	
+	/**
+	 * Called before a write returns, this is what makes it durable without an index commit.
+	 * 
+	 * @param lsn
+	 * @throws NoGraphException
+	 */
+	protected void walSync(long lsn) throws NoGraphException
 	{
-		synchronized(metasync)
-		{
-			graphMeta = new GraphMeta();
-			File f = new File(metaFile);
-			if(f.exists())
-			{
-				String json = FileUtil.getStringFromFile(metaFile);
-				graphMeta.fromJSONString(json);
-			}	
-		}		
+		if(lsn > 0) wal.sync(lsn);
 	}
 	
 	/**
-	 * Most bulk inserts are going to be for identical property types, so we don't need to see each one.
+	 * Open the log and apply everything past the last index commit.
 	 * 
-	 * @param nodes
+	 * @param walDir
+	 * @param segmentSize
 	 */
-	protected void sampleNodeMeta(List<Node> nodes) 
+	protected void openWAL(String walDir, long segmentSize)
 	{
-		if(nodes == null || nodes.size() == 0) return;
+		long nodeLSN = getCommitLong(nodeIndex,WAL_LSN_KEY);
+		long relLSN = getCommitLong(relIndex,WAL_LSN_KEY);
 		
-		int size = nodes.size();
-		if(size < 10)
+		// replaying is idempotent so start from whichever index is behind
+		long after = Math.min(nodeLSN, relLSN);
+		
+		WriteAheadLog log = new WriteAheadLog(walDir,segmentSize);
+		try
 		{
-			for(int i=0; i<size; i++)
+			long count = log.open(after, new WriteAheadLog.Replayer() {
+				public void replay(long lsn, GraphBatch batch) throws NoGraphException
+				{
+					List<Node> none = new ArrayList<Node>();
+					List<Relationship> noRels = new ArrayList<Relationship>();
+					
+					// everything already has an id so every save is an upsert
+					writeBatch(none,batch.getNodes(),noRels,batch.getRelationships(),batch.getDeletedNodeIDs(),batch.getDeletedRelationshipIDs());
+				}
+			});
+			
+			wal = log;
+			
+			if(count > 0)
 			{
-				graphMeta.updateNodeMeta(nodes.get(i));
+				logger.info("Replayed " + count + " log records");
+				commitIndexes(commitScheduler.getWriteSequence());
 			}
 		}
-		else
+		catch(Exception ex)
 		{
-			graphMeta.updateNodeMeta(nodes.get(0));
-			graphMeta.updateNodeMeta(nodes.get(size-1));
-			graphMeta.updateNodeMeta(nodes.get(size/2));
-			graphMeta.updateNodeMeta(nodes.get(size/4));
-			graphMeta.updateNodeMeta(nodes.get(3*size/4));
+			logger.log(Level.SEVERE, "Error opening write ahead log", ex);
 		}
-		writeGraphMeta();
 	}
-
-	protected void sampleRelMeta(List<Relationship> rels) 
+	
+	@Override
+	public long flush() throws NoGraphException
 	{
-		if(rels == null || rels.size() == 0) return;
-		// sample first middle and last
-		int size = rels.size();
-		if(size < 5)
-		{
-			for(int i=0; i<size; i++)
-			{
-				graphMeta.updateRelationshipMeta(rels.get(i));
-			}
-		}
-		else
-		{
-			graphMeta.updateRelationshipMeta(rels.get(0));
-			graphMeta.updateRelationshipMeta(rels.get(size-1));
-			graphMeta.updateRelationshipMeta(rels.get(size/2));
-		}
-		writeGraphMeta();
+		return commitScheduler.flush();
 	}
-
 	
-	protected void writeGraphMeta()
+	@Override
+	public void awaitDurable(long seq) throws NoGraphException
 	{
-		synchronized(metasync)
-		{
-			FileWriter fw = null;
-			try
-			{
-				fw = new FileWriter(metaFile);
-				fw.write(graphMeta.toJSONString());
-				fw.flush();
-				fw.close();
-				fw = null;
-			}
-			catch(Exception ex)
-			{
-				logger.log(Level.SEVERE, "Error commiting meta to disk", ex);
-			}
-			finally
-			{
-				if(fw != null)try{fw.close();}catch(Exception ex){};
-			}
-			
-		} // end sync
+		commitScheduler.awaitDurable(seq);
+	}
+	
+	@Override
+	public long getWriteSequence()
+	{
+		return commitScheduler.getWriteSequence();
+	}
+	
+	@Override
+	public void awaitVisible(long seq) throws NoGraphException
+	{
+		// written() is called after the index operations so anything up to seq has completed in the writers
+		// and the current generations cover it
+		nodeIndex.waitForLatest();
+		relIndex.waitForLatest();
 	}
 	
 	@Override
@@ -1867,10 +4016,15 @@ public class LuceneGraphManager implements GraphManager
 	@Override
 	public long countNodes(String type) throws NoGraphException 
 	{
+		if(counters != null && type != null)
+		{
+			return readCounters().getNodeCount(type);
+		}
+		
 		// the type may need to be analyzed
 		if(type != null)
 		{
-			List<String> strs = analyze(type,nodeIndex.getAnalyzer());
+			List<String> strs = analyze(TYPE_KEY,type,nodeIndex.getAnalyzer());
 			if(strs != null && strs.size() > 0)
 			{
 				type = strs.get(0);
@@ -1883,10 +4037,15 @@ public class LuceneGraphManager implements GraphManager
 	@Override
 	public long countRelationships(String type) throws NoGraphException 
 	{
+		if(counters != null && type != null)
+		{
+			return readCounters().getRelationshipCount(type);
+		}
+		
 		// the type may need to be analyzed
 		if(type != null)
 		{
-			List<String> strs = analyze(type,relIndex.getAnalyzer());
+			List<String> strs = analyze(TYPE_KEY,type,relIndex.getAnalyzer());
 			if(strs != null && strs.size() > 0)
 			{
 				type = strs.get(0);
@@ -1898,70 +4057,101 @@ public class LuceneGraphManager implements GraphManager
 	}
 
 	@Override
-	public Map<String, Long> getNodeCountsByType() throws NoGraphException {
-		Map<String,Long> m = new HashMap<String,Long>();
-		
-		try
+	public Map<String, Long> getNodeCountsByType() throws NoGraphException 
+	{
+		if(counters != null)
 		{
-			Term t = null;
-			TermQuery tq = null;
-			
-			List<String> types = nodeIndex.getTermsForField(TYPE_KEY);
-			if(types != null)
-			{
-				int size = types.size();
-				
-				String type = null;
-				Long cnt = null;
-				for(int i=0; i<size; i++)
-				{
-					type = types.get(i);
-					t = new Term(TYPE_KEY,type);
-					tq = new TermQuery(t);
-					cnt = (long)nodeIndex.count(tq);
-					m.put(type, cnt);
-				}
-			}
-			else
-			{
-				logger.warning("Types were NULL!");
-			}
+			return readCounters().getNodeCounts();
 		}
-		catch(Exception ex)
+		
+		Map<String,Long> m = nodeIndex.getFacetCounts(new MatchAllDocsQuery(), TYPE_KEY);
+		if(m == null)
 		{
-			logger.log(Level.WARNING, "Error getting counts", ex);
+			throw new NoGraphException("Error getting node counts");
 		}
 		return m;
 	}
 
 	@Override
-	public Map<String, Long> getRelationshipCountsByType() throws NoGraphException {
-		Map<String,Long> m = new HashMap<String,Long>();
+	public Map<String, Long> getRelationshipCountsByType() throws NoGraphException 
+	{
+		if(counters != null)
+		{
+			return readCounters().getRelationshipCounts();
+		}
+		
+		Map<String,Long> m = relIndex.getFacetCounts(new MatchAllDocsQuery(), TYPE_KEY);
+		if(m == null)
+		{
+			throw new NoGraphException("Error getting relationship counts");
+		}
+		return m;
+	}
+	
+	@Override
+	public long getOutDegree(String id) throws NoGraphException
+	{
+		if(id == null) return 0;
+		if(counters != null)
+		{
+			return readCounters().getOutDegree(id);
+		}
+		return relIndex.count(new TermQuery(new Term(N1_KEY,id)));
+	}
+	
+	@Override
+	public long getInDegree(String id) throws NoGraphException
+	{
+		if(id == null) return 0;
+		if(counters != null)
+		{
+			return readCounters().getInDegree(id);
+		}
+		return relIndex.count(new TermQuery(new Term(N2_KEY,id)));
+	}
+	
+	@Override
+	public Map<String, Long> getNodeFacetCounts(GraphQuery query, String key) throws NoGraphException
+	{
+		return getFacetCounts(query,key,nodeIndex);
+	}
+	
+	@Override
+	public Map<String, Long> getRelationshipFacetCounts(GraphQuery query, String key) throws NoGraphException
+	{
+		return getFacetCounts(query,key,relIndex);
+	}
+	
+	protected Map<String, Long> getFacetCounts(GraphQuery query, String key, LuceneIndex index) throws NoGraphException
+	{
+		if(key == null) return null;
 		
+		Map<String,Long> m = null;
 		try
 		{
-			Term t = null;
-			TermQuery tq = null;
-			
-			List<String> types = relIndex.getTermsForField(TYPE_KEY);
-			int size = types.size();
-			
-			String type = null;
-			Long cnt = null;
-			for(int i=0; i<size; i++)
+			Query q = null;
+			if(query == null || query.getCriterion() == null)
 			{
-				type = types.get(i);
-				t = new Term(TYPE_KEY,type);
-				tq = new TermQuery(t);
-				cnt = (long)relIndex.count(tq);
-				m.put(type, cnt);
+				q = new MatchAllDocsQuery();
+			}
+			else
+			{
+				q = buildQuery(query,index);
 			}
+			
+			// property keys are lower case in the index
+			m = index.getFacetCounts(q, key.toLowerCase());
 		}
 		catch(Exception ex)
 		{
-			logger.log(Level.WARNING, "Error getting counts", ex);
+			logger.log(Level.SEVERE, "Error getting facet counts", ex);
+			throw new NoGraphException("Error getting facet counts", ex);
 		}
 		
+		if(m == null)
+		{
+			throw new NoGraphException("Error getting facet counts");
+		}
 		return m;
 	}
 
@@ -1973,6 +4163,12 @@ public class LuceneGraphManager implements GraphManager
 
 	@Override
 	public List<Node> findNodes(String type, String key, Object val, int maxResults) throws NoGraphException 
+	{
+		return findNodes(type,key,val,maxResults,null);
+	}
+
+	@Override
+	public List<Node> findNodes(String type, String key, Object val, int maxResults, List<String> fields) throws NoGraphException 
 	{
 		boolean tnull = type==null;
 		boolean vnull = val == null;
@@ -1995,7 +4191,7 @@ public class LuceneGraphManager implements GraphManager
 			
 			Query q = getQuery(key,val,nodeIndex.getAnalyzer());
 			QueryParser qp = new QueryParser(key,nodeIndex.getAnalyzer());
-			Query q2 = qp.parse(TYPE_KEY+":"+String.valueOf(type));
+			Query q2 = qp.parse(TYPE_KEY+":"+keyValue(TYPE_KEY,type));
 			
 			if(!(knull || tnull))
 			{
@@ -2016,14 +4212,10 @@ public class LuceneGraphManager implements GraphManager
 				}
 			}
 			
-			if(maxResults < 1)
-			{
-				docs = nodeIndex.search(q);
-			}
-			else
-			{
-				docs = nodeIndex.search(q,maxResults);
-			}
+			if(maxResults < 1) maxResults = nodeIndex.getDefaultMaxHits();
+			
+			Set<String> load = getLoadFields(fields,false);
+			docs = nodeIndex.search(q,maxResults,load,isKeysOnly(load,false));
 			
 			nodes = getNodesFromDocs(docs);
 		}
@@ -2045,7 +4237,15 @@ public class LuceneGraphManager implements GraphManager
 
 	@Override
 	public List<Relationship> findRelationships(String type, String key, Object val, boolean fetchNodes, int maxResults)
-			throws NoGraphException {
+			throws NoGraphException 
+	{
+		return findRelationships(type,key,val,fetchNodes,maxResults,null);
+	}
+
+	@Override
+	public List<Relationship> findRelationships(String type, String key, Object val, boolean fetchNodes, int maxResults, List<String> fields)
+			throws NoGraphException 
+	{
 		boolean tnull = type==null;
 		boolean vnull = val == null;
 		boolean knull = key == null;
@@ -2066,7 +4266,7 @@ public class LuceneGraphManager implements GraphManager
 						
 			Query q = getQuery(key,val,relIndex.getAnalyzer());
 			QueryParser qp = new QueryParser(key,relIndex.getAnalyzer());
-			Query q2 = qp.parse(TYPE_KEY+":"+String.valueOf(type));
+			Query q2 = qp.parse(TYPE_KEY+":"+keyValue(TYPE_KEY,type));
 		
 			
 			if(!(knull || tnull))
@@ -2089,14 +4289,10 @@ public class LuceneGraphManager implements GraphManager
 			}
 
 			
-			if(maxResults < 1)
-			{
-				docs = relIndex.search(q);
-			}
-			else
-			{
-				docs = relIndex.search(q,maxResults);
-			}
+			if(maxResults < 1) maxResults = relIndex.getDefaultMaxHits();
+			
+			Set<String> load = getLoadFields(fields,true);
+			docs = relIndex.search(q,maxResults,load,isKeysOnly(load,true));
 			
 			rels = getRelsFromDocs(docs, fetchNodes);
 		}
@@ -2291,6 +4487,7 @@ public class LuceneGraphManager implements GraphManager
 			synchronized(metasync)
 			{
 				graphMeta = gm;
+				gm.markDirty();
 				writeGraphMeta();
 				loadGraphMeta();
 			}
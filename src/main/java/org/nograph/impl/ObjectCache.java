@@ -0,0 +1,387 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded LRU cache keyed by id.  The entries are split over segments that each keep their own access
+ * ordered LinkedHashMap and lock, so lookups of different ids rarely contend.  Each segment gets an equal share of
+ * the entry and byte limits.
+ *
+ * Fills use a stamp taken before the value was read.  Every invalidation moves the stamp on and a put with an
+ * older stamp is dropped, so a reader that raced with a write can't put back the version the write replaced.
+ *
+ * @author aholinch
+ *
+ */
+public class ObjectCache<V>
+{
+	protected static final int MAX_SEGMENTS = 16;
+
+	protected int maxEntries = 0;
+	protected long maxBytes = 0;
+	protected Segment<V> segments[] = null;
+	protected int mask = 0;
+
+	protected AtomicLong stamp = new AtomicLong();
+	protected AtomicLong hits = new AtomicLong();
+	protected AtomicLong misses = new AtomicLong();
+	protected AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Used to remove every entry that matches, like relationships on a deleted node.
+	 */
+	public static interface Matcher<V>
+	{
+		public boolean matches(V val);
+	}
+
+	protected static class Entry<V>
+	{
+		protected V value = null;
+		protected long size = 0;
+
+		protected Entry(V value, long size)
+		{
+			this.value = value;
+			this.size = size;
+		}
+	}
+
+	protected static class Segment<V>
+	{
+		protected LinkedHashMap<String,Entry<V>> map = new LinkedHashMap<String,Entry<V>>(16, 0.75f, true);
+		protected int maxEntries = 0;
+		protected long maxBytes = 0;
+		protected long bytes = 0;
+	}
+
+	/**
+	 * @param maxEntries the most entries kept
+	 * @param maxBytes the most estimated bytes kept, 0 for no byte limit
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	public ObjectCache(int maxEntries, long maxBytes)
+	{
+		this.maxEntries = Math.max(1, maxEntries);
+		this.maxBytes = Math.max(0, maxBytes);
+
+		// small caches stay in one segment so the LRU order is exact
+		int num = 1;
+		while(num < MAX_SEGMENTS && this.maxEntries/(num*2) >= 1024)
+		{
+			num *= 2;
+		}
+
+		segments = new Segment[num];
+		mask = num-1;
+		for(int i=0; i<num; i++)
+		{
+			segments[i] = new Segment<V>();
+			segments[i].maxEntries = Math.max(1, (this.maxEntries+num-1)/num);
+			segments[i].maxBytes = this.maxBytes/num;
+		}
+	}
+
+	protected Segment<V> segmentFor(String key)
+	{
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & mask];
+	}
+
+	/**
+	 * @param key
+	 * @return the cached value or null
+	 */
+	public V get(String key)
+	{
+		if(key == null) return null;
+
+		Segment<V> seg = segmentFor(key);
+		Entry<V> e = null;
+		synchronized(seg)
+		{
+			e = seg.map.get(key);
+		}
+
+		if(e == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return e.value;
+	}
+
+	/**
+	 * Take this before reading the value that will be put.
+	 *
+	 * @return
+	 */
+	public long getStamp()
+	{
+		return stamp.get();
+	}
+
+	/**
+	 * Add a value unless something was invalidated since the stamp was taken.
+	 *
+	 * @param key
+	 * @param val
+	 * @param size estimated bytes
+	 * @param readStamp from getStamp() before the value was read
+	 * @return true if the value was added
+	 */
+	public boolean put(String key, V val, long size, long readStamp)
+	{
+		if(key == null || val == null) return false;
+
+		Segment<V> seg = segmentFor(key);
+		synchronized(seg)
+		{
+			// checked under the lock, invalidations move the stamp before taking it
+			if(stamp.get() != readStamp) return false;
+
+			Entry<V> old = seg.map.put(key, new Entry<V>(val,size));
+			if(old != null) seg.bytes -= old.size;
+			seg.bytes += size;
+
+			evict(seg);
+		}
+		return true;
+	}
+
+	protected void evict(Segment<V> seg)
+	{
+		Iterator<Entry<V>> it = seg.map.values().iterator();
+		Entry<V> e = null;
+		while(seg.map.size() > 1 && (seg.map.size() > seg.maxEntries || (seg.maxBytes > 0 && seg.bytes > seg.maxBytes)))
+		{
+			// eldest first
+			e = it.next();
+			it.remove();
+			seg.bytes -= e.size;
+			evictions.incrementAndGet();
+		}
+	}
+
+	public void invalidate(String key)
+	{
+		if(key == null) return;
+
+		stamp.incrementAndGet();
+		Segment<V> seg = segmentFor(key);
+		synchronized(seg)
+		{
+			Entry<V> e = seg.map.remove(key);
+			if(e != null) seg.bytes -= e.size;
+		}
+	}
+
+	public void invalidate(Collection<String> keys)
+	{
+		if(keys == null) return;
+
+		stamp.incrementAndGet();
+		Segment<V> seg = null;
+		Entry<V> e = null;
+		for(String key:keys)
+		{
+			if(key == null) continue;
+			seg = segmentFor(key);
+			synchronized(seg)
+			{
+				e = seg.map.remove(key);
+				if(e != null) seg.bytes -= e.size;
+			}
+		}
+	}
+
+	/**
+	 * Remove every entry the matcher accepts.  This walks the whole cache.
+	 *
+	 * @param m
+	 * @return the number removed
+	 */
+	public int invalidateMatching(Matcher<V> m)
+	{
+		stamp.incrementAndGet();
+		int count = 0;
+		Iterator<Entry<V>> it = null;
+		Entry<V> e = null;
+		for(int i=0; i<segments.length; i++)
+		{
+			synchronized(segments[i])
+			{
+				it = segments[i].map.values().iterator();
+				while(it.hasNext())
+				{
+					e = it.next();
+					if(m.matches(e.value))
+					{
+						it.remove();
+						segments[i].bytes -= e.size;
+						count++;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	public void clear()
+	{
+		stamp.incrementAndGet();
+		for(int i=0; i<segments.length; i++)
+		{
+			synchronized(segments[i])
+			{
+				segments[i].map.clear();
+				segments[i].bytes = 0;
+			}
+		}
+	}
+
+	public int size()
+	{
+		int size = 0;
+		for(int i=0; i<segments.length; i++)
+		{
+			synchronized(segments[i])
+			{
+				size += segments[i].map.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the estimated bytes held
+	 */
+	public long getBytes()
+	{
+		long bytes = 0;
+		for(int i=0; i<segments.length; i++)
+		{
+			synchronized(segments[i])
+			{
+				bytes += segments[i].bytes;
+			}
+		}
+		return bytes;
+	}
+
+	public int getMaxEntries()
+	{
+		return maxEntries;
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	public double getHitRate()
+	{
+		long h = hits.get();
+		long total = h + misses.get();
+		if(total == 0) return 0;
+		return h/(double)total;
+	}
+
+	public void resetStats()
+	{
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+
+	/**
+	 * A rough size for a property value, close enough to keep the byte limit meaningful.
+	 *
+	 * @param val
+	 * @return
+	 */
+	@SuppressWarnings("rawtypes")
+	public static long estimateSize(Object val)
+	{
+		if(val == null) return 0;
+
+		if(val instanceof String)
+		{
+			return 40 + 2*((String)val).length();
+		}
+		else if(val instanceof Number || val instanceof Boolean)
+		{
+			return 16;
+		}
+		else if(val instanceof List)
+		{
+			long size = 40;
+			List l = (List)val;
+			int len = l.size();
+			for(int i=0; i<len; i++)
+			{
+				size += 8 + estimateSize(l.get(i));
+			}
+			return size;
+		}
+		else if(val instanceof Map)
+		{
+			long size = 48;
+			Iterator it = ((Map)val).entrySet().iterator();
+			Map.Entry me = null;
+			while(it.hasNext())
+			{
+				me = (Map.Entry)it.next();
+				size += 32 + estimateSize(me.getKey()) + estimateSize(me.getValue());
+			}
+			return size;
+		}
+
+		return 32;
+	}
+
+	public String toString()
+	{
+		return "entries=" + size() + " bytes=" + getBytes() + " hits=" + hits.get() + " misses=" + misses.get() + " evictions=" + evictions.get();
+	}
+}
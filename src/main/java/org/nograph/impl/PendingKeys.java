@@ -0,0 +1,125 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.ReferenceManager;
+
+/**
+ * The counter keys, type and for relationships both node ids, of everything written or deleted since the index's
+ * searcher was last refreshed.  The counters read the version being replaced from here first, so they can use the
+ * searcher as it is instead of refreshing it on every write.
+ * 
+ * Each entry records the epoch it was written in.  A refresh starts a new epoch and once it is done drops the
+ * entries from before it, which the new searcher can see.
+ * 
+ * @author aholinch
+ *
+ */
+public class PendingKeys implements ReferenceManager.RefreshListener
+{
+	protected static class Entry
+	{
+		// null once deleted
+		protected String keys[] = null;
+		protected long epoch = 0;
+		
+		protected Entry(String keys[], long epoch)
+		{
+			this.keys = keys;
+			this.epoch = epoch;
+		}
+	}
+	
+	protected Map<String,Entry> entries = new ConcurrentHashMap<String,Entry>();
+	protected AtomicLong epoch = new AtomicLong();
+	
+	// refreshes of one searcher manager don't overlap
+	protected volatile long refreshStart = -1;
+	
+	public PendingKeys()
+	{
+		
+	}
+	
+	public void put(String id, String keys[])
+	{
+		if(id != null) entries.put(id, new Entry(keys,epoch.get()));
+	}
+	
+	public void delete(String id)
+	{
+		put(id,null);
+	}
+	
+	/**
+	 * @param id
+	 * @return null if the searcher has the current version
+	 */
+	public Entry get(String id)
+	{
+		if(id == null) return null;
+		return entries.get(id);
+	}
+	
+	/**
+	 * @return a copy that later refreshes won't change
+	 */
+	public Map<String,Entry> snapshot()
+	{
+		return new HashMap<String,Entry>(entries);
+	}
+	
+	public int size()
+	{
+		return entries.size();
+	}
+	
+	public void clear()
+	{
+		entries.clear();
+	}
+	
+	@Override
+	public void beforeRefresh()
+	{
+		refreshStart = epoch.getAndIncrement();
+	}
+	
+	@Override
+	public void afterRefresh(boolean didRefresh)
+	{
+		long start = refreshStart;
+		if(!didRefresh || start < 0) return;
+		
+		// written before the refresh started so the new searcher has them
+		// only remove that exact entry, the id may have been written again since
+		Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator();
+		Map.Entry<String,Entry> me = null;
+		while(it.hasNext())
+		{
+			me = it.next();
+			if(me.getValue().epoch <= start) entries.remove(me.getKey(), me.getValue());
+		}
+	}
+}
@@ -0,0 +1,499 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.util.BytesRef;
+import org.nograph.GraphQuery.Criterion;
+import org.nograph.GraphQuery.RangeCriterion;
+import org.nograph.GraphQuery.SetCriterion;
+import org.nograph.GraphQuery.SimpleCriterion;
+import org.nograph.NoGraphException;
+
+/**
+ * Compiles criterion trees straight to Lucene queries, typed the same way LuceneUtil.appendField indexes values.
+ * Strings are analyzed with the index's per field analyzer, Integers are IntPoints, Longs and Dates LongPoints,
+ * other numbers DoublePoints and anything else a single untokenized term.  So a numeric range is a point range
+ * instead of a string range over terms that were never indexed.
+ * 
+ * Compiled queries are immutable and kept in an LRU cache keyed by a normalized form of the criterion, where
+ * property names are lower cased, values carry their type and the members of a set are sorted.  The scope keeps
+ * the plans of different indexes and analyzers apart.
+ * 
+ * @author aholinch
+ *
+ */
+public class QueryCompiler
+{
+	public static final int DEFAULT_MAX_PLANS = 1000;
+	
+	protected ObjectCache<Query> plans = null;
+	
+	/**
+	 * @param maxPlans compiled queries to keep, 0 to compile every time
+	 */
+	public QueryCompiler(int maxPlans)
+	{
+		if(maxPlans > 0)
+		{
+			plans = new ObjectCache<Query>(maxPlans,0);
+		}
+	}
+	
+	/**
+	 * Get the compiled query for the criterion, compiling it if it isn't cached.
+	 * 
+	 * @param crit
+	 * @param analyzer the analyzer of the index being searched
+	 * @param scope identifies the index and analyzer
+	 * @return
+	 * @throws NoGraphException
+	 */
+	public Query compile(Criterion crit, Analyzer analyzer, String scope) throws NoGraphException
+	{
+		if(crit == null)
+		{
+			throw new NoGraphException("No criterion specified");
+		}
+		
+		if(plans == null) return toQuery(crit,analyzer);
+		
+		String key = scope + normalize(crit);
+		Query q = plans.get(key);
+		if(q == null)
+		{
+			long stamp = plans.getStamp();
+			q = toQuery(crit,analyzer);
+			plans.put(key, q, 2*key.length(), stamp);
+		}
+		return q;
+	}
+	
+	/**
+	 * @return null if plans aren't cached
+	 */
+	public ObjectCache<Query> getCache()
+	{
+		return plans;
+	}
+	
+	public void clear()
+	{
+		if(plans != null) plans.clear();
+	}
+	
+	protected Query toQuery(Criterion crit, Analyzer analyzer) throws NoGraphException
+	{
+		if(crit instanceof SimpleCriterion)
+		{
+			return getSimpleQuery((SimpleCriterion)crit,analyzer);
+		}
+		else if(crit instanceof SetCriterion)
+		{
+			return getSetQuery((SetCriterion)crit,analyzer);
+		}
+		else if(crit instanceof RangeCriterion)
+		{
+			RangeCriterion rc = (RangeCriterion)crit;
+			return getRangeQuery(getField(rc.getKey()),rc.getMinValue(),rc.getMinInclusive(),rc.getMaxValue(),rc.getMaxInclusive(),analyzer);
+		}
+		
+		throw new NoGraphException("Unsupported criterion " + crit.getClass().getName());
+	}
+	
+	protected Query getSetQuery(SetCriterion crit, Analyzer analyzer) throws NoGraphException
+	{
+		int numcrit = crit.getNumCriteria();
+		if(numcrit < 1)
+		{
+			throw new NoGraphException("No criteria in set");
+		}
+		
+		if(numcrit == 1) return toQuery(crit.getCriterion(0),analyzer);
+		
+		BooleanClause.Occur occur = BooleanClause.Occur.MUST;
+		if(crit.getSetOperation() == SetCriterion.COMB_OR)
+		{
+			occur = BooleanClause.Occur.SHOULD;
+		}
+		
+		BooleanQuery.Builder bqb = new BooleanQuery.Builder();
+		for(int i=0; i<numcrit; i++)
+		{
+			bqb.add(toQuery(crit.getCriterion(i),analyzer),occur);
+		}
+		return bqb.build();
+	}
+	
+	protected Query getSimpleQuery(SimpleCriterion crit, Analyzer analyzer) throws NoGraphException
+	{
+		Object val = crit.getValue();
+		if(val instanceof Criterion)
+		{
+			return toQuery((Criterion)val,analyzer);
+		}
+		
+		String field = getField(crit.getKey());
+		
+		switch(crit.getOperator())
+		{
+			case SimpleCriterion.OP_EQUAL:
+				return getEqualsQuery(field,val,analyzer);
+			case SimpleCriterion.OP_NOT_EQUAL:
+				return new BooleanQuery.Builder()
+						.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST)
+						.add(getEqualsQuery(field,val,analyzer), BooleanClause.Occur.MUST_NOT)
+						.build();
+			case SimpleCriterion.OP_GT:
+				return getRangeQuery(field,val,false,null,false,analyzer);
+			case SimpleCriterion.OP_GE:
+				return getRangeQuery(field,val,true,null,false,analyzer);
+			case SimpleCriterion.OP_LT:
+				return getRangeQuery(field,null,false,val,false,analyzer);
+			case SimpleCriterion.OP_LE:
+				return getRangeQuery(field,null,false,val,true,analyzer);
+			case SimpleCriterion.OP_LIKE:
+				if(val == null) break;
+				// * and ? wildcards, normalized like the indexed terms
+				return new WildcardQuery(new Term(field,analyzer.normalize(field,String.valueOf(val))));
+		}
+		
+		throw new NoGraphException("Unsupported operator " + crit.getOperator() + " for " + crit.getKey());
+	}
+	
+	@SuppressWarnings("rawtypes")
+	protected Query getEqualsQuery(String field, Object val, Analyzer analyzer) throws NoGraphException
+	{
+		if(val == null)
+		{
+			// what the parsed query strings looked for
+			val = "null";
+		}
+		
+		if(val instanceof String)
+		{
+			List<String> terms = analyze(field,(String)val,analyzer);
+			if(terms.size() == 0) return new MatchNoDocsQuery();
+			if(terms.size() == 1) return new TermQuery(new Term(field,terms.get(0)));
+			return new PhraseQuery(field,terms.toArray(new String[terms.size()]));
+		}
+		else if(val instanceof Integer)
+		{
+			return IntPoint.newExactQuery(field,((Integer)val).intValue());
+		}
+		else if(val instanceof Long)
+		{
+			return LongPoint.newExactQuery(field,((Long)val).longValue());
+		}
+		else if(val instanceof java.util.Date)
+		{
+			return LongPoint.newExactQuery(field,((java.util.Date)val).getTime());
+		}
+		else if(val instanceof Number)
+		{
+			return DoublePoint.newExactQuery(field,((Number)val).doubleValue());
+		}
+		else if(val instanceof Iterable || val.getClass().isArray())
+		{
+			// matches any of them, like a multi valued property matches any of its values
+			List<Object> vals = toList(val);
+			if(vals.size() == 0) return new MatchNoDocsQuery();
+			
+			BooleanQuery.Builder bqb = new BooleanQuery.Builder();
+			for(Object o:vals)
+			{
+				bqb.add(getEqualsQuery(field,o,analyzer),BooleanClause.Occur.SHOULD);
+			}
+			return bqb.build();
+		}
+		
+		return new TermQuery(new Term(field,String.valueOf(val)));
+	}
+	
+	/**
+	 * A range with either end open when its value is null.  The type of the range comes from the min, or the max if
+	 * there is no min.
+	 */
+	protected Query getRangeQuery(String field, Object min, boolean minInc, Object max, boolean maxInc, Analyzer analyzer) throws NoGraphException
+	{
+		Object val = min != null?min:max;
+		if(val == null)
+		{
+			throw new NoGraphException("Range for " + field + " has no values");
+		}
+		
+		if(val instanceof Integer)
+		{
+			int lo = min == null?Integer.MIN_VALUE:toNumber(min).intValue();
+			int hi = max == null?Integer.MAX_VALUE:toNumber(max).intValue();
+			if(min != null && !minInc)
+			{
+				if(lo == Integer.MAX_VALUE) return new MatchNoDocsQuery();
+				lo++;
+			}
+			if(max != null && !maxInc)
+			{
+				if(hi == Integer.MIN_VALUE) return new MatchNoDocsQuery();
+				hi--;
+			}
+			return IntPoint.newRangeQuery(field,lo,hi);
+		}
+		else if(val instanceof Long || val instanceof java.util.Date)
+		{
+			long lo = min == null?Long.MIN_VALUE:toNumber(min).longValue();
+			long hi = max == null?Long.MAX_VALUE:toNumber(max).longValue();
+			if(min != null && !minInc)
+			{
+				if(lo == Long.MAX_VALUE) return new MatchNoDocsQuery();
+				lo++;
+			}
+			if(max != null && !maxInc)
+			{
+				if(hi == Long.MIN_VALUE) return new MatchNoDocsQuery();
+				hi--;
+			}
+			return LongPoint.newRangeQuery(field,lo,hi);
+		}
+		else if(val instanceof Number)
+		{
+			double lo = min == null?Double.NEGATIVE_INFINITY:toNumber(min).doubleValue();
+			double hi = max == null?Double.POSITIVE_INFINITY:toNumber(max).doubleValue();
+			if(min != null && !minInc) lo = Math.nextUp(lo);
+			if(max != null && !maxInc) hi = Math.nextDown(hi);
+			return DoublePoint.newRangeQuery(field,lo,hi);
+		}
+		
+		// strings are normalized the way the parser did for ranges
+		BytesRef lo = min == null?null:analyzer.normalize(field,String.valueOf(min));
+		BytesRef hi = max == null?null:analyzer.normalize(field,String.valueOf(max));
+		return new TermRangeQuery(field,lo,hi,min == null || minInc,max == null || maxInc);
+	}
+	
+	protected Number toNumber(Object val) throws NoGraphException
+	{
+		if(val instanceof Number) return (Number)val;
+		if(val instanceof java.util.Date) return Long.valueOf(((java.util.Date)val).getTime());
+		throw new NoGraphException("Expected a number but got " + val);
+	}
+	
+	@SuppressWarnings("rawtypes")
+	protected static List<Object> toList(Object val)
+	{
+		List<Object> out = new ArrayList<Object>();
+		if(val instanceof Iterable)
+		{
+			Iterator it = ((Iterable)val).iterator();
+			while(it.hasNext())
+			{
+				out.add(it.next());
+			}
+		}
+		else
+		{
+			int len = Array.getLength(val);
+			for(int i=0; i<len; i++)
+			{
+				out.add(Array.get(val, i));
+			}
+		}
+		return out;
+	}
+	
+	/**
+	 * Property names are lower cased when they are indexed.
+	 * 
+	 * @param key
+	 * @return
+	 * @throws NoGraphException
+	 */
+	protected static String getField(String key) throws NoGraphException
+	{
+		if(key == null)
+		{
+			throw new NoGraphException("Criterion has no key");
+		}
+		return key.toLowerCase();
+	}
+	
+	protected List<String> analyze(String field, String text, Analyzer analyzer) throws NoGraphException
+	{
+		List<String> out = new ArrayList<String>();
+		TokenStream ts = null;
+		try
+		{
+			ts = analyzer.tokenStream(field, text);
+			CharTermAttribute attr = ts.addAttribute(CharTermAttribute.class);
+			ts.reset();
+			while(ts.incrementToken())
+			{
+				out.add(attr.toString());
+			}
+			ts.end();
+		}
+		catch(Exception ex)
+		{
+			throw new NoGraphException("Error analyzing " + text, ex);
+		}
+		finally
+		{
+			if(ts != null)try{ts.close();}catch(Exception ex){};
+		}
+		return out;
+	}
+	
+	/**
+	 * A string that is the same for criteria that compile to the same query.
+	 * 
+	 * @param crit
+	 * @return
+	 */
+	public static String normalize(Criterion crit)
+	{
+		StringBuilder sb = new StringBuilder();
+		normalize(crit,sb);
+		return sb.toString();
+	}
+	
+	protected static void normalize(Criterion crit, StringBuilder sb)
+	{
+		if(crit instanceof SimpleCriterion)
+		{
+			SimpleCriterion sc = (SimpleCriterion)crit;
+			sb.append("(").append(sc.getOperator());
+			appendKey(sc.getKey(),sb);
+			appendValue(sc.getValue(),sb);
+			sb.append(")");
+		}
+		else if(crit instanceof RangeCriterion)
+		{
+			RangeCriterion rc = (RangeCriterion)crit;
+			sb.append(rc.getMinInclusive()?"[":"{");
+			appendKey(rc.getKey(),sb);
+			appendValue(rc.getMinValue(),sb);
+			appendValue(rc.getMaxValue(),sb);
+			sb.append(rc.getMaxInclusive()?"]":"}");
+		}
+		else if(crit instanceof SetCriterion)
+		{
+			SetCriterion set = (SetCriterion)crit;
+			
+			// the order of the members doesn't change what matches
+			int num = set.getNumCriteria();
+			List<String> members = new ArrayList<String>(num);
+			for(int i=0; i<num; i++)
+			{
+				members.add(normalize(set.getCriterion(i)));
+			}
+			Collections.sort(members);
+			
+			sb.append("(").append(set.getSetOperation() == SetCriterion.COMB_OR?"OR":"AND");
+			for(int i=0; i<num; i++)
+			{
+				sb.append(" ").append(members.get(i));
+			}
+			sb.append(")");
+		}
+		else
+		{
+			sb.append("(?").append(crit).append(")");
+		}
+	}
+	
+	protected static void appendKey(String key, StringBuilder sb)
+	{
+		if(key == null)
+		{
+			sb.append(" -");
+			return;
+		}
+		
+		// length prefixed so no key or value can run into the next
+		key = key.toLowerCase();
+		sb.append(" ").append(key.length()).append(":").append(key);
+	}
+	
+	protected static void appendValue(Object val, StringBuilder sb)
+	{
+		sb.append(" ");
+		if(val == null)
+		{
+			sb.append("n");
+		}
+		else if(val instanceof Criterion)
+		{
+			normalize((Criterion)val,sb);
+		}
+		else if(val instanceof String)
+		{
+			String str = (String)val;
+			sb.append("s").append(str.length()).append(":").append(str);
+		}
+		else if(val instanceof Integer)
+		{
+			sb.append("i").append(val);
+		}
+		else if(val instanceof Long)
+		{
+			sb.append("l").append(val);
+		}
+		else if(val instanceof java.util.Date)
+		{
+			sb.append("l").append(((java.util.Date)val).getTime());
+		}
+		else if(val instanceof Number)
+		{
+			sb.append("d").append(((Number)val).doubleValue());
+		}
+		else if(val instanceof Iterable || val.getClass().isArray())
+		{
+			List<Object> vals = toList(val);
+			sb.append("[");
+			for(Object o:vals)
+			{
+				appendValue(o,sb);
+			}
+			sb.append("]");
+		}
+		else
+		{
+			String str = String.valueOf(val);
+			sb.append("o").append(str.length()).append(":").append(str);
+		}
+	}
+}
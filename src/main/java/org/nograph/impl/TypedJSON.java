@@ -0,0 +1,247 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.nograph.Node;
+import org.nograph.PropertyHolder;
+import org.nograph.Relationship;
+import org.nograph.util.json.JSONArray;
+import org.nograph.util.json.JSONObject;
+
+/**
+ * JSON for nodes and relationships that keeps the class of every property value, used by the write-ahead log and
+ * graph dumps.  An object is {"id":..,"type":..,"p":{name:[tag,value]}} and relationships add n1, n1t, n2 and n2t
+ * for their endpoints.
+ *
+ * @author aholinch
+ *
+ */
+public class TypedJSON
+{
+	public static JSONObject encodeHolder(PropertyHolder ph)
+	{
+		JSONObject o = new JSONObject();
+		o.put("id", ph.getID());
+		o.put("type", ph.getType());
+
+		JSONObject p = new JSONObject();
+		Map<String,Object> m = ph.getPropertyMap();
+		if(m != null)
+		{
+			Iterator<Map.Entry<String,Object>> iter = m.entrySet().iterator();
+			Map.Entry<String,Object> e = null;
+			while(iter.hasNext())
+			{
+				e = iter.next();
+				if(e.getKey() != null && e.getValue() != null)
+				{
+					p.put(e.getKey(), encodeValue(e.getValue()));
+				}
+			}
+		}
+		o.put("p", p);
+
+		return o;
+	}
+
+	/**
+	 * Values are written as a type tag and a string so they come back as the same class and index the same way.
+	 *
+	 * @param val
+	 * @return
+	 */
+	@SuppressWarnings("rawtypes")
+	public static JSONArray encodeValue(Object val)
+	{
+		JSONArray arr = new JSONArray();
+
+		String tag = "s";
+		Object str = null;
+		if(val instanceof String)
+		{
+			str = val;
+		}
+		else if(val instanceof Date)
+		{
+			tag = "t";
+			str = String.valueOf(((Date)val).getTime());
+		}
+		else if(val instanceof Long)
+		{
+			tag = "l";
+		}
+		else if(val instanceof Integer)
+		{
+			tag = "i";
+		}
+		else if(val instanceof Double)
+		{
+			tag = "d";
+		}
+		else if(val instanceof Float)
+		{
+			tag = "f";
+		}
+		else if(val instanceof Short)
+		{
+			tag = "h";
+		}
+		else if(val instanceof Boolean)
+		{
+			tag = "b";
+		}
+		else if(val instanceof Collection || val.getClass().isArray())
+		{
+			tag = "a";
+			JSONArray vals = new JSONArray();
+			if(val instanceof Collection)
+			{
+				Iterator iter = ((Collection)val).iterator();
+				while(iter.hasNext())
+				{
+					Object v = iter.next();
+					if(v != null) vals.put(encodeValue(v));
+				}
+			}
+			else
+			{
+				int len = Array.getLength(val);
+				for(int i=0; i<len; i++)
+				{
+					Object v = Array.get(val, i);
+					if(v != null) vals.put(encodeValue(v));
+				}
+			}
+			str = vals;
+		}
+
+		if(str == null)
+		{
+			str = String.valueOf(val);
+		}
+
+		arr.put(tag);
+		arr.put(str);
+		return arr;
+	}
+
+	public static Object decodeValue(JSONArray arr)
+	{
+		String tag = arr.getString(0);
+
+		if(tag.equals("a"))
+		{
+			JSONArray vals = arr.getJSONArray(1);
+			int len = vals.length();
+			List<Object> out = new ArrayList<Object>(len);
+			for(int i=0; i<len; i++)
+			{
+				out.add(decodeValue(vals.getJSONArray(i)));
+			}
+			return out;
+		}
+
+		String str = arr.getString(1);
+		char c = tag.charAt(0);
+		switch(c)
+		{
+			case 't': return new Date(Long.parseLong(str));
+			case 'l': return Long.valueOf(str);
+			case 'i': return Integer.valueOf(str);
+			case 'd': return Double.valueOf(str);
+			case 'f': return Float.valueOf(str);
+			case 'h': return Short.valueOf(str);
+			case 'b': return Boolean.valueOf(str);
+			default: return str;
+		}
+	}
+
+	public static void decodeHolder(JSONObject o, PropertyHolder ph)
+	{
+		if(o.has("id")) ph.setID(o.getString("id"));
+		if(o.has("type")) ph.setType(o.getString("type"));
+
+		JSONObject p = o.optJSONObject("p");
+		if(p != null)
+		{
+			Iterator<String> keys = p.keys();
+			String key = null;
+			while(keys.hasNext())
+			{
+				key = keys.next();
+				ph.setProperty(key, decodeValue(p.getJSONArray(key)));
+			}
+		}
+	}
+
+	/**
+	 * A relationship with its endpoint ids and types as n1, n1t, n2 and n2t.
+	 *
+	 * @param r
+	 * @return
+	 */
+	public static JSONObject encodeRelationship(Relationship r)
+	{
+		JSONObject o = encodeHolder(r);
+		if(r.getNode1() != null)
+		{
+			o.put("n1", r.getNode1ID());
+			o.put("n1t", r.getNode1Type());
+		}
+		if(r.getNode2() != null)
+		{
+			o.put("n2", r.getNode2ID());
+			o.put("n2t", r.getNode2Type());
+		}
+		return o;
+	}
+
+	public static Node decodeNode(JSONObject o)
+	{
+		GenericNode n = new GenericNode();
+		decodeHolder(o,n);
+		return n;
+	}
+
+	public static Relationship decodeRelationship(JSONObject o)
+	{
+		GenericRelationship r = new GenericRelationship();
+		decodeHolder(o,r);
+		r.setNode1(endpoint(o,"n1"));
+		r.setNode2(endpoint(o,"n2"));
+		return r;
+	}
+
+	protected static Node endpoint(JSONObject o, String key)
+	{
+		if(!o.has(key)) return null;
+
+		GenericNode n = new GenericNode();
+		n.setID(o.getString(key));
+		if(o.has(key+"t")) n.setType(o.getString(key+"t"));
+		return n;
+	}
+}
@@ -0,0 +1,522 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.nograph.GraphBatch;
+import org.nograph.NoGraphException;
+import org.nograph.Node;
+import org.nograph.Relationship;
+import org.nograph.util.json.JSONArray;
+import org.nograph.util.json.JSONObject;
+
+/**
+ * An append-only log of graph mutations.  Each mutation is written as a GraphBatch record before it is applied
+ * to the indexes, and synced before the write is acknowledged.  Concurrent writers share an fsync.  After a
+ * crash the records past the last index commit are replayed, and once a commit covers a segment it is removed.
+ *
+ * Records are a 4 byte payload length, 8 byte log sequence number (LSN), 4 byte CRC32 of the payload and the
+ * payload as UTF-8 JSON.
+ *
+ * @author aholinch
+ *
+ */
+public class WriteAheadLog
+{
+	private static final Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+
+	public static final long DEFAULT_SEGMENT_SIZE = 64L*1024L*1024L;
+
+	protected static final int HEADER_SIZE = 16;
+	protected static final String PREFIX = "wal-";
+	protected static final String SUFFIX = ".log";
+
+	protected String dir = null;
+	protected long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+	protected File current = null;
+	protected FileChannel channel = null;
+	protected long currentSize = 0;
+
+	// segments no longer appended to, with the last LSN in each
+	protected List<File> closedFiles = new ArrayList<File>();
+	protected List<Long> closedLast = new ArrayList<Long>();
+
+	protected long lastLSN = 0;
+	protected volatile long syncedLSN = 0;
+
+	// appended but not yet applied to the indexes
+	protected final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<Long>();
+
+	// always take syncLock before appendLock
+	protected final Object appendLock = new Object();
+	protected final Object syncLock = new Object();
+
+	/**
+	 * Receives the records found when the log is opened.
+	 */
+	public static interface Replayer
+	{
+		public void replay(long lsn, GraphBatch batch) throws NoGraphException;
+	}
+
+	public WriteAheadLog(String walDir, long segSize)
+	{
+		dir = walDir;
+		if(segSize > 0) segmentSize = segSize;
+	}
+
+	/**
+	 * Read the existing segments, hand every record past afterLSN to the replayer and start a new segment.
+	 * A torn or corrupt record ends the log, it and anything after it are discarded.
+	 *
+	 * @param afterLSN
+	 * @param replayer
+	 * @return the number of records replayed
+	 * @throws NoGraphException
+	 */
+	public long open(long afterLSN, Replayer replayer) throws NoGraphException
+	{
+		long count = 0;
+
+		synchronized(syncLock)
+		{
+			synchronized(appendLock)
+			{
+				File d = new File(dir);
+				d.mkdirs();
+
+				File files[] = d.listFiles();
+				List<File> segs = new ArrayList<File>();
+				if(files != null)
+				{
+					for(int i=0; i<files.length; i++)
+					{
+						if(files[i].getName().startsWith(PREFIX) && files[i].getName().endsWith(SUFFIX))
+						{
+							segs.add(files[i]);
+						}
+					}
+				}
+
+				// names are zero padded first LSNs
+				File sorted[] = segs.toArray(new File[segs.size()]);
+				Arrays.sort(sorted);
+
+				lastLSN = afterLSN;
+				boolean good = true;
+				for(int i=0; i<sorted.length; i++)
+				{
+					if(!good)
+					{
+						logger.warning("Discarding log segment after corruption " + sorted[i]);
+						sorted[i].delete();
+						continue;
+					}
+
+					long segLast[] = new long[]{lastLSN};
+					long n[] = new long[]{0};
+					good = readSegment(sorted[i],afterLSN,replayer,segLast,n);
+					count += n[0];
+					lastLSN = Math.max(lastLSN, segLast[0]);
+
+					if(sorted[i].length() == 0)
+					{
+						sorted[i].delete();
+					}
+					else
+					{
+						closedFiles.add(sorted[i]);
+						closedLast.add(segLast[0]);
+					}
+				}
+
+				syncedLSN = lastLSN;
+				startSegment();
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Read one segment.  Truncates it at the first bad record.
+	 *
+	 * @return false if a bad record was found
+	 */
+	protected boolean readSegment(File f, long afterLSN, Replayer replayer, long segLast[], long count[]) throws NoGraphException
+	{
+		FileChannel ch = null;
+		boolean good = true;
+		try
+		{
+			ch = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long size = ch.size();
+			long pos = 0;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			CRC32 crc = new CRC32();
+
+			while(pos < size)
+			{
+				header.clear();
+				if(!readFully(ch,header,pos))
+				{
+					good = false;
+					break;
+				}
+				header.flip();
+				int len = header.getInt();
+				long lsn = header.getLong();
+				int sum = header.getInt();
+
+				if(len < 0 || pos + HEADER_SIZE + len > size)
+				{
+					good = false;
+					break;
+				}
+
+				ByteBuffer payload = ByteBuffer.allocate(len);
+				if(!readFully(ch,payload,pos+HEADER_SIZE))
+				{
+					good = false;
+					break;
+				}
+
+				crc.reset();
+				crc.update(payload.array(),0,len);
+				if((int)crc.getValue() != sum)
+				{
+					good = false;
+					break;
+				}
+
+				if(lsn > afterLSN && replayer != null)
+				{
+					String json = new String(payload.array(),0,len,StandardCharsets.UTF_8);
+					replayer.replay(lsn, decode(json));
+					count[0]++;
+				}
+
+				segLast[0] = Math.max(segLast[0], lsn);
+				pos += HEADER_SIZE + len;
+			}
+
+			if(!good)
+			{
+				logger.warning("Truncating log segment " + f + " at " + pos);
+				ch.truncate(pos);
+				ch.force(true);
+			}
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			throw new NoGraphException("Error reading log segment " + f, ex);
+		}
+		finally
+		{
+			if(ch != null)try{ch.close();}catch(Exception ex){};
+		}
+
+		return good;
+	}
+
+	protected boolean readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException
+	{
+		while(buf.hasRemaining())
+		{
+			int n = ch.read(buf, pos);
+			if(n < 0) return false;
+			pos += n;
+		}
+		return true;
+	}
+
+	protected void startSegment() throws NoGraphException
+	{
+		try
+		{
+			current = new File(dir, PREFIX + String.format("%020d", lastLSN+1) + SUFFIX);
+			channel = FileChannel.open(current.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			currentSize = channel.size();
+		}
+		catch(Exception ex)
+		{
+			throw new NoGraphException("Error creating log segment", ex);
+		}
+	}
+
+	/**
+	 * Append the batch.  It is not durable until sync is called with the returned LSN.
+	 *
+	 * @param batch
+	 * @return the LSN of the record
+	 * @throws NoGraphException
+	 */
+	public long append(GraphBatch batch) throws NoGraphException
+	{
+		byte payload[] = encode(batch).getBytes(StandardCharsets.UTF_8);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE+payload.length);
+
+		synchronized(appendLock)
+		{
+			long lsn = lastLSN + 1;
+			buf.putInt(payload.length);
+			buf.putLong(lsn);
+			buf.putInt((int)crc.getValue());
+			buf.put(payload);
+			buf.flip();
+
+			try
+			{
+				while(buf.hasRemaining())
+				{
+					channel.write(buf);
+				}
+			}
+			catch(Exception ex)
+			{
+				throw new NoGraphException("Error appending to log", ex);
+			}
+
+			currentSize += HEADER_SIZE + payload.length;
+			lastLSN = lsn;
+			inFlight.add(lsn);
+			return lsn;
+		}
+	}
+
+	/**
+	 * The record has been applied to the index writers, or failed to be.
+	 *
+	 * @param lsn
+	 */
+	public void applied(long lsn)
+	{
+		inFlight.remove(lsn);
+	}
+
+	/**
+	 * Every record at or below this LSN has been applied to the index writers so a commit started now covers it.
+	 *
+	 * @return
+	 */
+	public long getAppliedLSN()
+	{
+		synchronized(appendLock)
+		{
+			if(inFlight.isEmpty()) return lastLSN;
+			return inFlight.first()-1;
+		}
+	}
+
+	public long getLastLSN()
+	{
+		synchronized(appendLock)
+		{
+			return lastLSN;
+		}
+	}
+
+	/**
+	 * Block until the record is on disk.  One fsync covers every record appended before it started.
+	 *
+	 * @param lsn
+	 * @throws NoGraphException
+	 */
+	public void sync(long lsn) throws NoGraphException
+	{
+		if(syncedLSN >= lsn) return;
+
+		synchronized(syncLock)
+		{
+			if(syncedLSN >= lsn) return;
+
+			long target = 0;
+			FileChannel ch = null;
+			synchronized(appendLock)
+			{
+				target = lastLSN;
+				ch = channel;
+			}
+
+			try
+			{
+				ch.force(false);
+			}
+			catch(Exception ex)
+			{
+				throw new NoGraphException("Error syncing log", ex);
+			}
+			syncedLSN = target;
+		}
+	}
+
+	/**
+	 * The indexes have been committed up to lsn.  Removes segments that are fully covered and truncates the
+	 * current one if everything in it is covered, otherwise rolls to a new segment once it is large.
+	 *
+	 * @param lsn
+	 */
+	public void checkpoint(long lsn)
+	{
+		synchronized(syncLock)
+		{
+			synchronized(appendLock)
+			{
+				for(int i=closedFiles.size()-1; i>=0; i--)
+				{
+					if(closedLast.get(i) <= lsn)
+					{
+						closedFiles.get(i).delete();
+						closedFiles.remove(i);
+						closedLast.remove(i);
+					}
+				}
+
+				try
+				{
+					if(currentSize > 0 && lastLSN <= lsn)
+					{
+						channel.truncate(0);
+						channel.force(true);
+						currentSize = 0;
+						syncedLSN = Math.max(syncedLSN, lastLSN);
+					}
+					else if(currentSize >= segmentSize)
+					{
+						channel.force(false);
+						channel.close();
+						syncedLSN = Math.max(syncedLSN, lastLSN);
+						closedFiles.add(current);
+						closedLast.add(lastLSN);
+						startSegment();
+					}
+				}
+				catch(Exception ex)
+				{
+					logger.log(Level.SEVERE, "Error checkpointing log", ex);
+				}
+			}
+		}
+	}
+
+	public void close()
+	{
+		synchronized(syncLock)
+		{
+			synchronized(appendLock)
+			{
+				if(channel == null) return;
+				try
+				{
+					channel.force(false);
+					channel.close();
+				}
+				catch(Exception ex)
+				{
+					logger.log(Level.WARNING, "Error closing log", ex);
+				}
+				channel = null;
+			}
+		}
+	}
+
+	protected String encode(GraphBatch batch)
+	{
+		JSONObject obj = new JSONObject();
+
+		JSONArray arr = new JSONArray();
+		List<Node> nodes = batch.getNodes();
+		int size = nodes.size();
+		for(int i=0; i<size; i++)
+		{
+			arr.put(TypedJSON.encodeHolder(nodes.get(i)));
+		}
+		obj.put("n", arr);
+
+		arr = new JSONArray();
+		List<Relationship> rels = batch.getRelationships();
+		size = rels.size();
+		for(int i=0; i<size; i++)
+		{
+			arr.put(TypedJSON.encodeRelationship(rels.get(i)));
+		}
+		obj.put("r", arr);
+
+		obj.put("dn", new JSONArray(batch.getDeletedNodeIDs()));
+		obj.put("dr", new JSONArray(batch.getDeletedRelationshipIDs()));
+
+		return obj.toString();
+	}
+
+	protected GraphBatch decode(String json)
+	{
+		GraphBatch batch = new GraphBatch();
+		JSONObject obj = new JSONObject(json);
+
+		JSONArray arr = obj.getJSONArray("n");
+		int len = arr.length();
+		for(int i=0; i<len; i++)
+		{
+			batch.saveNode(TypedJSON.decodeNode(arr.getJSONObject(i)));
+		}
+
+		arr = obj.getJSONArray("r");
+		len = arr.length();
+		for(int i=0; i<len; i++)
+		{
+			batch.saveRelationship(TypedJSON.decodeRelationship(arr.getJSONObject(i)));
+		}
+
+		arr = obj.getJSONArray("dn");
+		len = arr.length();
+		for(int i=0; i<len; i++)
+		{
+			batch.deleteNode(arr.getString(i));
+		}
+
+		arr = obj.getJSONArray("dr");
+		len = arr.length();
+		for(int i=0; i<len; i++)
+		{
+			batch.deleteRelationship(arr.getString(i));
+		}
+
+		return batch;
+	}
+}
@@ -0,0 +1,278 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.lucene;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.codecs.lucene99.Lucene99Codec;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+
+/**
+ * IndexWriter and Directory tuning.  Anything left unset keeps the Lucene default, so an empty instance gives the
+ * same index as before.
+ *
+ * Ingest-heavy graphs usually want a bigger RAM buffer, more merge threads and BEST_SPEED.  Read-heavy graphs
+ * want mmap and BEST_COMPRESSION so more of the index fits in the page cache.
+ *
+ * @author aholinch
+ *
+ */
+public class IndexSettings
+{
+	public static final String DIR_FS = "fs";
+	public static final String DIR_MMAP = "mmap";
+	public static final String DIR_NIOFS = "niofs";
+
+	public static final String MERGE_TIERED = "tiered";
+	public static final String MERGE_LOG_BYTES = "logbytesize";
+	public static final String MERGE_LOG_DOCS = "logdoc";
+
+	public static final String COMPRESSION_SPEED = "speed";
+	public static final String COMPRESSION_BEST = "compression";
+
+	protected double ramBufferMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+	protected int maxBufferedDocs = IndexWriterConfig.DISABLE_AUTO_FLUSH;
+	protected String mergePolicy = null;
+	protected int mergeThreads = 0;
+	protected int maxMergeCount = 0;
+	protected String compression = null;
+	protected String directoryType = null;
+	protected Boolean useCompoundFile = null;
+
+	public IndexSettings()
+	{
+
+	}
+
+	public double getRAMBufferMB()
+	{
+		return ramBufferMB;
+	}
+
+	public void setRAMBufferMB(double mb)
+	{
+		ramBufferMB = mb;
+	}
+
+	public int getMaxBufferedDocs()
+	{
+		return maxBufferedDocs;
+	}
+
+	/**
+	 * Flush after this many docs as well as when the RAM buffer fills, -1 to only use the buffer.
+	 *
+	 * @param num
+	 */
+	public void setMaxBufferedDocs(int num)
+	{
+		maxBufferedDocs = num;
+	}
+
+	public String getMergePolicy()
+	{
+		return mergePolicy;
+	}
+
+	/**
+	 * tiered, logbytesize or logdoc.
+	 *
+	 * @param str
+	 */
+	public void setMergePolicy(String str)
+	{
+		mergePolicy = str;
+	}
+
+	public int getMergeThreads()
+	{
+		return mergeThreads;
+	}
+
+	/**
+	 * Merge scheduler threads, 0 lets Lucene pick from the core count.
+	 *
+	 * @param num
+	 */
+	public void setMergeThreads(int num)
+	{
+		mergeThreads = num;
+	}
+
+	public int getMaxMergeCount()
+	{
+		return maxMergeCount;
+	}
+
+	/**
+	 * Merges allowed to queue before indexing threads are stalled, at least the thread count.
+	 *
+	 * @param num
+	 */
+	public void setMaxMergeCount(int num)
+	{
+		maxMergeCount = num;
+	}
+
+	public String getCompression()
+	{
+		return compression;
+	}
+
+	/**
+	 * Stored field compression, speed for BEST_SPEED or compression for BEST_COMPRESSION.
+	 *
+	 * @param str
+	 */
+	public void setCompression(String str)
+	{
+		compression = str;
+	}
+
+	public String getDirectoryType()
+	{
+		return directoryType;
+	}
+
+	/**
+	 * fs lets Lucene choose, mmap or niofs force one.
+	 *
+	 * @param str
+	 */
+	public void setDirectoryType(String str)
+	{
+		directoryType = str;
+	}
+
+	public Boolean getUseCompoundFile()
+	{
+		return useCompoundFile;
+	}
+
+	public void setUseCompoundFile(Boolean flag)
+	{
+		useCompoundFile = flag;
+	}
+
+	/**
+	 * Open the directory using the configured implementation.
+	 *
+	 * @param dir
+	 * @return
+	 * @throws IOException
+	 */
+	public Directory openDirectory(String dir) throws IOException
+	{
+		String type = lower(directoryType);
+		if(DIR_MMAP.equals(type))
+		{
+			return new MMapDirectory(Paths.get(dir));
+		}
+		else if(DIR_NIOFS.equals(type))
+		{
+			return new NIOFSDirectory(Paths.get(dir));
+		}
+		return FSDirectory.open(Paths.get(dir));
+	}
+
+	/**
+	 * Build a writer config with these settings.
+	 *
+	 * @param analyzer
+	 * @return
+	 */
+	public IndexWriterConfig createWriterConfig(Analyzer analyzer)
+	{
+		IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
+		iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+
+		// lucene won't allow both to be disabled so set the one being turned on first
+		if(ramBufferMB > 0)
+		{
+			iwc.setRAMBufferSizeMB(ramBufferMB);
+			iwc.setMaxBufferedDocs(maxBufferedDocs > 0?maxBufferedDocs:IndexWriterConfig.DISABLE_AUTO_FLUSH);
+		}
+		else if(maxBufferedDocs > 0)
+		{
+			iwc.setMaxBufferedDocs(maxBufferedDocs);
+			iwc.setRAMBufferSizeMB(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+		}
+
+		String policy = lower(mergePolicy);
+		if(MERGE_LOG_BYTES.equals(policy))
+		{
+			iwc.setMergePolicy(new LogByteSizeMergePolicy());
+		}
+		else if(MERGE_LOG_DOCS.equals(policy))
+		{
+			iwc.setMergePolicy(new LogDocMergePolicy());
+		}
+		else if(MERGE_TIERED.equals(policy))
+		{
+			iwc.setMergePolicy(new TieredMergePolicy());
+		}
+
+		if(mergeThreads > 0)
+		{
+			ConcurrentMergeScheduler cms = new ConcurrentMergeScheduler();
+			cms.setMaxMergesAndThreads(Math.max(mergeThreads, maxMergeCount), mergeThreads);
+			iwc.setMergeScheduler(cms);
+		}
+
+		String comp = lower(compression);
+		if(COMPRESSION_BEST.equals(comp))
+		{
+			iwc.setCodec(new Lucene99Codec(Lucene99Codec.Mode.BEST_COMPRESSION));
+		}
+		else if(COMPRESSION_SPEED.equals(comp))
+		{
+			iwc.setCodec(new Lucene99Codec(Lucene99Codec.Mode.BEST_SPEED));
+		}
+
+		if(useCompoundFile != null)
+		{
+			iwc.setUseCompoundFile(useCompoundFile.booleanValue());
+			iwc.getMergePolicy().setNoCFSRatio(useCompoundFile.booleanValue()?1.0:0.0);
+		}
+
+		return iwc;
+	}
+
+	protected static String lower(String str)
+	{
+		if(str == null) return null;
+		return str.trim().toLowerCase();
+	}
+
+	public String toString()
+	{
+		return "ram=" + ramBufferMB + " maxDocs=" + maxBufferedDocs + " merge=" + mergePolicy + " mergeThreads=" + mergeThreads +
+				" compression=" + compression + " dir=" + directoryType + " cfs=" + useCompoundFile;
+	}
+}
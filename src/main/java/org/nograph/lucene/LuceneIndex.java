@@ -17,33 +17,60 @@ limitations under the License.
 */
 package org.nograph.lucene;
 
-import java.nio.file.Paths;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.StoredFields;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermInSetQuery;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.nograph.NoGraphException;
 
@@ -59,11 +86,16 @@ public class LuceneIndex
 	
     protected IndexWriter writer = null;
     protected SearcherManager searcherMan = null;
+    
+    // when running, reads just acquire the current searcher instead of refreshing
+    protected ControlledRealTimeReopenThread<IndexSearcher> reopenThread = null;
     protected Analyzer analyzer = null;
     
     protected int defaultMaxHits = 100000;
+    protected int termChunkSize = 10000;
     protected String defaultField = "content";
     protected boolean readOnly = false;
+    protected IndexSettings settings = new IndexSettings();
     
     
     public LuceneIndex()
@@ -96,11 +128,25 @@ public class LuceneIndex
     	init(dir,analyzer,readOnlyFlag);
     }
     
+    /**
+     * Open with writer and directory tuning.
+     * 
+     * @param dir
+     * @param analyzer
+     * @param readOnlyFlag
+     * @param indexSettings
+     */
+    public LuceneIndex(String dir, Analyzer analyzer, boolean readOnlyFlag, IndexSettings indexSettings)
+    {
+    	if(indexSettings != null) settings = indexSettings;
+    	init(dir,analyzer,readOnlyFlag);
+    }
+    
     protected void init(String dir, Analyzer analyzer, boolean readOnlyFlag)
     {
     	try
     	{
-    		Directory diro = FSDirectory.open(Paths.get(dir));
+    		Directory diro = settings.openDirectory(dir);
     		init(diro,analyzer,readOnlyFlag);
     	}
     	catch(Exception ex)
@@ -122,8 +168,7 @@ public class LuceneIndex
 	    	
 	    	if(!readOnly)
 	    	{
-		        IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
-		        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+		        IndexWriterConfig iwc = settings.createWriterConfig(analyzer);
 		        
 		        writer = new IndexWriter(dir, iwc);
 		        
@@ -141,11 +186,26 @@ public class LuceneIndex
     	}
     }
     
+    public IndexSettings getSettings()
+    {
+    	return settings;
+    }
+    
     public Analyzer getAnalyzer()
     {
     	return analyzer;
     }
     
+    /**
+     * Change the analyzer used to parse queries.  The writer keeps the one the index was opened with.
+     * 
+     * @param a
+     */
+    public void setAnalyzer(Analyzer a)
+    {
+    	if(a != null) analyzer = a;
+    }
+    
     public Directory getDirectory()
     {
     	return writer.getDirectory();
@@ -183,8 +243,79 @@ public class LuceneIndex
     	}
     }
     
+    /**
+     * Commit with user data recorded in the commit point.
+     * 
+     * @param data
+     * @return false if the commit failed
+     */
+    public boolean commit(Map<String,String> data)
+    {
+    	try
+    	{
+    		writer.setLiveCommitData(data.entrySet());
+    		writer.commit();
+    		return true;
+    	}
+    	catch(Exception ex)
+    	{
+    		logger.log(Level.SEVERE, "Error commiting writer", ex);	
+    	}
+    	return false;
+    }
+    
+    /**
+     * The user data from the last commit, or what will be recorded with the next one.
+     * 
+     * @return
+     */
+    public Map<String,String> getCommitData()
+    {
+    	Map<String,String> data = new HashMap<String,String>();
+    	if(writer == null)
+    	{
+    		// read only, use the commit the searcher was opened on
+    		IndexSearcher is = null;
+    		try
+    		{
+    			is = searcherMan.acquire();
+    			IndexReader ir = is.getIndexReader();
+    			if(ir instanceof DirectoryReader)
+    			{
+    				data.putAll(((DirectoryReader)ir).getIndexCommit().getUserData());
+    			}
+    		}
+    		catch(Exception ex)
+    		{
+    			logger.log(Level.WARNING, "Error reading commit data", ex);
+    		}
+    		finally
+    		{
+    			close(is);
+    		}
+    		return data;
+    	}
+    	
+    	Iterable<Map.Entry<String,String>> iter = writer.getLiveCommitData();
+    	if(iter != null)
+    	{
+    		for(Map.Entry<String,String> e : iter)
+    		{
+    			data.put(e.getKey(), e.getValue());
+    		}
+    	}
+    	return data;
+    }
+    
+    public boolean hasUncommittedChanges()
+    {
+    	return writer != null && writer.hasUncommittedChanges();
+    }
+    
     public void close()
     {
+    	stopRefresher();
+    	
     	if(writer != null)
     	{
 	    	try
@@ -236,6 +367,54 @@ public class LuceneIndex
     	}
     }
     
+    /**
+     * Atomically delete any documents with the field value and add the new document.
+     * 
+     * @param field
+     * @param val
+     * @param doc
+     * @throws NoGraphException
+     */
+    public void updateDocument(String field, String val, Document doc) throws NoGraphException
+    {
+    	updateDocument(new Term(field,val),doc);
+    }
+    
+    public void updateDocument(Term t, Document doc) throws NoGraphException
+    {
+    	try
+    	{
+    		writer.updateDocument(t, doc);
+    	}
+    	catch(Exception ex)
+    	{
+    		logger.log(Level.WARNING, "Error updating doc", ex);
+    		throw new NoGraphException("Error updating doc",ex);
+    	}
+    }
+    
+    /**
+     * Update each document keyed by the value at the same position in vals.
+     * 
+     * @param field
+     * @param vals
+     * @param docs
+     * @throws NoGraphException
+     */
+    public void updateDocuments(String field, List<String> vals, List<Document> docs) throws NoGraphException
+    {
+    	int size = docs.size();
+    	if(vals.size() != size)
+    	{
+    		throw new NoGraphException("Need one key per document");
+    	}
+    	
+    	for(int i=0; i<size; i++)
+    	{
+    		updateDocument(new Term(field,vals.get(i)),docs.get(i));
+    	}
+    }
+    
     public void deleteDocuments(Query q) throws NoGraphException
     {
     	try
@@ -249,6 +428,207 @@ public class LuceneIndex
     	}
     }
     
+    /**
+     * Delete every document whose field matches one of the values.  The values are grouped into TermInSetQuery
+     * chunks so a large delete buffers a handful of queries instead of one term per value.
+     * 
+     * @param field
+     * @param vals
+     * @throws NoGraphException
+     */
+    public void deleteDocuments(String field, Collection<String> vals) throws NoGraphException
+    {
+    	if(vals == null || vals.size() == 0) return;
+    	
+    	List<BytesRef> terms = new ArrayList<BytesRef>(Math.min(vals.size(), termChunkSize));
+    	Iterator<String> iter = vals.iterator();
+    	String val = null;
+    	while(iter.hasNext())
+    	{
+    		val = iter.next();
+    		if(val == null) continue;
+    		
+    		terms.add(new BytesRef(val));
+    		if(terms.size() == termChunkSize)
+    		{
+    			deleteDocuments(new TermInSetQuery(field,terms));
+    			terms = new ArrayList<BytesRef>(termChunkSize);
+    		}
+    	}
+    	
+    	if(terms.size() > 0)
+    	{
+    		deleteDocuments(new TermInSetQuery(field,terms));
+    	}
+    }
+    
+    /**
+     * Look up the documents whose field has one of the values, keyed by that value.  The values are searched in
+     * TermInSetQuery chunks against one searcher.  If current is given current[0] says whether that searcher could
+     * see every change the writer had made.
+     * 
+     * @param field a stored, untokenized field like the id
+     * @param vals
+     * @param current
+     * @return
+     * @throws NoGraphException
+     */
+    public Map<String,Document> getDocuments(final String field, Collection<String> vals, boolean current[]) throws NoGraphException
+    {
+    	return getDocuments(field,vals,null,current);
+    }
+    
+    /**
+     * Look up the documents loading only the given stored fields, which must include the field searched on.
+     * 
+     * @param field
+     * @param vals
+     * @param fields null for every field
+     * @param current
+     * @return
+     * @throws NoGraphException
+     */
+    public Map<String,Document> getDocuments(final String field, Collection<String> vals, final Set<String> fields, boolean current[]) throws NoGraphException
+    {
+    	return getDocuments(field,vals,fields,current,true);
+    }
+    
+    /**
+     * @param field
+     * @param vals
+     * @param fields null for every field
+     * @param current
+     * @param refresh false to use the searcher as it is, see acquire(boolean)
+     * @return
+     * @throws NoGraphException
+     */
+    public Map<String,Document> getDocuments(final String field, Collection<String> vals, final Set<String> fields, boolean current[], boolean refresh) throws NoGraphException
+    {
+    	final Map<String,Document> docs = new HashMap<String,Document>();
+    	if(vals == null || vals.size() == 0) return docs;
+    	
+    	IndexSearcher is = null;
+    	try
+    	{
+    		is = acquire(refresh);
+    		
+    		CollectorManager<DocumentCollector,Object> col = new CollectorManager<DocumentCollector,Object>() {
+    			@Override
+    			public DocumentCollector newCollector() throws IOException
+    			{
+    				return new DocumentCollector(field,fields);
+    			}
+    			
+    			@Override
+    			public Object reduce(Collection<DocumentCollector> collectors) throws IOException
+    			{
+    				// collectors come in index order, only keep the first match like a search for one value would
+    				Iterator<DocumentCollector> it = collectors.iterator();
+    				Iterator<Map.Entry<String,Document>> dit = null;
+    				Map.Entry<String,Document> me = null;
+    				while(it.hasNext())
+    				{
+    					dit = it.next().docs.entrySet().iterator();
+    					while(dit.hasNext())
+    					{
+    						me = dit.next();
+    						if(!docs.containsKey(me.getKey())) docs.put(me.getKey(), me.getValue());
+    					}
+    				}
+    				return null;
+    			}
+    		};
+    		
+    		List<BytesRef> terms = new ArrayList<BytesRef>(Math.min(vals.size(), termChunkSize));
+    		Iterator<String> iter = vals.iterator();
+    		String val = null;
+    		while(iter.hasNext())
+    		{
+    			val = iter.next();
+    			if(val == null) continue;
+    			
+    			terms.add(new BytesRef(val));
+    			if(terms.size() == termChunkSize)
+    			{
+    				is.search(new TermInSetQuery(field,terms), col);
+    				terms = new ArrayList<BytesRef>(termChunkSize);
+    			}
+    		}
+    		
+    		if(terms.size() > 0)
+    		{
+    			is.search(new TermInSetQuery(field,terms), col);
+    		}
+    		
+    		if(current != null)
+    		{
+    			IndexReader ir = is.getIndexReader();
+    			current[0] = ir instanceof DirectoryReader && ((DirectoryReader)ir).isCurrent();
+    		}
+    	}
+    	catch(Exception ex)
+    	{
+    		logger.log(Level.WARNING, "Error getting documents", ex);
+    		throw new NoGraphException("Error getting documents", ex);
+    	}
+    	finally
+    	{
+    		close(is);
+    	}
+    	
+    	return docs;
+    }
+    
+    /**
+     * Keeps the first document for each value of the field.
+     */
+    protected static class DocumentCollector extends SimpleCollector
+    {
+    	protected String field = null;
+    	protected Set<String> fields = null;
+    	protected Map<String,Document> docs = new HashMap<String,Document>();
+    	protected StoredFields sf = null;
+    	
+    	protected DocumentCollector(String field, Set<String> fields)
+    	{
+    		this.field = field;
+    		this.fields = fields;
+    	}
+    	
+    	@Override
+    	protected void doSetNextReader(LeafReaderContext context) throws IOException
+    	{
+    		sf = context.reader().storedFields();
+    	}
+    	
+    	@Override
+    	public void collect(int doc) throws IOException
+    	{
+    		Document d = fields == null?sf.document(doc):sf.document(doc,fields);
+    		String val = d.get(field);
+    		if(val != null && !docs.containsKey(val))
+    		{
+    			docs.put(val, d);
+    		}
+    	}
+    	
+    	@Override
+    	public ScoreMode scoreMode()
+    	{
+    		return ScoreMode.COMPLETE_NO_SCORES;
+    	}
+    }
+    
+    public int getTermChunkSize()
+    {
+    	return termChunkSize;
+    }
+    
+    public void setTermChunkSize(int size)
+    {
+    	if(size > 0) termChunkSize = size;
+    }
+    
     public void deleteDocument(String field, String val) throws NoGraphException
     {
     	Term t = new Term(field,val);
@@ -269,6 +649,139 @@ public class LuceneIndex
     }
 
     
+    /**
+     * Start a background thread that reopens the searcher so it is never more than maxStaleMS behind the writer.
+     * Once started reads no longer refresh.  When someone is blocked in waitForGeneration the thread reopens
+     * within minStaleMS instead.
+     * 
+     * @param maxStaleMS
+     * @param minStaleMS
+     */
+    public synchronized void startRefresher(long maxStaleMS, long minStaleMS)
+    {
+    	if(writer == null || reopenThread != null) return;
+    	
+    	if(maxStaleMS <= 0) maxStaleMS = 1000;
+    	if(minStaleMS <= 0 || minStaleMS > maxStaleMS) minStaleMS = Math.min(25, maxStaleMS);
+    	
+    	reopenThread = new ControlledRealTimeReopenThread<IndexSearcher>(writer,searcherMan,maxStaleMS/1000.0,minStaleMS/1000.0);
+    	reopenThread.setName("nograph-refresh");
+    	reopenThread.setDaemon(true);
+    	reopenThread.start();
+    }
+    
+    public synchronized void stopRefresher()
+    {
+    	if(reopenThread != null)
+    	{
+    		reopenThread.close();
+    		reopenThread = null;
+    	}
+    }
+    
+    public boolean isBackgroundRefresh()
+    {
+    	return reopenThread != null;
+    }
+    
+    /**
+     * The generation of the writer, every operation that has completed so far is at or below it.
+     * 
+     * @return
+     */
+    public long getGeneration()
+    {
+    	if(writer == null) return -1;
+    	return writer.getMaxCompletedSequenceNumber();
+    }
+    
+    /**
+     * Block until searchers can see everything up to the generation.
+     * 
+     * @param gen
+     * @throws NoGraphException
+     */
+    public void waitForGeneration(long gen) throws NoGraphException
+    {
+    	ControlledRealTimeReopenThread<IndexSearcher> rt = reopenThread;
+    	
+    	// reads refresh for themselves when there is no thread
+    	if(rt == null || gen < 0) return;
+    	
+    	try
+    	{
+    		rt.waitForGeneration(gen);
+    	}
+    	catch(InterruptedException ex)
+    	{
+    		Thread.currentThread().interrupt();
+    		throw new NoGraphException("Interrupted waiting for refresh", ex);
+    	}
+    }
+    
+    /**
+     * Block until searchers can see every write that completed before this call.
+     * 
+     * @throws NoGraphException
+     */
+    public void waitForLatest() throws NoGraphException
+    {
+    	waitForGeneration(getGeneration());
+    }
+    
+    /**
+     * Wait for a searcher that sees every change made to the writer so far, for reads that can't be stale.
+     * 
+     * @throws NoGraphException
+     */
+    public void refresh() throws NoGraphException
+    {
+    	try
+    	{
+    		searcherMan.maybeRefreshBlocking();
+    	}
+    	catch(Exception ex)
+    	{
+    		logger.log(Level.WARNING, "Error refreshing searcher", ex);
+    		throw new NoGraphException("Error refreshing searcher", ex);
+    	}
+    }
+    
+    /**
+     * Every read goes through here.  Without the background thread the searcher is refreshed first.
+     * 
+     * @return
+     * @throws IOException
+     */
+    protected IndexSearcher acquire() throws IOException
+    {
+    	return acquire(true);
+    }
+    
+    /**
+     * @param refresh false to skip the refresh, for callers that know which writes the searcher may be missing
+     * @return
+     * @throws IOException
+     */
+    protected IndexSearcher acquire(boolean refresh) throws IOException
+    {
+    	if(refresh && reopenThread == null)
+    	{
+    		searcherMan.maybeRefresh();
+    	}
+    	return searcherMan.acquire();
+    }
+    
+    /**
+     * Be told when the searcher is refreshed, whichever thread does it.
+     * 
+     * @param listener
+     */
+    public void addRefreshListener(ReferenceManager.RefreshListener listener)
+    {
+    	searcherMan.addListener(listener);
+    }
+    
     public void close(IndexSearcher is)
     {
     	try
@@ -304,9 +817,7 @@ public class LuceneIndex
     	IndexReader ir = null;
     	try
     	{
-    		searcherMan.maybeRefresh();
-
-    		is = searcherMan.acquire();
+    		is = acquire();
     		ir = is.getIndexReader();
     		max = ir.maxDoc();
     	}
@@ -328,9 +839,7 @@ public class LuceneIndex
     	IndexSearcher is = null;
     	try
     	{
-    		searcherMan.maybeRefresh();
-
-    		is = searcherMan.acquire();
+    		is = acquire();
     		is.getIndexReader().maxDoc();
     		doc = is.doc(id);
     	}
@@ -352,9 +861,7 @@ public class LuceneIndex
     	IndexSearcher is = null;
     	try
     	{
-    		searcherMan.maybeRefresh();
-
-    		is = searcherMan.acquire();
+    		is = acquire();
     		
     		count = is.count(query);
     	}
@@ -420,9 +927,7 @@ public class LuceneIndex
     	IndexSearcher is = null;
     	try
     	{
-    		searcherMan.maybeRefresh();
-
-    		is = searcherMan.acquire();
+    		is = acquire();
     		
     		TopDocs td = null;
     		
@@ -456,15 +961,804 @@ public class LuceneIndex
     }
     
     /**
-     * Use with care.
+     * Search loading only the given stored fields.  With docValues the fields are read from their doc values
+     * copies, see LuceneUtil.getDocValuesField, and the stored fields are only read for documents missing one of
+     * them.  Either way the values come back as stored fields on the documents.
      * 
+     * @param query
+     * @param max
+     * @param fields null for every field
+     * @param docValues
      * @return
      */
-    public IndexWriter getWriter()
+    public List<Document> search(Query query, int max, Set<String> fields, boolean docValues)
     {
-    	return writer;
-    }
-    
+    	if(fields == null) return search(query,max);
+    	
+    	List<Document> docs = null;
+    	
+    	IndexSearcher is = null;
+    	try
+    	{
+    		is = acquire();
+    		
+    		TopDocs td = is.search(query, max);
+    		docs = loadHits(is,td.scoreDocs,td.scoreDocs.length,fields,docValues);
+    	}
+    	catch(Exception ex)
+    	{
+    		logger.log(Level.WARNING, "Error searching", ex);
+    	}
+    	finally
+    	{
+    		close(is);
+    	}
+    	
+    	return docs;
+    }
+    
+    /**
+     * Load the first num hits, all of each document when fields is null.
+     * 
+     * @param is
+     * @param sds
+     * @param num
+     * @param fields
+     * @param docValues
+     * @return
+     * @throws IOException
+     */
+    protected List<Document> loadHits(IndexSearcher is, ScoreDoc sds[], int num, Set<String> fields, boolean docValues) throws IOException
+    {
+    	Document out[] = new Document[num];
+    	
+    	if(fields != null && docValues)
+    	{
+    		readDocValues(is,sds,num,fields,out);
+    	}
+    	
+    	// the visitor skips everything not in fields
+    	StoredFields sf = is.storedFields();
+    	List<Document> docs = new ArrayList<Document>(num);
+    	for(int i=0; i<num; i++)
+    	{
+    		if(out[i] == null)
+    		{
+    			if(fields == null)
+    			{
+    				out[i] = sf.document(sds[i].doc);
+    			}
+    			else
+    			{
+    				out[i] = sf.document(sds[i].doc, fields);
+    			}
+    		}
+    		docs.add(out[i]);
+    	}
+    	return docs;
+    }
+    
+    /**
+     * One page of hits sorted by the doc values copy of sortField, see LuceneUtil.getDocValuesField.  cursor[0] is
+     * where the page starts, null for the first page, and is set to where the next one starts or null after the
+     * last page.
+     * 
+     * The cursor is the last sort value, not a doc id, so it still works after updates, deletes and merges.  That
+     * needs a unique sort field that every matching document has a doc values copy of, hits without one are an
+     * error.
+     * 
+     * @param query
+     * @param size
+     * @param sortField
+     * @param cursor
+     * @param fields null for every field
+     * @param docValues
+     * @return
+     * @throws NoGraphException
+     */
+    public List<Document> searchAfter(Query query, int size, String sortField, String cursor[], Set<String> fields, boolean docValues) throws NoGraphException
+    {
+    	if(size < 1) size = defaultMaxHits;
+    	
+    	BytesRef last = null;
+    	if(cursor[0] != null)
+    	{
+    		last = decodeCursor(cursor[0]);
+    	}
+    	
+    	List<Document> docs = null;
+    	IndexSearcher is = null;
+    	try
+    	{
+    		is = acquire();
+    		
+    		int maxDoc = is.getIndexReader().maxDoc();
+    		if(maxDoc == 0)
+    		{
+    			cursor[0] = null;
+    			return new ArrayList<Document>();
+    		}
+    		
+    		// ties go to the higher doc id, with the last doc of this reader a hit with the cursor value is never repeated
+    		FieldDoc after = null;
+    		if(last != null)
+    		{
+    			after = new FieldDoc(maxDoc-1, Float.NaN, new Object[]{last});
+    		}
+    		
+    		Sort sort = new Sort(new SortField(LuceneUtil.getDocValuesField(sortField), SortField.Type.STRING));
+    		
+    		// one extra hit says whether there is another page
+    		TopDocs td = is.searchAfter(after, query, size+1, sort);
+    		ScoreDoc sds[] = td.scoreDocs;
+    		int num = Math.min(size, sds.length);
+    		
+    		// missing values sort first, so any would be on the first page
+    		for(int i=0; i<num; i++)
+    		{
+    			if(((FieldDoc)sds[i]).fields[0] == null)
+    			{
+    				throw new NoGraphException("Documents without a doc values copy of " + sortField + " can't be paged, migrate the schema first");
+    			}
+    		}
+    		
+    		cursor[0] = null;
+    		if(sds.length > size)
+    		{
+    			cursor[0] = encodeCursor((BytesRef)((FieldDoc)sds[size-1]).fields[0]);
+    		}
+    		
+    		docs = loadHits(is,sds,num,fields,docValues);
+    	}
+    	catch(NoGraphException ex)
+    	{
+    		throw ex;
+    	}
+    	catch(Exception ex)
+    	{
+    		logger.log(Level.WARNING, "Error searching", ex);
+    		throw new NoGraphException("Error searching", ex);
+    	}
+    	finally
+    	{
+    		close(is);
+    	}
+    	
+    	return docs;
+    }
+    
+    protected String encodeCursor(BytesRef val)
+    {
+    	return Base64.getUrlEncoder().withoutPadding().encodeToString(BytesRef.deepCopyOf(val).bytes);
+    }
+    
+    protected BytesRef decodeCursor(String cursor) throws NoGraphException
+    {
+    	try
+    	{
+    		return new BytesRef(Base64.getUrlDecoder().decode(cursor));
+    	}
+    	catch(Exception ex)
+    	{
+    		throw new NoGraphException("Bad cursor " + cursor, ex);
+    	}
+    }
+    
+    /**
+     * Fill out with documents built from the doc values of the fields, leaving null any hit missing a value.
+     * 
+     * @param is
+     * @param sds
+     * @param num the number of hits to read
+     * @param fields
+     * @param out
+     * @throws IOException
+     */
+    protected void readDocValues(IndexSearcher is, final ScoreDoc sds[], int num, Set<String> fields, Document out[]) throws IOException
+    {
+    	// doc values only move forward so go through the hits in doc id order
+    	Integer order[] = new Integer[num];
+    	for(int i=0; i<order.length; i++)
+    	{
+    		order[i] = i;
+    	}
+    	Arrays.sort(order, new Comparator<Integer>() {
+    		public int compare(Integer a, Integer b)
+    		{
+    			return Integer.compare(sds[a].doc, sds[b].doc);
+    		}
+    	});
+    	
+    	String names[] = fields.toArray(new String[fields.size()]);
+    	int nf = names.length;
+    	SortedDocValues dvs[] = new SortedDocValues[nf];
+    	
+    	List<LeafReaderContext> leaves = is.getIndexReader().leaves();
+    	LeafReaderContext ctx = null;
+    	int leaf = -1;
+    	int li = 0;
+    	int doc = 0;
+    	Document d = null;
+    	
+    	for(int i=0; i<order.length; i++)
+    	{
+    		doc = sds[order[i]].doc;
+    		li = ReaderUtil.subIndex(doc, leaves);
+    		if(li != leaf)
+    		{
+    			leaf = li;
+    			ctx = leaves.get(li);
+    			for(int j=0; j<nf; j++)
+    			{
+    				dvs[j] = ctx.reader().getSortedDocValues(LuceneUtil.getDocValuesField(names[j]));
+    			}
+    		}
+    		
+    		doc -= ctx.docBase;
+    		d = new Document();
+    		for(int j=0; j<nf; j++)
+    		{
+    			if(dvs[j] == null || !dvs[j].advanceExact(doc))
+    			{
+    				// written before the copies or no value, fall back to the stored fields
+    				d = null;
+    				break;
+    			}
+    			d.add(new StoredField(names[j], dvs[j].lookupOrd(dvs[j].ordValue()).utf8ToString()));
+    		}
+    		out[order[i]] = d;
+    	}
+    }
+    
+    /**
+     * Open a reader of the documents matching the query that loads them a batch at a time as they are asked for.
+     * It holds one searcher until it is closed, so every batch comes from the same point in time.
+     * 
+     * @param query
+     * @param batchSize
+     * @param fields null for every field
+     * @param docValues
+     * @return
+     * @throws NoGraphException
+     */
+    public DocumentBatches openBatches(Query query, int batchSize, Set<String> fields, boolean docValues) throws NoGraphException
+    {
+    	IndexSearcher is = null;
+    	try
+    	{
+    		is = acquire();
+    		Weight w = is.createWeight(is.rewrite(query), ScoreMode.COMPLETE_NO_SCORES, 1.0f);
+    		return new DocumentBatches(is,w,Math.max(1, batchSize),fields,docValues);
+    	}
+    	catch(Exception ex)
+    	{
+    		close(is);
+    		logger.log(Level.WARNING, "Error searching", ex);
+    		throw new NoGraphException("Error searching", ex);
+    	}
+    }
+    
+    /**
+     * Walks the matches segment by segment in doc id order, so nothing is held beyond the current batch.  Not
+     * thread safe, and it must be closed to release the searcher.
+     */
+    public class DocumentBatches implements AutoCloseable
+    {
+    	protected IndexSearcher is = null;
+    	protected Weight weight = null;
+    	protected List<LeafReaderContext> leaves = null;
+    	protected int batchSize = 0;
+    	protected Set<String> fields = null;
+    	protected boolean docValues = false;
+    	
+    	protected int leaf = -1;
+    	protected int docBase = 0;
+    	protected DocIdSetIterator it = null;
+    	protected Bits live = null;
+    	protected ScoreDoc sds[] = null;
+    	
+    	protected DocumentBatches(IndexSearcher is, Weight weight, int batchSize, Set<String> fields, boolean docValues)
+    	{
+    		this.is = is;
+    		this.weight = weight;
+    		this.batchSize = batchSize;
+    		this.fields = fields;
+    		this.docValues = docValues;
+    		leaves = is.getIndexReader().leaves();
+    		sds = new ScoreDoc[batchSize];
+    	}
+    	
+    	/**
+    	 * @return the next batch, null when there are no more
+    	 * @throws NoGraphException
+    	 */
+    	public List<Document> next() throws NoGraphException
+    	{
+    		if(is == null) return null;
+    		
+    		try
+    		{
+    			int num = 0;
+    			int doc = 0;
+    			Scorer scorer = null;
+    			LeafReaderContext ctx = null;
+    			while(num < batchSize)
+    			{
+    				if(it == null)
+    				{
+    					leaf++;
+    					if(leaf >= leaves.size()) break;
+    					
+    					ctx = leaves.get(leaf);
+    					scorer = weight.scorer(ctx);
+    					if(scorer == null) continue;
+    					
+    					it = scorer.iterator();
+    					live = ctx.reader().getLiveDocs();
+    					docBase = ctx.docBase;
+    				}
+    				
+    				doc = it.nextDoc();
+    				if(doc == DocIdSetIterator.NO_MORE_DOCS)
+    				{
+    					it = null;
+    					continue;
+    				}
+    				
+    				// the scorer doesn't skip deletes
+    				if(live != null && !live.get(doc)) continue;
+    				
+    				sds[num++] = new ScoreDoc(docBase+doc, 0);
+    			}
+    			
+    			if(num == 0)
+    			{
+    				close();
+    				return null;
+    			}
+    			
+    			return loadHits(is,sds,num,fields,docValues);
+    		}
+    		catch(Exception ex)
+    		{
+    			close();
+    			logger.log(Level.WARNING, "Error reading batch", ex);
+    			throw new NoGraphException("Error reading batch", ex);
+    		}
+    	}
+    	
+    	public void close()
+    	{
+    		if(is != null)
+    		{
+    			LuceneIndex.this.close(is);
+    			is = null;
+    		}
+    	}
+    }
+    
+    /**
+     * The first document matching the query.  If current is given current[0] says whether the searcher used
+     * could see every change the writer had made, which is what a caller needs to know before caching the result.
+     * 
+     * @param query
+     * @param current
+     * @return null if nothing matched
+     */
+    public Document searchFirst(Query query, boolean current[])
+    {
+    	Document doc = null;
+    	
+    	IndexSearcher is = null;
+    	try
+    	{
+    		is = acquire();
+    		
+    		TopDocs td = is.search(query, 1);
+    		if(td.scoreDocs.length > 0)
+    		{
+    			doc = is.storedFields().document(td.scoreDocs[0].doc);
+    		}
+    		
+    		if(current != null)
+    		{
+    			IndexReader ir = is.getIndexReader();
+    			current[0] = ir instanceof DirectoryReader && ((DirectoryReader)ir).isCurrent();
+    		}
+    	}
+    	catch(Exception ex)
+    	{
+    		logger.log(Level.WARNING, "Error searching", ex);
+    		if(current != null) current[0] = false;
+    	}
+    	finally
+    	{
+    		close(is);
+    	}
+    	
+    	return doc;
+    }
+    
+    /**
+     * Collect the stored values of one field for every document matching the query, without any hit limit.
+     * Only the requested field is loaded.
+     * 
+     * @param query
+     * @param field
+     * @return
+     * @throws NoGraphException if the values couldn't all be read
+     */
+    public List<String> getFieldValues(Query query, final String field) throws NoGraphException
+    {
+    	final List<String> vals = new ArrayList<String>();
+    	final Set<String> fields = Collections.singleton(field);
+    	
+    	IndexSearcher is = null;
+    	try
+    	{
+    		is = acquire();
+    		
+    		is.search(query, new CollectorManager<FieldValueCollector,Object>() {
+    			@Override
+    			public FieldValueCollector newCollector() throws IOException
+    			{
+    				return new FieldValueCollector(field,fields);
+    			}
+    			
+    			@Override
+    			public Object reduce(Collection<FieldValueCollector> collectors) throws IOException
+    			{
+    				Iterator<FieldValueCollector> it = collectors.iterator();
+    				while(it.hasNext())
+    				{
+    					vals.addAll(it.next().vals);
+    				}
+    				return null;
+    			}
+    		});
+    	}
+    	catch(Exception ex)
+    	{
+    		logger.log(Level.WARNING, "Error getting field values", ex);
+    		throw new NoGraphException("Error getting field values", ex);
+    	}
+    	finally
+    	{
+    		close(is);
+    	}
+    	
+    	return vals;
+    }
+    
+    protected static class FieldValueCollector extends SimpleCollector
+    {
+    	protected String field = null;
+    	protected Set<String> fields = null;
+    	protected List<String> vals = new ArrayList<String>();
+    	protected StoredFields sf = null;
+    	
+    	protected FieldValueCollector(String field, Set<String> fields)
+    	{
+    		this.field = field;
+    		this.fields = fields;
+    	}
+    	
+    	@Override
+    	protected void doSetNextReader(LeafReaderContext context) throws IOException
+    	{
+    		sf = context.reader().storedFields();
+    	}
+    	
+    	@Override
+    	public void collect(int doc) throws IOException
+    	{
+    		String val = sf.document(doc,fields).get(field);
+    		if(val != null)
+    		{
+    			vals.add(val);
+    		}
+    	}
+    	
+    	@Override
+    	public ScoreMode scoreMode()
+    	{
+    		return ScoreMode.COMPLETE_NO_SCORES;
+    	}
+    }
+    
+    /**
+     * Count the documents matching the query by their values of one field, in a single pass with one searcher.
+     * Segments with the doc values copy of the field, see LuceneUtil.getDocValuesField, are counted by ordinal and
+     * only turned into strings once per segment.  Anything else is counted from the stored values, each value of
+     * a multi valued field once.  Only the system keys have doc values copies, so facets on other properties load
+     * the stored field of every hit and cost grows with the number of matches.
+     * 
+     * @param query
+     * @param field
+     * @return value to count, null on error
+     */
+    public Map<String,Long> getFacetCounts(Query query, String field)
+    {
+    	Map<String,Long> counts = null;
+    	
+    	IndexSearcher is = null;
+    	try
+    	{
+    		is = acquire();
+    		
+    		final String f = field;
+    		counts = is.search(query, new CollectorManager<FacetCollector,Map<String,Long>>() {
+    			@Override
+    			public FacetCollector newCollector() throws IOException
+    			{
+    				return new FacetCollector(f);
+    			}
+    			
+    			@Override
+    			public Map<String,Long> reduce(Collection<FacetCollector> collectors) throws IOException
+    			{
+    				Map<String,Long> out = null;
+    				Iterator<FacetCollector> it = collectors.iterator();
+    				FacetCollector fc = null;
+    				while(it.hasNext())
+    				{
+    					fc = it.next();
+    					fc.flushSegment();
+    					if(out == null)
+    					{
+    						out = fc.counts;
+    					}
+    					else
+    					{
+    						fc.addTo(out);
+    					}
+    				}
+    				return out == null?new HashMap<String,Long>():out;
+    			}
+    		});
+    	}
+    	catch(Exception ex)
+    	{
+    		logger.log(Level.WARNING, "Error getting facet counts", ex);
+    	}
+    	finally
+    	{
+    		close(is);
+    	}
+    	
+    	return counts;
+    }
+    
+    protected static class FacetCollector extends SimpleCollector
+    {
+    	protected String field = null;
+    	protected Set<String> fields = null;
+    	protected String dvField = null;
+    	protected Map<String,Long> counts = new HashMap<String,Long>();
+    	
+    	protected SortedDocValues dv = null;
+    	protected int ords[] = null;
+    	protected StoredFields sf = null;
+    	
+    	protected FacetCollector(String field)
+    	{
+    		this.field = field;
+    		fields = Collections.singleton(field);
+    		dvField = LuceneUtil.getDocValuesField(field);
+    	}
+    	
+    	@Override
+    	protected void doSetNextReader(LeafReaderContext context) throws IOException
+    	{
+    		flushSegment();
+    		
+    		dv = context.reader().getSortedDocValues(dvField);
+    		if(dv != null)
+    		{
+    			ords = new int[dv.getValueCount()];
+    		}
+    		sf = context.reader().storedFields();
+    	}
+    	
+    	@Override
+    	public void collect(int doc) throws IOException
+    	{
+    		if(dv != null && dv.advanceExact(doc))
+    		{
+    			ords[dv.ordValue()]++;
+    			return;
+    		}
+    		
+    		// written before the copies or not a system field
+    		IndexableField fs[] = sf.document(doc,fields).getFields(field);
+    		String val = null;
+    		for(int i=0; i<fs.length; i++)
+    		{
+    			val = fs[i].stringValue();
+    			if(val == null && fs[i].numericValue() != null) val = String.valueOf(fs[i].numericValue());
+    			if(val != null) add(val,1);
+    		}
+    	}
+    	
+    	/**
+    	 * Fold the ordinal counts of the current segment into the totals.
+    	 * 
+    	 * @throws IOException
+    	 */
+    	protected void flushSegment() throws IOException
+    	{
+    		if(ords != null)
+    		{
+    			for(int i=0; i<ords.length; i++)
+    			{
+    				if(ords[i] > 0) add(dv.lookupOrd(i).utf8ToString(),ords[i]);
+    			}
+    		}
+    		ords = null;
+    		dv = null;
+    	}
+    	
+    	protected void add(String val, long num)
+    	{
+    		Long cnt = counts.get(val);
+    		counts.put(val, cnt == null?num:cnt.longValue()+num);
+    	}
+    	
+    	/**
+    	 * Add these counts to the ones from another slice.
+    	 * 
+    	 * @param out
+    	 */
+    	protected void addTo(Map<String,Long> out)
+    	{
+    		Iterator<Map.Entry<String,Long>> it = counts.entrySet().iterator();
+    		Map.Entry<String,Long> me = null;
+    		Long cnt = null;
+    		while(it.hasNext())
+    		{
+    			me = it.next();
+    			cnt = out.get(me.getKey());
+    			out.put(me.getKey(), cnt == null?me.getValue():cnt.longValue()+me.getValue().longValue());
+    		}
+    	}
+    	
+    	@Override
+    	public ScoreMode scoreMode()
+    	{
+    		return ScoreMode.COMPLETE_NO_SCORES;
+    	}
+    }
+    
+    /**
+     * Receives documents one at a time from visitDocuments.
+     */
+    public static interface DocumentVisitor
+    {
+    	public void visit(Document doc) throws IOException;
+    }
+    
+    /**
+     * Hand every document matching the query to the visitor without any hit limit.  Documents are loaded one at a
+     * time from a single searcher so the visitor sees a point in time view of the index.
+     * 
+     * @param query
+     * @param visitor
+     * @return the number of documents visited
+     * @throws NoGraphException
+     */
+    public long visitDocuments(Query query, final DocumentVisitor visitor) throws NoGraphException
+    {
+    	return visitDocuments(query,null,visitor);
+    }
+    
+    /**
+     * Visit the matching documents loading only the given stored fields.
+     * 
+     * @param query
+     * @param fields null for every field
+     * @param visitor
+     * @return the number of documents visited
+     * @throws NoGraphException
+     */
+    public long visitDocuments(Query query, final Set<String> fields, final DocumentVisitor visitor) throws NoGraphException
+    {
+    	return visitDocuments(query,fields,visitor,true);
+    }
+    
+    /**
+     * @param query
+     * @param fields null for every field
+     * @param visitor
+     * @param refresh false to use the searcher as it is, see acquire(boolean)
+     * @return the number of documents visited
+     * @throws NoGraphException
+     */
+    public long visitDocuments(Query query, final Set<String> fields, final DocumentVisitor visitor, boolean refresh) throws NoGraphException
+    {
+    	long count = 0;
+    	
+    	IndexSearcher is = null;
+    	try
+    	{
+    		is = acquire(refresh);
+    		
+    		// the searchers have no executor so the visitor is only called from this thread
+    		count = is.search(query, new CollectorManager<VisitCollector,Long>() {
+    			@Override
+    			public VisitCollector newCollector() throws IOException
+    			{
+    				return new VisitCollector(fields,visitor);
+    			}
+    			
+    			@Override
+    			public Long reduce(Collection<VisitCollector> collectors) throws IOException
+    			{
+    				long total = 0;
+    				Iterator<VisitCollector> it = collectors.iterator();
+    				while(it.hasNext())
+    				{
+    					total += it.next().count;
+    				}
+    				return total;
+    			}
+    		});
+    	}
+    	catch(Exception ex)
+    	{
+    		logger.log(Level.WARNING, "Error visiting documents", ex);
+    		throw new NoGraphException("Error visiting documents", ex);
+    	}
+    	finally
+    	{
+    		close(is);
+    	}
+    	
+    	return count;
+    }
+    
+    protected static class VisitCollector extends SimpleCollector
+    {
+    	protected Set<String> fields = null;
+    	protected DocumentVisitor visitor = null;
+    	protected long count = 0;
+    	protected StoredFields sf = null;
+    	
+    	protected VisitCollector(Set<String> fields, DocumentVisitor visitor)
+    	{
+    		this.fields = fields;
+    		this.visitor = visitor;
+    	}
+    	
+    	@Override
+    	protected void doSetNextReader(LeafReaderContext context) throws IOException
+    	{
+    		sf = context.reader().storedFields();
+    	}
+    	
+    	@Override
+    	public void collect(int doc) throws IOException
+    	{
+    		visitor.visit(fields == null?sf.document(doc):sf.document(doc,fields));
+    		count++;
+    	}
+    	
+    	@Override
+    	public ScoreMode scoreMode()
+    	{
+    		return ScoreMode.COMPLETE_NO_SCORES;
+    	}
+    }
+    
+    /**
+     * Use with care.
+     * 
+     * @return
+     */
+    public IndexWriter getWriter()
+    {
+    	return writer;
+    }
+    
     /**
      * Use with care, call close(IndexSearcher) on this class when done.
      * 
@@ -476,8 +1770,7 @@ public class LuceneIndex
     	
     	try
     	{
-    		searcherMan.maybeRefresh();
-    		is = searcherMan.acquire();
+    		is = acquire();
     	}
     	catch(Exception ex)
     	{
@@ -490,10 +1783,12 @@ public class LuceneIndex
     public List<String> getTermsForField(String field)
     {
     	List<String> terms = null;
+    	IndexSearcher is = null;
     	
     	try
     	{
-	        IndexReader reader = searcherMan.acquire().getIndexReader();
+    		is = acquire();
+	        IndexReader reader = is.getIndexReader();
 	        
 	        // lucene 7
 	        //Terms ts = MultiFields.getTerms(reader, field);
@@ -514,6 +1809,10 @@ public class LuceneIndex
     	{
     		logger.log(Level.SEVERE,"Error getting terms",ex);
     	}
+    	finally
+    	{
+    		close(is);
+    	}
     	
     	return terms;
     }
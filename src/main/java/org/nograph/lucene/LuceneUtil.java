@@ -31,12 +31,14 @@ import org.apache.lucene.document.DoublePoint;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.IntPoint;
 import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.SortedDocValuesField;
 //import org.apache.lucene.document.SortedNumericDocValuesField;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.IndexableFieldType;
+import org.apache.lucene.util.BytesRef;
 //import org.apache.lucene.util.NumericUtils;
 import org.nograph.util.json.JSONObject;
 
@@ -50,6 +52,12 @@ public class LuceneUtil
 {
 	private static final Logger logger = Logger.getLogger(LuceneUtil.class.getName());
 	
+	/**
+	 * Key fields like the id and type get a doc values copy under this prefix so they can be read without
+	 * touching the stored fields.
+	 */
+	public static final String DOC_VALUES_PREFIX = "_dv_";
+	
 	/**
 	 * Converts an object first to JSON, then converts property map to Document.  Objects should be as flat as possible.  Good luck!
 	 * @param obj
@@ -248,6 +256,30 @@ public class LuceneUtil
 		return f;
     }
     
+    /**
+     * The name of the doc values copy of a key field.
+     * 
+     * @param key
+     * @return
+     */
+    public static String getDocValuesField(String key)
+    {
+    	return DOC_VALUES_PREFIX + key;
+    }
+    
+    /**
+     * Add a single valued doc values copy of a key field, see getDocValuesField.
+     * 
+     * @param doc
+     * @param key
+     * @param val
+     */
+    public static void addDocValues(Document doc, String key, String val)
+    {
+    	if(val == null) return;
+    	doc.add(new SortedDocValuesField(getDocValuesField(key), new BytesRef(val)));
+    }
+    
     /**
      * Take the stored field values and make a property map from the document.
      * 
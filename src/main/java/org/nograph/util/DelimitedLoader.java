@@ -0,0 +1,679 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.util;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.nograph.GraphManager;
+import org.nograph.NoGraph;
+import org.nograph.NoGraphException;
+import org.nograph.Node;
+import org.nograph.PropertyHolder;
+import org.nograph.Relationship;
+import org.nograph.util.json.CDL;
+import org.nograph.util.json.JSONArray;
+import org.nograph.util.json.JSONTokener;
+
+/**
+ * Bulk loads CSV or TSV node and edge files.  The file is streamed a line at a time, lines are parsed with CDL
+ * on a pool of threads and the parsed chunks are handed to ingestNodes and ingestRelationships in file order.
+ * Only a few chunks are in flight at once so memory does not grow with the size of the file, apart from the
+ * map of node keys to graph ids which edge files are resolved against.
+ *
+ * The first line is a header of name:type columns, for example
+ *
+ * person:ID,name,age:long,born:date,tags:string[],:TYPE
+ * :START,:END,since:int,:TYPE
+ *
+ * Value types are string (the default), int, long, float, double, boolean and date (ISO 8601), and a trailing
+ * [] splits the value on the array delimiter into a list.  :ID is the external key of a node, it is also kept
+ * as a property when the column is named.  :START and :END are the keys of the nodes an edge connects.  :TYPE
+ * and :LABEL set the type and label, and :IGNORE drops the column.  Empty values are not set.
+ *
+ * Quoted values may not span lines.
+ *
+ * @author aholinch
+ *
+ */
+public class DelimitedLoader
+{
+	private static final Logger logger = Logger.getLogger(DelimitedLoader.class.getName());
+
+	// column kinds
+	protected static final int C_PROP = 0;
+	protected static final int C_ID = 1;
+	protected static final int C_TYPE = 2;
+	protected static final int C_LABEL = 3;
+	protected static final int C_START = 4;
+	protected static final int C_END = 5;
+	protected static final int C_IGNORE = 6;
+
+	// value types
+	protected static final int V_STRING = 0;
+	protected static final int V_INT = 1;
+	protected static final int V_LONG = 2;
+	protected static final int V_FLOAT = 3;
+	protected static final int V_DOUBLE = 4;
+	protected static final int V_BOOLEAN = 5;
+	protected static final int V_DATE = 6;
+
+	protected static final int MAX_WARNINGS = 10;
+
+	protected GraphManager gm = null;
+	protected Map<String,String> idMap = null;
+
+	protected char delimiter = 0;
+	protected String arrayDelimiter = ";";
+	protected Pattern arraySplit = Pattern.compile(Pattern.quote(arrayDelimiter));
+	protected int threads = 0;
+	protected int chunkSize = 10000;
+	protected long reportInterval = 1000000;
+
+	protected long rows = 0;
+	protected long skipped = 0;
+
+	protected NoGraph ng = NoGraph.getInstance();
+
+	protected static class Column
+	{
+		protected String name = null;
+		protected int kind = C_PROP;
+		protected int valType = V_STRING;
+		protected boolean array = false;
+	}
+
+	/**
+	 * The parsed objects from one chunk of lines with the node keys in the same order.
+	 */
+	protected static class Chunk<T>
+	{
+		protected List<T> items = null;
+		protected List<String> keys = null;
+		protected long bad = 0;
+		protected String error = null;
+	}
+
+	public DelimitedLoader(GraphManager gm)
+	{
+		this.gm = gm;
+		idMap = new HashMap<String,String>();
+		threads = Math.max(1, Runtime.getRuntime().availableProcessors()-1);
+	}
+
+	/**
+	 * Field delimiter, by default tab for .tsv and .tab files and comma for anything else.
+	 *
+	 * @param c
+	 */
+	public void setDelimiter(char c)
+	{
+		delimiter = c;
+	}
+
+	/**
+	 * @param str taken literally, not as a regular expression
+	 */
+	public void setArrayDelimiter(String str)
+	{
+		arrayDelimiter = str;
+		arraySplit = Pattern.compile(Pattern.quote(str));
+	}
+
+	public void setThreads(int num)
+	{
+		threads = Math.max(1, num);
+	}
+
+	public void setChunkSize(int size)
+	{
+		chunkSize = Math.max(1, size);
+	}
+
+	/**
+	 * How many rows between progress messages.
+	 *
+	 * @param num
+	 */
+	public void setReportInterval(long num)
+	{
+		reportInterval = num;
+	}
+
+	/**
+	 * The node key to graph id map filled by loadNodes and used by loadRelationships.
+	 *
+	 * @return
+	 */
+	public Map<String,String> getIDMap()
+	{
+		return idMap;
+	}
+
+	/**
+	 * Resolve edges against keys from an earlier load.
+	 *
+	 * @param map
+	 */
+	public void setIDMap(Map<String,String> map)
+	{
+		idMap = map;
+	}
+
+	/**
+	 * Rows parsed by the last load.
+	 *
+	 * @return
+	 */
+	public long getRows()
+	{
+		return rows;
+	}
+
+	/**
+	 * Rows dropped by the last load because they were malformed or an edge key was unknown.
+	 *
+	 * @return
+	 */
+	public long getSkipped()
+	{
+		return skipped;
+	}
+
+	/**
+	 * Load a node file.  Nodes get new graph ids, the keys from the :ID column are mapped to them.
+	 *
+	 * @param file
+	 * @param defaultType used when there is no :TYPE column or it is empty
+	 * @return the number of nodes loaded
+	 * @throws NoGraphException
+	 */
+	public long loadNodes(String file, String defaultType) throws NoGraphException
+	{
+		return load(file, defaultType, false);
+	}
+
+	/**
+	 * Load an edge file after the nodes it connects.  Edges whose :START or :END key is unknown are skipped.
+	 *
+	 * @param file
+	 * @param defaultType used when there is no :TYPE column or it is empty
+	 * @return the number of relationships loaded
+	 * @throws NoGraphException
+	 */
+	public long loadRelationships(String file, String defaultType) throws NoGraphException
+	{
+		return load(file, defaultType, true);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	protected long load(String file, final String defaultType, final boolean edges) throws NoGraphException
+	{
+		rows = 0;
+		skipped = 0;
+
+		InputStream is = FileUtil.getInputStream(file);
+		if(is == null)
+		{
+			throw new NoGraphException("Unable to open " + file);
+		}
+
+		char delim = delimiter;
+		if(delim == 0)
+		{
+			String lf = file.toLowerCase();
+			delim = (lf.endsWith(".tsv") || lf.endsWith(".tab"))?'\t':',';
+		}
+
+		BufferedReader br = null;
+		ExecutorService pool = null;
+		long loaded = 0;
+		long start = System.currentTimeMillis();
+		long nextReport = reportInterval;
+
+		try
+		{
+			br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 1<<20);
+
+			String line = br.readLine();
+			if(line == null) return 0;
+			if(line.length() > 0 && line.charAt(0) == '\uFEFF') line = line.substring(1);
+
+			final Column cols[] = parseHeader(line, delim);
+			checkColumns(cols, edges, file);
+
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "nograph-load");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+			// bounds the parsed chunks waiting to be ingested
+			int maxPending = threads*2;
+			ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>(maxPending);
+
+			final char fdelim = delim;
+			List<String> lines = new ArrayList<String>(chunkSize);
+			boolean eof = false;
+			while(!eof)
+			{
+				line = br.readLine();
+				if(line == null)
+				{
+					eof = true;
+				}
+				else if(line.length() > 0)
+				{
+					lines.add(line);
+				}
+
+				if(lines.size() == chunkSize || (eof && lines.size() > 0))
+				{
+					final List<String> work = lines;
+					lines = new ArrayList<String>(chunkSize);
+					pending.add(pool.submit(new Callable<Chunk>() {
+						public Chunk call()
+						{
+							return edges?parseEdges(work,cols,fdelim,defaultType):parseNodes(work,cols,fdelim,defaultType);
+						}
+					}));
+				}
+
+				while(pending.size() > 0 && (pending.size() >= maxPending || eof))
+				{
+					loaded += ingest(pending.poll().get(), edges);
+
+					if(reportInterval > 0 && rows >= nextReport)
+					{
+						report(file, rows, start);
+						nextReport = rows + reportInterval;
+					}
+				}
+			}
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(ExecutionException ex)
+		{
+			logger.log(Level.WARNING, "Error parsing " + file, ex.getCause());
+			throw new NoGraphException("Error parsing " + file, ex.getCause());
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error loading " + file, ex);
+			throw new NoGraphException("Error loading " + file, ex);
+		}
+		finally
+		{
+			if(pool != null) pool.shutdownNow();
+			FileUtil.close(br);
+			FileUtil.close(is);
+		}
+
+		report(file, rows, start);
+		if(skipped > 0)
+		{
+			logger.warning("Skipped " + skipped + " rows in " + file);
+		}
+
+		return loaded;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected long ingest(Chunk<?> chunk, boolean edges) throws NoGraphException
+	{
+		rows += chunk.items.size() + chunk.bad;
+		skipped += chunk.bad;
+		if(chunk.error != null && skipped <= MAX_WARNINGS)
+		{
+			logger.warning(chunk.error);
+		}
+
+		if(chunk.items.size() == 0) return 0;
+
+		if(edges)
+		{
+			gm.ingestRelationships((List<Relationship>)chunk.items);
+		}
+		else
+		{
+			List<Node> nodes = (List<Node>)chunk.items;
+			gm.ingestNodes(nodes);
+
+			int size = nodes.size();
+			String key = null;
+			for(int i=0; i<size; i++)
+			{
+				key = chunk.keys.get(i);
+				if(key != null) idMap.put(key, nodes.get(i).getID());
+			}
+		}
+
+		return chunk.items.size();
+	}
+
+	protected void report(String file, long num, long start)
+	{
+		long dt = Math.max(1, System.currentTimeMillis()-start);
+		logger.info(file + ": " + num + " rows in " + dt + " ms, " + (long)(1000.0*num/dt) + " rows/sec");
+	}
+
+	protected Chunk<Node> parseNodes(List<String> lines, Column cols[], char delim, String defaultType)
+	{
+		Chunk<Node> chunk = new Chunk<Node>();
+		int size = lines.size();
+		chunk.items = new ArrayList<Node>(size);
+		chunk.keys = new ArrayList<String>(size);
+
+		String vals[] = null;
+		String key = null;
+		Node n = null;
+		for(int i=0; i<size; i++)
+		{
+			try
+			{
+				vals = splitLine(lines.get(i), delim, cols.length);
+				n = ng.newNode(defaultType);
+				key = fillObject(n, cols, vals);
+			}
+			catch(Exception ex)
+			{
+				badRow(chunk, lines.get(i), ex.getMessage());
+				continue;
+			}
+			chunk.items.add(n);
+			chunk.keys.add(key);
+		}
+
+		return chunk;
+	}
+
+	protected Chunk<Relationship> parseEdges(List<String> lines, Column cols[], char delim, String defaultType)
+	{
+		Chunk<Relationship> chunk = new Chunk<Relationship>();
+		int size = lines.size();
+		chunk.items = new ArrayList<Relationship>(size);
+
+		String vals[] = null;
+		String id1 = null;
+		String id2 = null;
+		Relationship r = null;
+		Node n = null;
+		for(int i=0; i<size; i++)
+		{
+			try
+			{
+				vals = splitLine(lines.get(i), delim, cols.length);
+				r = ng.newRelationship(defaultType);
+				fillObject(r, cols, vals);
+			}
+			catch(Exception ex)
+			{
+				badRow(chunk, lines.get(i), ex.getMessage());
+				continue;
+			}
+
+			// the map is only read while edges load
+			id1 = null;
+			id2 = null;
+			for(int j=0; j<cols.length; j++)
+			{
+				if(cols[j].kind == C_START) id1 = idMap.get(vals[j]);
+				else if(cols[j].kind == C_END) id2 = idMap.get(vals[j]);
+			}
+
+			if(id1 == null || id2 == null)
+			{
+				badRow(chunk, lines.get(i), "unknown node key");
+				continue;
+			}
+
+			n = ng.newNode("");
+			n.setID(id1);
+			r.setNode1(n);
+			n = ng.newNode("");
+			n.setID(id2);
+			r.setNode2(n);
+			chunk.items.add(r);
+		}
+
+		return chunk;
+	}
+
+	protected void badRow(Chunk<?> chunk, String line, String msg)
+	{
+		if(chunk.error == null)
+		{
+			chunk.error = "Skipping row, " + msg + ": " + line;
+		}
+		chunk.bad++;
+	}
+
+	protected String[] splitLine(String line, char delim, int numCols) throws NoGraphException
+	{
+		JSONArray ja = CDL.rowToJSONArray(new JSONTokener(line), delim);
+		if(ja == null || ja.length() != numCols)
+		{
+			throw new NoGraphException("expected " + numCols + " columns");
+		}
+
+		String vals[] = new String[numCols];
+		for(int i=0; i<numCols; i++)
+		{
+			vals[i] = ja.getString(i);
+		}
+		return vals;
+	}
+
+	/**
+	 * Set the columns on the object.
+	 *
+	 * @param ph
+	 * @param cols
+	 * @param vals
+	 * @return the node key if there is one
+	 * @throws NoGraphException
+	 */
+	protected String fillObject(PropertyHolder ph, Column cols[], String vals[]) throws NoGraphException
+	{
+		String key = null;
+		Column col = null;
+		String val = null;
+		for(int i=0; i<cols.length; i++)
+		{
+			col = cols[i];
+			val = vals[i];
+			if(val.length() == 0) continue;
+
+			switch(col.kind)
+			{
+			case C_ID:
+				key = val;
+				if(col.name.length() > 0) ph.setProperty(col.name, val);
+				break;
+			case C_TYPE:
+				ph.setType(val);
+				break;
+			case C_LABEL:
+				ph.setLabel(val);
+				break;
+			case C_PROP:
+				if(col.array)
+				{
+					String sa[] = arraySplit.split(val);
+					List<Object> list = new ArrayList<Object>(sa.length);
+					for(int j=0; j<sa.length; j++)
+					{
+						list.add(convert(col, sa[j].trim()));
+					}
+					ph.setProperty(col.name, list);
+				}
+				else
+				{
+					ph.setProperty(col.name, convert(col, val));
+				}
+				break;
+			default:
+				break;
+			}
+		}
+
+		return key;
+	}
+
+	protected Object convert(Column col, String val) throws NoGraphException
+	{
+		try
+		{
+			switch(col.valType)
+			{
+			case V_INT:
+				return Integer.valueOf(val);
+			case V_LONG:
+				return Long.valueOf(val);
+			case V_FLOAT:
+				return Float.valueOf(val);
+			case V_DOUBLE:
+				return Double.valueOf(val);
+			case V_BOOLEAN:
+				return Boolean.valueOf(val);
+			case V_DATE:
+				Object d = DateUtil.parseISODate(val);
+				if(d == null) throw new NoGraphException("bad date");
+				return d;
+			default:
+				return val;
+			}
+		}
+		catch(Exception ex)
+		{
+			throw new NoGraphException("bad value for " + col.name + " '" + val + "'");
+		}
+	}
+
+	/**
+	 * Parse the name:type header.
+	 *
+	 * @param line
+	 * @param delim
+	 * @return
+	 * @throws NoGraphException
+	 */
+	protected static Column[] parseHeader(String line, char delim) throws NoGraphException
+	{
+		JSONArray ja = CDL.rowToJSONArray(new JSONTokener(line), delim);
+		if(ja == null)
+		{
+			throw new NoGraphException("Missing header");
+		}
+
+		int num = ja.length();
+		Column cols[] = new Column[num];
+		String str = null;
+		String type = null;
+		Column col = null;
+		int ind = 0;
+		for(int i=0; i<num; i++)
+		{
+			str = ja.getString(i);
+			col = new Column();
+			cols[i] = col;
+
+			ind = str.lastIndexOf(':');
+			if(ind < 0)
+			{
+				col.name = str;
+				continue;
+			}
+
+			col.name = str.substring(0,ind).trim();
+			type = str.substring(ind+1).trim().toLowerCase();
+			if(type.endsWith("[]"))
+			{
+				col.array = true;
+				type = type.substring(0,type.length()-2);
+			}
+
+			if(type.equals("id")) col.kind = C_ID;
+			else if(type.equals("type")) col.kind = C_TYPE;
+			else if(type.equals("label")) col.kind = C_LABEL;
+			else if(type.equals("start")) col.kind = C_START;
+			else if(type.equals("end")) col.kind = C_END;
+			else if(type.equals("ignore")) col.kind = C_IGNORE;
+			else if(type.equals("string") || type.length() == 0) col.valType = V_STRING;
+			else if(type.equals("int")) col.valType = V_INT;
+			else if(type.equals("long")) col.valType = V_LONG;
+			else if(type.equals("float")) col.valType = V_FLOAT;
+			else if(type.equals("double")) col.valType = V_DOUBLE;
+			else if(type.equals("boolean")) col.valType = V_BOOLEAN;
+			else if(type.equals("date")) col.valType = V_DATE;
+			else throw new NoGraphException("Unknown column type " + str);
+
+			if(col.kind == C_PROP && col.name.length() == 0)
+			{
+				throw new NoGraphException("Missing column name " + str);
+			}
+		}
+
+		return cols;
+	}
+
+	protected static void checkColumns(Column cols[], boolean edges, String file) throws NoGraphException
+	{
+		int ids = 0;
+		int starts = 0;
+		int ends = 0;
+		for(int i=0; i<cols.length; i++)
+		{
+			if(cols[i].kind == C_ID) ids++;
+			else if(cols[i].kind == C_START) starts++;
+			else if(cols[i].kind == C_END) ends++;
+		}
+
+		if(ids > 1)
+		{
+			throw new NoGraphException("More than one :ID column in " + file);
+		}
+
+		if(edges && (starts != 1 || ends != 1))
+		{
+			throw new NoGraphException("Edge file needs one :START and one :END column " + file);
+		}
+	}
+}
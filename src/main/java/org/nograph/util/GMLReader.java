@@ -0,0 +1,469 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.nograph.GraphManager;
+import org.nograph.NoGraph;
+import org.nograph.NoGraphException;
+import org.nograph.Node;
+import org.nograph.PropertyHolder;
+import org.nograph.Relationship;
+
+/**
+ * A streaming GML parser.  Nodes and edges are handed to a handler as soon as their closing bracket is read so
+ * only one object is in memory at a time.
+ *
+ * id, label, source and target are handled as before and type sets the type.  Any other attribute becomes a
+ * property, integers as Long and reals as Double.  Nested lists are flattened with dotted keys so
+ * graphics [ x 1.0 ] becomes graphics.x, and repeated keys become lists.
+ *
+ * @author aholinch
+ *
+ */
+public class GMLReader
+{
+	private static final Logger logger = Logger.getLogger(GMLReader.class.getName());
+
+	protected static final int BUFFER_SIZE = 65536;
+
+	// token types
+	protected static final int T_EOF = 0;
+	protected static final int T_WORD = 1;
+	protected static final int T_STRING = 2;
+	protected static final int T_OPEN = 3;
+	protected static final int T_CLOSE = 4;
+
+	protected Reader reader = null;
+	protected char buf[] = new char[BUFFER_SIZE];
+	protected int pos = 0;
+	protected int len = 0;
+
+	protected int tokenType = T_EOF;
+	protected String token = null;
+	protected StringBuilder sb = new StringBuilder();
+
+	protected NoGraph ng = NoGraph.getInstance();
+
+	/**
+	 * Receives the parsed objects.
+	 */
+	public static interface GMLHandler
+	{
+		public void node(Node n) throws NoGraphException;
+
+		public void edge(Relationship r) throws NoGraphException;
+	}
+
+	public GMLReader(Reader r)
+	{
+		reader = r;
+	}
+
+	public GMLReader(InputStream is)
+	{
+		reader = new InputStreamReader(is, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Parse the whole input, the reader is closed at the end.
+	 *
+	 * @param handler
+	 * @throws NoGraphException
+	 */
+	public void read(GMLHandler handler) throws NoGraphException
+	{
+		try
+		{
+			String key = null;
+			while(next() != T_EOF)
+			{
+				if(tokenType != T_WORD) continue;
+
+				key = token;
+				next();
+				if(tokenType == T_OPEN)
+				{
+					if(key.equalsIgnoreCase("graph"))
+					{
+						readGraph(handler);
+					}
+					else
+					{
+						skipList();
+					}
+				}
+			}
+		}
+		catch(NoGraphException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error reading GML", ex);
+			throw new NoGraphException("Error reading GML", ex);
+		}
+		finally
+		{
+			FileUtil.close(reader);
+		}
+	}
+
+	protected void readGraph(GMLHandler handler) throws IOException, NoGraphException
+	{
+		String key = null;
+		while(next() != T_EOF && tokenType != T_CLOSE)
+		{
+			if(tokenType != T_WORD) continue;
+
+			key = token.toLowerCase();
+			next();
+			if(tokenType != T_OPEN) continue; // graph attributes are not kept
+
+			if(key.equals("node"))
+			{
+				Node n = ng.newNode("");
+				readObject(n,null,"");
+				handler.node(n);
+			}
+			else if(key.equals("edge"))
+			{
+				Relationship r = ng.newRelationship("");
+				readObject(r,r,"");
+				handler.edge(r);
+			}
+			else
+			{
+				skipList();
+			}
+		}
+	}
+
+	/**
+	 * Read the key value pairs up to the closing bracket.
+	 *
+	 * @param ph
+	 * @param rel set for edges
+	 * @param prefix for nested lists
+	 * @throws IOException
+	 */
+	protected void readObject(PropertyHolder ph, Relationship rel, String prefix) throws IOException
+	{
+		String key = null;
+		while(next() != T_EOF && tokenType != T_CLOSE)
+		{
+			if(tokenType != T_WORD) continue;
+
+			key = token;
+			next();
+			if(tokenType == T_OPEN)
+			{
+				readObject(ph,rel,prefix+key+".");
+			}
+			else if(tokenType == T_WORD || tokenType == T_STRING)
+			{
+				setValue(ph,rel,prefix,key,token,tokenType == T_STRING);
+			}
+			else
+			{
+				break;
+			}
+		}
+	}
+
+	protected void setValue(PropertyHolder ph, Relationship rel, String prefix, String key, String val, boolean quoted)
+	{
+		if(prefix.length() == 0)
+		{
+			String lk = key.toLowerCase();
+			if(lk.equals("id"))
+			{
+				ph.setID(val);
+				return;
+			}
+			else if(lk.equals("label"))
+			{
+				ph.setLabel(val);
+				return;
+			}
+			else if(lk.equals("type"))
+			{
+				ph.setType(val);
+				return;
+			}
+			else if(rel != null && lk.equals("source"))
+			{
+				Node n = ng.newNode("");
+				n.setID(val);
+				rel.setNode1(n);
+				return;
+			}
+			else if(rel != null && lk.equals("target"))
+			{
+				Node n = ng.newNode("");
+				n.setID(val);
+				rel.setNode2(n);
+				return;
+			}
+		}
+
+		key = prefix+key;
+		Object obj = val;
+		if(!quoted)
+		{
+			obj = parseNumber(val);
+		}
+
+		if(ph.getProperty(key) == null)
+		{
+			ph.setProperty(key, obj);
+		}
+		else
+		{
+			ph.addProperty(key, obj);
+		}
+	}
+
+	protected Object parseNumber(String val)
+	{
+		try
+		{
+			if(val.indexOf('.') < 0 && val.indexOf('e') < 0 && val.indexOf('E') < 0)
+			{
+				return Long.valueOf(val);
+			}
+			return Double.valueOf(val);
+		}
+		catch(Exception ex)
+		{
+			return val;
+		}
+	}
+
+	protected void skipList() throws IOException
+	{
+		int depth = 1;
+		while(depth > 0 && next() != T_EOF)
+		{
+			if(tokenType == T_OPEN) depth++;
+			else if(tokenType == T_CLOSE) depth--;
+		}
+	}
+
+	protected int read() throws IOException
+	{
+		if(pos == len)
+		{
+			len = reader.read(buf,0,buf.length);
+			pos = 0;
+			if(len <= 0)
+			{
+				len = 0;
+				return -1;
+			}
+		}
+		return buf[pos++];
+	}
+
+	/**
+	 * Read the next token into token and tokenType.
+	 *
+	 * @return the token type
+	 * @throws IOException
+	 */
+	protected int next() throws IOException
+	{
+		token = null;
+		int c = read();
+
+		while(true)
+		{
+			while(c != -1 && Character.isWhitespace(c))
+			{
+				c = read();
+			}
+
+			if(c == '#')
+			{
+				// comment to the end of the line
+				while(c != -1 && c != '\n' && c != '\r')
+				{
+					c = read();
+				}
+				continue;
+			}
+			break;
+		}
+
+		if(c == -1)
+		{
+			tokenType = T_EOF;
+		}
+		else if(c == '[')
+		{
+			tokenType = T_OPEN;
+		}
+		else if(c == ']')
+		{
+			tokenType = T_CLOSE;
+		}
+		else if(c == '"')
+		{
+			sb.setLength(0);
+			c = read();
+			while(c != -1 && c != '"')
+			{
+				sb.append((char)c);
+				c = read();
+			}
+			tokenType = T_STRING;
+			token = decode(sb.toString());
+		}
+		else
+		{
+			sb.setLength(0);
+			while(c != -1 && !Character.isWhitespace(c) && c != '[' && c != ']' && c != '"')
+			{
+				sb.append((char)c);
+				c = read();
+			}
+
+			// give back the delimiter if it is a token
+			if(c != -1) pos--;
+
+			tokenType = T_WORD;
+			token = sb.toString();
+		}
+
+		return tokenType;
+	}
+
+	/**
+	 * GML escapes characters in strings as HTML entities.
+	 *
+	 * @param str
+	 * @return
+	 */
+	protected String decode(String str)
+	{
+		if(str.indexOf('&') < 0) return str;
+
+		str = str.replace("&quot;", "\"");
+		str = str.replace("&lt;", "<");
+		str = str.replace("&gt;", ">");
+		str = str.replace("&amp;", "&");
+		return str;
+	}
+
+	/**
+	 * Stream a GML file into the graph.  Nodes get new graph ids and edges are rewritten to use them.  Nodes
+	 * must appear before the edges that use them, edges to unknown nodes are skipped.
+	 *
+	 * @param file
+	 * @param gm
+	 * @param chunkSize the number of nodes or edges handed to the ingest methods at a time
+	 * @return the GML id to graph id map
+	 * @throws NoGraphException
+	 */
+	public static Map<String,String> load(String file, final GraphManager gm, final int chunkSize) throws NoGraphException
+	{
+		InputStream is = FileUtil.getInputStream(file);
+		if(is == null)
+		{
+			throw new NoGraphException("Unable to open " + file);
+		}
+
+		final Map<String,String> idMap = new HashMap<String,String>();
+		final List<Node> nodes = new ArrayList<Node>(chunkSize);
+		final List<String> gmlIDs = new ArrayList<String>(chunkSize);
+		final List<Relationship> rels = new ArrayList<Relationship>(chunkSize);
+		final long skipped[] = new long[1];
+
+		GMLReader gr = new GMLReader(is);
+		gr.read(new GMLHandler() {
+			public void node(Node n) throws NoGraphException
+			{
+				gmlIDs.add(n.getID());
+				n.setID(null);
+				nodes.add(n);
+				if(nodes.size() >= chunkSize) flushNodes(gm,nodes,gmlIDs,idMap);
+			}
+
+			public void edge(Relationship r) throws NoGraphException
+			{
+				// the edge needs the graph ids of every node seen so far
+				if(nodes.size() > 0) flushNodes(gm,nodes,gmlIDs,idMap);
+
+				String id1 = idMap.get(r.getNode1ID());
+				String id2 = idMap.get(r.getNode2ID());
+				if(id1 == null || id2 == null)
+				{
+					skipped[0]++;
+					return;
+				}
+				r.getNode1().setID(id1);
+				r.getNode2().setID(id2);
+				r.setID(null);
+				rels.add(r);
+				if(rels.size() >= chunkSize)
+				{
+					gm.ingestRelationships(rels);
+					rels.clear();
+				}
+			}
+		});
+
+		if(nodes.size() > 0) flushNodes(gm,nodes,gmlIDs,idMap);
+		if(rels.size() > 0) gm.ingestRelationships(rels);
+
+		if(skipped[0] > 0)
+		{
+			logger.warning("Skipped " + skipped[0] + " edges with unknown source or target");
+		}
+
+		return idMap;
+	}
+
+	protected static void flushNodes(GraphManager gm, List<Node> nodes, List<String> gmlIDs, Map<String,String> idMap) throws NoGraphException
+	{
+		gm.ingestNodes(nodes);
+
+		int size = nodes.size();
+		String gid = null;
+		for(int i=0; i<size; i++)
+		{
+			gid = gmlIDs.get(i);
+			if(gid != null) idMap.put(gid, nodes.get(i).getID());
+		}
+
+		nodes.clear();
+		gmlIDs.clear();
+	}
+}
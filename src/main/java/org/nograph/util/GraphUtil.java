@@ -17,6 +17,7 @@ limitations under the License.
 */
 package org.nograph.util;
 
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.HashMap;
@@ -24,10 +25,12 @@ import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.nograph.NoGraph;
+import org.nograph.GraphManager;
+import org.nograph.NoGraphException;
 import org.nograph.Node;
-import org.nograph.PropertyHolder;
 import org.nograph.Relationship;
+import org.nograph.impl.GraphDump;
+import org.nograph.impl.LuceneGraphManager;
 
 /**
  * Utilities to help organize graph data.
@@ -137,139 +140,86 @@ public class GraphUtil
     }
     
     /**
-     * Using a basic GML parser fill the list of nodes and relationships.
+     * Using a basic GML parser fill the list of nodes and relationships.  The GML ids are kept.
      * 
      * @param nodes
      * @param rels
      */
-    public static void readGML(String file, List<Node> nodes, List<Relationship> rels)
+    public static void readGML(String file, final List<Node> nodes, final List<Relationship> rels)
     {
-    	String content = FileUtil.getStringFromFile(file);
-    	String lines[] = content.split("\n");
-    	int nl = lines.length;
-    	String line = null;
-    	
-    	// get to start of graph
-    	int ind = 0;
-    	int end = nl-1;
-    	while (!lines[end].contains("]")){ end--;}
-    	end--;
-    	
-    	while(!lines[ind].trim().startsWith("graph") && ind < nl){
-    		ind++;
-    	}
-    	
-    	while(!lines[ind].contains("["))
+    	InputStream is = FileUtil.getInputStream(file);
+    	if(is == null)
     	{
-    		ind++;
+    		Logger.getLogger(GraphUtil.class.getName()).log(Level.WARNING,"No graph data");
+    		return;
     	}
     	
-    	if(ind == nl || ind >= end)
+    	try
     	{
-    		Logger.getLogger(GraphUtil.class.getName()).log(Level.WARNING,"No graph data");
+	    	GMLReader gr = new GMLReader(is);
+	    	gr.read(new GMLReader.GMLHandler() {
+				public void node(Node n)
+				{
+					nodes.add(n);
+				}
+	
+				public void edge(Relationship r)
+				{
+					rels.add(r);
+				}
+	    	});
     	}
-    	
-    	// we don't have any properties on the graph itself, so we look for the next appearance of [
-    	
-    	String type=null;
-    	String lbl = null;
-    	
-    	int si = 0;
-    	int si2 = 0;
-    	
-    	int cnt = 0;
-    	int os = 0;
-    	int oe = 0;
-    	PropertyHolder ph = null;
-    	Node n = null;
-    	Relationship rel = null;
-    	NoGraph ng = NoGraph.getInstance();
-    	
-    	for(int i=ind; i<end; i++)
+    	catch(Exception ex)
     	{
-    		line = lines[i].trim();
-    		si = line.indexOf('[');
-    		if(si > -1)
-    		{
-    			if(si == 0) // symbol at start means get previous line
-    			{
-    				type = lines[i-1].trim();
-    			}
-    			else
-    			{
-    				type = line.substring(0,si).trim();
-    			}
-    			
-    			type = type.toLowerCase();
-    			if(type.equals("node") || type.equals("edge"))
-    			{
-    				// parse nodes and edges
-    				cnt = 1;
-    				ind = i+1;
-    				os = ind;
-    				while(cnt > 0 && ind < end)
-    				{
-    					line = lines[ind].trim();
-    					si = line.indexOf('[');
-    					si2 = line.indexOf(']');
-    					if(si>-1)cnt++;
-    					if(si2>-1)cnt--;
-    					ind++;
-    				}
-    				oe = ind;
-    				
-    				if(oe <= end)
-    				{
-    					// let's parse it
-    					if(type.equals("node"))
-    					{
-    						n = ng.newNode("");
-    						ph = n;
-    						nodes.add(n);
-    					}
-    					else
-    					{
-    						rel = ng.newRelationship("");
-    						ph = rel;
-    						rels.add(rel);
-    					}
-    					
-    					for(int j=os; j<oe; j++)
-    					{
-    						line = lines[j].trim();
-    						if(line.startsWith("id "))
-    						{
-    							ph.setID(line.substring(3).trim());
-    						}
-    						else if(line.startsWith("label "))
-    						{
-    							lbl = line.substring(6).trim();
-    							if(lbl.startsWith("\"")) lbl = lbl.substring(1).trim();
-    							if(lbl.endsWith("\"")) lbl = lbl.substring(0,lbl.length()-1).trim();
-    							ph.setLabel(lbl);
-    						}
-    						else if(line.startsWith("source ") && rel != null)
-    						{
-    							n = ng.newNode("");
-    							n.setID(line.substring(7).trim());
-    							rel.setNode1(n);
-    						}
-    						else if(line.startsWith("target ") && rel != null)
-    						{
-    							n = ng.newNode("");
-    							n.setID(line.substring(7).trim());
-    							rel.setNode2(n);
-    						}
-    					}
-    					
-    					n = null;
-    					rel = null;
-    					ph = null;
-    				}
-    				i = ind-1;
-    			}
-    		}
-    	}    	
-    	
+    		Logger.getLogger(GraphUtil.class.getName()).log(Level.WARNING,"Error reading GML",ex);
+    	}
     } // end GML
+    
+    /**
+     * Stream a GML file straight into the graph without holding it in memory.
+     * 
+     * @param file
+     * @param gm
+     * @return the GML id to graph id map
+     * @throws NoGraphException
+     */
+    public static Map<String,String> loadGML(String file, GraphManager gm) throws NoGraphException
+    {
+    	return GMLReader.load(file, gm, 10000);
+    }
+    
+    /**
+     * Dump the whole graph to a JSON Lines file, gzipped if the name ends in .gz.
+     * 
+     * @param file
+     * @param gm
+     * @return the number of nodes and relationships written
+     * @throws NoGraphException
+     */
+    public static long exportGraph(String file, GraphManager gm) throws NoGraphException
+    {
+    	return new GraphDump(getLuceneGraphManager(gm)).exportGraph(file);
+    }
+    
+    /**
+     * Restore a dump written by exportGraph, keeping the ids.
+     * 
+     * @param file
+     * @param gm
+     * @return the number of nodes and relationships restored
+     * @throws NoGraphException
+     */
+    public static long importGraph(String file, GraphManager gm) throws NoGraphException
+    {
+    	return new GraphDump(getLuceneGraphManager(gm)).importGraph(file);
+    }
+    
+    protected static LuceneGraphManager getLuceneGraphManager(GraphManager gm) throws NoGraphException
+    {
+    	if(!(gm instanceof LuceneGraphManager))
+    	{
+    		throw new NoGraphException("Graph dumps need a LuceneGraphManager");
+    	}
+    	return (LuceneGraphManager)gm;
+    }
 }
@@ -53,12 +53,28 @@ public class CDL {
      * @throws JSONException if the quoted string is badly formed.
      */
     private static String getValue(JSONTokener x) throws JSONException {
+        return getValue(x, ',');
+    }
+
+    /**
+     * Get the next value using the given delimiter.  Leading tabs are only
+     * skipped when tab is not the delimiter so empty TSV fields survive.
+     * @param x A JSONTokener of the source text.
+     * @param delim The field delimiter.
+     * @return The value string, or null if empty.
+     * @throws JSONException if the quoted string is badly formed.
+     */
+    private static String getValue(JSONTokener x, char delim) throws JSONException {
         char c;
         char q;
         StringBuffer sb;
         do {
             c = x.next();
-        } while (c == ' ' || c == '\t');
+        } while (c == ' ' || (c == '\t' && delim != '\t'));
+        if (c == delim) {
+            x.back();
+            return "";
+        }
         switch (c) {
         case 0:
             return null;
@@ -85,12 +101,9 @@ public class CDL {
                 sb.append(c);
             }
             return sb.toString();
-        case ',':
-            x.back();
-            return "";
         default:
             x.back();
-            return x.nextTo(',');
+            return x.nextTo(delim);
         }
     }
 
@@ -101,17 +114,34 @@ public class CDL {
      * @throws JSONException
      */
     public static JSONArray rowToJSONArray(JSONTokener x) throws JSONException {
+        return rowToJSONArray(x, ',');
+    }
+
+    /**
+     * Produce a JSONArray of strings from a row of delimited values, for
+     * example tab for TSV.  A trailing empty field at the end of the input
+     * is kept as an empty string.
+     * @param x A JSONTokener of the source text.
+     * @param delim The field delimiter.
+     * @return A JSONArray of strings.
+     * @throws JSONException
+     */
+    public static JSONArray rowToJSONArray(JSONTokener x, char delim) throws JSONException {
         JSONArray ja = new JSONArray();
         for (;;) {
-            String value = getValue(x);
+            String value = getValue(x, delim);
+            if (value == null && ja.length() > 0) {
+                ja.put("");
+                return ja;
+            }
             char c = x.next();
             if (value == null ||
-                    (ja.length() == 0 && value.length() == 0 && c != ',')) {
+                    (ja.length() == 0 && value.length() == 0 && c != delim)) {
                 return null;
             }
             ja.put(value);
             for (;;) {
-                if (c == ',') {
+                if (c == delim) {
                     break;
                 }
                 if (c != ' ') {
@@ -0,0 +1,147 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.junit.Test;
+import org.nograph.NoGraph;
+import org.nograph.NoGraphConfig;
+import org.nograph.NoGraphException;
+import org.nograph.lucene.LuceneIndex;
+
+public class CommitSchedulerTests
+{
+	@Test
+	public void testFailedCommit() throws Exception
+	{
+		File f = Files.createTempDirectory("commit").toFile();
+		f.deleteOnExit();
+		String dir = f.getAbsolutePath() + "/";
+
+		NoGraphConfig config = NoGraph.getInstance().getConfig();
+		config.setProperty("committest." + LuceneGraphManager.PROP_ND, dir + "nodes/");
+		config.setProperty("committest." + LuceneGraphManager.PROP_RD, dir + "rels/");
+		config.setProperty("committest." + LuceneGraphManager.PROP_COMMIT_MODE, "manual");
+		LuceneGraphManager gm = LuceneGraphManager.getInstance("committest");
+
+		GenericNode n = new GenericNode();
+		n.setType("person");
+		gm.saveNode(n);
+		gm.flush();
+		long durable = gm.commitScheduler.getDurableSequence();
+		assertEquals(gm.commitScheduler.getWriteSequence(), durable);
+
+		// the writer is gone by the time it commits, which fails without throwing
+		gm.nodeIndex = new LuceneIndex(dir + "failing/") {
+			public boolean commit(Map<String,String> data)
+			{
+				try
+				{
+					getWriter().rollback();
+				}
+				catch(Exception ex)
+				{
+				}
+				return super.commit(data);
+			}
+		};
+
+		n = new GenericNode();
+		n.setType("person");
+		gm.saveNode(n);
+		try
+		{
+			gm.flush();
+			fail("flush should fail");
+		}
+		catch(NoGraphException ex)
+		{
+		}
+		assertEquals(durable, gm.commitScheduler.getDurableSequence());
+
+		try
+		{
+			gm.commitScheduler.awaitDurable(gm.commitScheduler.getWriteSequence());
+			fail("awaitDurable should fail");
+		}
+		catch(NoGraphException ex)
+		{
+		}
+		assertEquals(durable, gm.commitScheduler.getDurableSequence());
+		assertEquals(2, gm.commitScheduler.getFailures());
+	}
+
+	@Test
+	public void testFailedNodeCommitSkipsRels() throws Exception
+	{
+		File f = Files.createTempDirectory("commit").toFile();
+		f.deleteOnExit();
+		String dir = f.getAbsolutePath() + "/";
+
+		NoGraphConfig config = NoGraph.getInstance().getConfig();
+		config.setProperty("committest2." + LuceneGraphManager.PROP_ND, dir + "nodes/");
+		config.setProperty("committest2." + LuceneGraphManager.PROP_RD, dir + "rels/");
+		config.setProperty("committest2." + LuceneGraphManager.PROP_COMMIT_MODE, "manual");
+		LuceneGraphManager gm = LuceneGraphManager.getInstance("committest2");
+		long relSeq = gm.getCommitSequence(gm.relIndex);
+
+		gm.nodeIndex = new LuceneIndex(dir + "failing/") {
+			public boolean commit(Map<String,String> data)
+			{
+				try
+				{
+					getWriter().rollback();
+				}
+				catch(Exception ex)
+				{
+				}
+				return super.commit(data);
+			}
+		};
+
+		GenericNode a = new GenericNode();
+		a.setType("person");
+		GenericNode b = new GenericNode();
+		b.setType("person");
+		gm.saveNode(a);
+		gm.saveNode(b);
+		GenericRelationship r = new GenericRelationship();
+		r.setType("knows");
+		r.setNode1(a);
+		r.setNode2(b);
+		gm.saveRelationship(r);
+		try
+		{
+			gm.flush();
+			fail("flush should fail");
+		}
+		catch(NoGraphException ex)
+		{
+		}
+
+		// the relationship can't be committed without its nodes, the marker is left for the repair
+		assertEquals(relSeq, gm.getCommitSequence(gm.relIndex));
+		assertTrue(gm.relIndex.hasUncommittedChanges());
+		assertTrue(new File(gm.commitMarkerFile).exists());
+	}
+}
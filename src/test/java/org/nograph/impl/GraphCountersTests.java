@@ -0,0 +1,68 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class GraphCountersTests
+{
+	@Test
+	public void testCounts()
+	{
+		GraphCounters gc = new GraphCounters();
+		gc.addNode("person", 2);
+		gc.addNode("place", 1);
+		gc.addRelationship("knows", "a", "b", 1);
+		gc.addRelationship("knows", "a", "c", 1);
+		gc.addRelationship("knows", "a", "c", -1);
+
+		assertEquals(2, gc.getNodeCount("person"));
+		assertEquals(1, gc.getRelationshipCount("knows"));
+		assertEquals(1, gc.getOutDegree("a"));
+		assertEquals(1, gc.getInDegree("b"));
+		assertEquals(0, gc.getInDegree("c"));
+
+		// zero counts are left out
+		gc.addNode("place", -1);
+		assertEquals(1, gc.getNodeCounts().size());
+
+		gc.removeNode("a");
+		assertEquals(0, gc.getOutDegree("a"));
+	}
+
+	@Test
+	public void testJSON()
+	{
+		GraphCounters gc = new GraphCounters();
+		gc.addNode("person", 3);
+		gc.addRelationship("knows", "a", "b", 2);
+		gc.setSequence(42);
+		assertTrue(gc.isDirty());
+
+		GraphCounters copy = new GraphCounters();
+		copy.fromJSONString(gc.toJSONString());
+		assertFalse(copy.isDirty());
+		assertEquals(42, copy.getSequence());
+		assertEquals(3, copy.getNodeCount("person"));
+		assertEquals(2, copy.getRelationshipCount("knows"));
+		assertEquals(2, copy.getOutDegree("a"));
+		assertEquals(2, copy.getInDegree("b"));
+	}
+}
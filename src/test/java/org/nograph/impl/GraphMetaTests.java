@@ -0,0 +1,76 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class GraphMetaTests 
+{
+	public GenericNode getNode(String type, String prop, Object val)
+	{
+		GenericNode n = new GenericNode();
+		n.setType(type);
+		n.setProperty(prop, val);
+		return n;
+	}
+	
+	@Test
+	public void testDirtyOnlyOnChange()
+	{
+		GraphMeta gm = new GraphMeta();
+		assertFalse(gm.isDirty());
+		assertNull(gm.snapshotIfDirty());
+		
+		gm.updateNodeMeta(getNode("person","age",Integer.valueOf(3)));
+		assertTrue(gm.isDirty());
+		assertNotNull(gm.snapshotIfDirty());
+		assertFalse(gm.isDirty());
+		
+		// same type and property again
+		gm.updateNodeMeta(getNode("person","age",Integer.valueOf(4)));
+		assertFalse(gm.isDirty());
+		
+		// new property
+		gm.updateNodeMeta(getNode("person","name","bob"));
+		assertTrue(gm.isDirty());
+		gm.clearDirty();
+		
+		// changed value type
+		gm.updateNodeMeta(getNode("person","age",Double.valueOf(4.5)));
+		assertTrue(gm.isDirty());
+	}
+	
+	@Test
+	public void testRoundTrip()
+	{
+		GraphMeta gm = new GraphMeta();
+		gm.updateNodeMeta(getNode("person","age",Long.valueOf(3)));
+		String json = gm.toJSONString();
+		
+		GraphMeta gm2 = new GraphMeta();
+		gm2.fromJSONString(json);
+		assertFalse(gm2.isDirty());
+		assertTrue(gm2.getPropertiesForNodeType("person").contains("age"));
+		
+		// types survive the reload so an unchanged save stays clean
+		gm2.updateNodeMeta(getNode("person","age",Long.valueOf(5)));
+		assertFalse(gm2.isDirty());
+	}
+}
@@ -0,0 +1,87 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.nograph.util.FileUtil;
+
+public class LeasedIDAllocatorTests 
+{
+	public String getStoreFile() throws Exception
+	{
+		File f = File.createTempFile("idstore", ".store");
+		f.delete();
+		f.deleteOnExit();
+		return f.getAbsolutePath();
+	}
+	
+	@Test
+	public void testSequential() throws Exception
+	{
+		LeasedIDAllocator ida = new LeasedIDAllocator(getStoreFile(),new AtomicLong(),10);
+		
+		assertEquals(ida.nextID(),1);
+		assertEquals(ida.nextID(),2);
+		assertEquals(ida.nextBlock(5),3);
+		assertEquals(ida.getCurrentID(),7);
+	}
+	
+	@Test
+	public void testOnlyLeaseIsPersisted() throws Exception
+	{
+		String file = getStoreFile();
+		LeasedIDAllocator ida = new LeasedIDAllocator(file,new AtomicLong(),10);
+		
+		ida.nextID();
+		assertEquals(FileUtil.getStringFromFile(file).trim(),"11");
+		
+		// ids up to 11 are covered by the first lease
+		for(int i=0; i<10; i++) ida.nextID();
+		assertEquals(FileUtil.getStringFromFile(file).trim(),"11");
+		
+		ida.nextID();
+		assertEquals(FileUtil.getStringFromFile(file).trim(),"22");
+	}
+	
+	@Test
+	public void testNoReuseAfterRestart() throws Exception
+	{
+		String file = getStoreFile();
+		LeasedIDAllocator ida = new LeasedIDAllocator(file,new AtomicLong(),10);
+		long last = 0;
+		for(int i=0; i<15; i++) last = ida.nextID();
+		
+		// simulate a crash, the new counter starts from nothing
+		ida = new LeasedIDAllocator(file,new AtomicLong(),10);
+		assertTrue(ida.nextID() > last);
+		assertTrue(ida.nextBlock(100) > last);
+	}
+	
+	@Test
+	public void testSharedCounterNotMovedBack() throws Exception
+	{
+		AtomicLong counter = new AtomicLong(500);
+		LeasedIDAllocator ida = new LeasedIDAllocator(getStoreFile(),counter,10);
+		assertEquals(ida.nextID(),501);
+	}
+}
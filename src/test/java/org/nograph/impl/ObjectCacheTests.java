@@ -0,0 +1,84 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ObjectCacheTests
+{
+	@Test
+	public void testEviction()
+	{
+		ObjectCache<String> cache = new ObjectCache<String>(3,0);
+		cache.put("a", "A", 10, cache.getStamp());
+		cache.put("b", "B", 10, cache.getStamp());
+		cache.put("c", "C", 10, cache.getStamp());
+
+		// touch a so b is the eldest
+		assertEquals("A", cache.get("a"));
+		cache.put("d", "D", 10, cache.getStamp());
+
+		assertEquals(3, cache.size());
+		assertNull(cache.get("b"));
+		assertEquals("A", cache.get("a"));
+		assertEquals(1, cache.getEvictions());
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		ObjectCache<String> bytes = new ObjectCache<String>(100,25);
+		bytes.put("a", "A", 10, bytes.getStamp());
+		bytes.put("b", "B", 10, bytes.getStamp());
+		bytes.put("c", "C", 10, bytes.getStamp());
+		assertEquals(2, bytes.size());
+		assertEquals(20, bytes.getBytes());
+	}
+
+	@Test
+	public void testInvalidate()
+	{
+		ObjectCache<String> cache = new ObjectCache<String>(10,0);
+		long stamp = cache.getStamp();
+		cache.put("a", "A", 1, stamp);
+		cache.put("b", "B", 1, stamp);
+
+		// a fill that started before the invalidation is dropped
+		cache.invalidate("a");
+		assertFalse(cache.put("a", "old", 1, stamp));
+		assertNull(cache.get("a"));
+		assertEquals("B", cache.get("b"));
+
+		cache.invalidate(Arrays.asList("b"));
+		assertEquals(0, cache.size());
+
+		cache.put("x1", "X", 1, cache.getStamp());
+		cache.put("y1", "Y", 1, cache.getStamp());
+		int count = cache.invalidateMatching(new ObjectCache.Matcher<String>() {
+			public boolean matches(String val)
+			{
+				return val.equals("X");
+			}
+		});
+		assertEquals(1, count);
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getBytes());
+	}
+}
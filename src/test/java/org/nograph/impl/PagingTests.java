@@ -0,0 +1,117 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.nograph.GraphQuery;
+import org.nograph.NoGraph;
+import org.nograph.NoGraphConfig;
+import org.nograph.Node;
+import org.nograph.ResultPage;
+
+public class PagingTests
+{
+	@Test
+	public void testCursorAcrossChanges() throws Exception
+	{
+		File f = Files.createTempDirectory("paging").toFile();
+		f.deleteOnExit();
+		String dir = f.getAbsolutePath() + "/";
+
+		NoGraphConfig config = NoGraph.getInstance().getConfig();
+		config.setProperty("pagetest." + LuceneGraphManager.PROP_ND, dir + "nodes/");
+		config.setProperty("pagetest." + LuceneGraphManager.PROP_RD, dir + "rels/");
+		LuceneGraphManager gm = LuceneGraphManager.getInstance("pagetest");
+
+		List<Node> nodes = new ArrayList<Node>();
+		for(int i=0; i<60; i++)
+		{
+			nodes.add(node(i));
+		}
+		gm.saveNodes(nodes);
+		gm.flush();
+
+		GraphQuery q = new GraphQuery();
+		q.setCriterion(GraphQuery.createEqualsCriterion("type", "person"));
+		q.setPageSize(10);
+
+		Set<String> seen = new HashSet<String>();
+		for(int i=0; i<4; i++)
+		{
+			page(gm,q,seen);
+		}
+		assertEquals(40, seen.size());
+
+		// once the deletes are merged away the index is smaller than the doc id the last page ended on
+		List<String> ids = new ArrayList<String>();
+		for(int i=0; i<30; i++)
+		{
+			ids.add(id(i));
+		}
+		gm.deleteNodesByID(ids);
+		gm.flush();
+		gm.nodeIndex.getWriter().forceMerge(1);
+		gm.nodeIndex.refresh();
+
+		page(gm,q,seen);
+		assertEquals(50, seen.size());
+
+		// the last node of the page gets a new doc id, it must not come back on the next page
+		Node n = node(49);
+		n.setProperty("updated", "true");
+		gm.saveNode(n);
+		gm.flush();
+
+		while(page(gm,q,seen));
+		assertEquals(60, seen.size());
+	}
+
+	protected boolean page(LuceneGraphManager gm, GraphQuery q, Set<String> seen) throws Exception
+	{
+		ResultPage<Node> page = gm.findNodesPage(q);
+		List<Node> res = page.getResults();
+		for(int i=0; i<res.size(); i++)
+		{
+			assertTrue("duplicate " + res.get(i).getID(), seen.add(res.get(i).getID()));
+		}
+		q.setCursor(page.getCursor());
+		return page.hasMore();
+	}
+
+	protected String id(int i)
+	{
+		return "n" + (i<10?"0":"") + i;
+	}
+
+	protected Node node(int i)
+	{
+		GenericNode n = new GenericNode();
+		n.setID(id(i));
+		n.setType("person");
+		return n;
+	}
+}
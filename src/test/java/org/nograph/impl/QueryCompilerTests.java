@@ -0,0 +1,83 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import static org.junit.Assert.*;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Test;
+import org.nograph.GraphQuery;
+import org.nograph.GraphQuery.RangeCriterion;
+import org.nograph.GraphQuery.SetCriterion;
+
+public class QueryCompilerTests
+{
+	@Test
+	public void testTypedValues() throws Exception
+	{
+		QueryCompiler qc = new QueryCompiler(0);
+		Analyzer a = new StandardAnalyzer();
+
+		Query q = qc.compile(GraphQuery.createRangeCriterion("Age", 9, 20), a, "");
+		assertEquals(IntPoint.newRangeQuery("age", 10, 19), q);
+
+		q = qc.compile(GraphQuery.createEqualsCriterion("name", "Big Cat"), a, "");
+		assertTrue(q instanceof PhraseQuery);
+
+		q = qc.compile(GraphQuery.createEqualsCriterion("name", "Cat"), a, "");
+		assertEquals("name:cat", ((TermQuery)q).toString());
+
+		RangeCriterion rc = new RangeCriterion();
+		rc.setKey("age");
+		rc.setMinValue(5, true);
+		q = qc.compile(rc, a, "");
+		assertEquals(IntPoint.newRangeQuery("age", 5, Integer.MAX_VALUE), q);
+	}
+
+	@Test
+	public void testPlans() throws Exception
+	{
+		SetCriterion s1 = new SetCriterion();
+		s1.addCriterion(GraphQuery.createEqualsCriterion("type", "dog"));
+		s1.addCriterion(GraphQuery.createEqualsCriterion("Age", 3));
+
+		SetCriterion s2 = new SetCriterion();
+		s2.addCriterion(GraphQuery.createEqualsCriterion("age", 3));
+		s2.addCriterion(GraphQuery.createEqualsCriterion("type", "dog"));
+
+		// member order and key case don't matter, value types do
+		assertEquals(QueryCompiler.normalize(s1), QueryCompiler.normalize(s2));
+		assertFalse(QueryCompiler.normalize(GraphQuery.createEqualsCriterion("age", 3)).equals(
+				QueryCompiler.normalize(GraphQuery.createEqualsCriterion("age", "3"))));
+
+		QueryCompiler qc = new QueryCompiler(10);
+		Analyzer a = new StandardAnalyzer();
+		Query q1 = qc.compile(s1, a, "n");
+		Query q2 = qc.compile(s2, a, "n");
+		assertSame(q1, q2);
+		assertEquals(1, qc.getCache().getHits());
+
+		qc.compile(s2, a, "r");
+		assertEquals(2, qc.getCache().size());
+	}
+}
@@ -0,0 +1,169 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+import org.nograph.GraphBatch;
+import org.nograph.NoGraphException;
+import org.nograph.Node;
+
+public class WriteAheadLogTests
+{
+	public String getDir() throws Exception
+	{
+		File f = Files.createTempDirectory("wal").toFile();
+		f.deleteOnExit();
+		return f.getAbsolutePath();
+	}
+
+	public GraphBatch getBatch(String id)
+	{
+		GraphBatch batch = new GraphBatch();
+		GenericNode n = new GenericNode();
+		n.setID(id);
+		n.setType("person");
+		n.setProperty("name", "bob");
+		n.setProperty("age", Long.valueOf(42));
+		n.setProperty("born", new Date(1000));
+		n.setProperty("score", Double.valueOf(1.5));
+		n.setProperty("tags", Arrays.asList("a","b"));
+		batch.saveNode(n);
+
+		GenericNode n2 = new GenericNode();
+		n2.setID("2");
+		GenericRelationship r = new GenericRelationship();
+		r.setID("3");
+		r.setType("knows");
+		r.setNode1(n);
+		r.setNode2(n2);
+		batch.saveRelationship(r);
+
+		batch.deleteNode("4");
+		batch.deleteRelationship("5");
+		return batch;
+	}
+
+	public List<GraphBatch> replay(String dir, long after) throws Exception
+	{
+		final List<GraphBatch> out = new ArrayList<GraphBatch>();
+		WriteAheadLog wal = new WriteAheadLog(dir,0);
+		wal.open(after, new WriteAheadLog.Replayer() {
+			public void replay(long lsn, GraphBatch batch) throws NoGraphException
+			{
+				out.add(batch);
+			}
+		});
+		wal.close();
+		return out;
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception
+	{
+		String dir = getDir();
+		WriteAheadLog wal = new WriteAheadLog(dir,0);
+		wal.open(0, null);
+		long lsn = wal.append(getBatch("1"));
+		wal.applied(lsn);
+		wal.sync(lsn);
+		wal.close();
+
+		List<GraphBatch> batches = replay(dir,0);
+		assertEquals(1, batches.size());
+
+		GraphBatch batch = batches.get(0);
+		Node n = batch.getNodes().get(0);
+		assertEquals("1", n.getID());
+		assertEquals("person", n.getType());
+		assertEquals(Long.valueOf(42), n.getProperty("age"));
+		assertEquals(new Date(1000), n.getProperty("born"));
+		assertEquals(Double.valueOf(1.5), n.getProperty("score"));
+		assertEquals(Arrays.asList("a","b"), n.getProperty("tags"));
+
+		assertEquals("2", batch.getRelationships().get(0).getNode2ID());
+		assertEquals("4", batch.getDeletedNodeIDs().get(0));
+		assertEquals("5", batch.getDeletedRelationshipIDs().get(0));
+	}
+
+	@Test
+	public void testReplayAfterCommit() throws Exception
+	{
+		String dir = getDir();
+		WriteAheadLog wal = new WriteAheadLog(dir,0);
+		wal.open(0, null);
+		for(int i=0; i<5; i++)
+		{
+			wal.applied(wal.append(getBatch(String.valueOf(i))));
+		}
+		assertEquals(5, wal.getAppliedLSN());
+		wal.sync(5);
+		wal.close();
+
+		List<GraphBatch> batches = replay(dir,3);
+		assertEquals(2, batches.size());
+		assertEquals("3", batches.get(0).getNodes().get(0).getID());
+	}
+
+	@Test
+	public void testTornTail() throws Exception
+	{
+		String dir = getDir();
+		WriteAheadLog wal = new WriteAheadLog(dir,0);
+		wal.open(0, null);
+		wal.append(getBatch("1"));
+		wal.append(getBatch("2"));
+		wal.sync(2);
+		wal.close();
+
+		// chop the end off the second record
+		File f = new File(dir).listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(f,"rw");
+		raf.setLength(raf.length()-3);
+		raf.close();
+
+		assertEquals(1, replay(dir,0).size());
+	}
+
+	@Test
+	public void testCheckpoint() throws Exception
+	{
+		String dir = getDir();
+		WriteAheadLog wal = new WriteAheadLog(dir,0);
+		wal.open(0, null);
+		long lsn = wal.append(getBatch("1"));
+
+		// not applied yet so a commit can't cover it
+		assertEquals(0, wal.getAppliedLSN());
+		wal.applied(lsn);
+		wal.sync(lsn);
+		wal.checkpoint(wal.getAppliedLSN());
+		wal.close();
+
+		assertEquals(0, replay(dir,0).size());
+	}
+}
@@ -0,0 +1,62 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.lucene;
+
+import static org.junit.Assert.*;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.junit.Test;
+
+public class IndexSettingsTests 
+{
+	@Test
+	public void testDefaults()
+	{
+		IndexWriterConfig iwc = new IndexSettings().createWriterConfig(new StandardAnalyzer());
+		IndexWriterConfig def = new IndexWriterConfig(new StandardAnalyzer());
+		assertEquals(def.getRAMBufferSizeMB(), iwc.getRAMBufferSizeMB(), 0.0);
+		assertEquals(def.getMaxBufferedDocs(), iwc.getMaxBufferedDocs());
+		assertEquals(def.getUseCompoundFile(), iwc.getUseCompoundFile());
+		assertEquals(def.getCodec().getName(), iwc.getCodec().getName());
+	}
+
+	@Test
+	public void testTuning()
+	{
+		IndexSettings settings = new IndexSettings();
+		settings.setRAMBufferMB(512);
+		settings.setMaxBufferedDocs(100000);
+		settings.setMergePolicy("LogByteSize");
+		settings.setMergeThreads(4);
+		settings.setCompression("compression");
+		settings.setUseCompoundFile(Boolean.FALSE);
+
+		IndexWriterConfig iwc = settings.createWriterConfig(new StandardAnalyzer());
+		assertEquals(512.0, iwc.getRAMBufferSizeMB(), 0.0);
+		assertEquals(100000, iwc.getMaxBufferedDocs());
+		assertTrue(iwc.getMergePolicy() instanceof LogByteSizeMergePolicy);
+		assertEquals(0.0, iwc.getMergePolicy().getNoCFSRatio(), 0.0);
+		assertFalse(iwc.getUseCompoundFile());
+		assertEquals(4, ((ConcurrentMergeScheduler)iwc.getMergeScheduler()).getMaxThreadCount());
+		assertNotSame(Codec.getDefault(), iwc.getCodec());
+	}
+}
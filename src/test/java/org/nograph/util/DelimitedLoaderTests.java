@@ -0,0 +1,90 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.nograph.Node;
+import org.nograph.util.json.CDL;
+import org.nograph.util.json.JSONArray;
+import org.nograph.util.json.JSONTokener;
+
+public class DelimitedLoaderTests 
+{
+	@Test
+	public void testTabRow() throws Exception
+	{
+		JSONArray ja = CDL.rowToJSONArray(new JSONTokener("a\t\t\"b\tc\"\t"), '\t');
+		assertEquals(4, ja.length());
+		assertEquals("a", ja.getString(0));
+		assertEquals("", ja.getString(1));
+		assertEquals("b\tc", ja.getString(2));
+		assertEquals("", ja.getString(3));
+
+		ja = CDL.rowToJSONArray(new JSONTokener("x, y"));
+		assertEquals(2, ja.length());
+		assertEquals("y", ja.getString(1));
+	}
+
+	@Test
+	public void testParseNodes() throws Exception
+	{
+		DelimitedLoader dl = new DelimitedLoader(null);
+		DelimitedLoader.Column cols[] = DelimitedLoader.parseHeader("key:ID,name,age:long,score:double,tags:string[],:TYPE", ',');
+
+		List<String> lines = Arrays.asList("k1,\"Smith, Bob\",42,1.5,a;b,person", "k2,,,,,", "k3,bob,old,1,,");
+		DelimitedLoader.Chunk<Node> chunk = dl.parseNodes(lines, cols, ',', "thing");
+
+		assertEquals(2, chunk.items.size());
+		assertEquals(1, chunk.bad);
+		assertEquals("k1", chunk.keys.get(0));
+
+		Node n = chunk.items.get(0);
+		assertEquals("person", n.getType());
+		assertEquals("Smith, Bob", n.getProperty("name"));
+		assertEquals(Long.valueOf(42), n.getProperty("age"));
+		assertEquals(Double.valueOf(1.5), n.getProperty("score"));
+		assertEquals(Arrays.asList("a","b"), n.getProperty("tags"));
+		assertEquals("k1", n.getProperty("key"));
+
+		n = chunk.items.get(1);
+		assertEquals("thing", n.getType());
+		assertNull(n.getProperty("age"));
+	}
+
+	@Test
+	public void testArrayDelimiter() throws Exception
+	{
+		DelimitedLoader dl = new DelimitedLoader(null);
+		DelimitedLoader.Column cols[] = DelimitedLoader.parseHeader("key:ID,tags:string[],nums:int[]", ',');
+
+		dl.setArrayDelimiter("|");
+		Node n = dl.parseNodes(Arrays.asList("k1,a|b,1|2"), cols, ',', "thing").items.get(0);
+		assertEquals(Arrays.asList("a","b"), n.getProperty("tags"));
+		assertEquals(Arrays.asList(1,2), n.getProperty("nums"));
+
+		dl.setArrayDelimiter(".");
+		n = dl.parseNodes(Arrays.asList("k1,a.b,3.4"), cols, ',', "thing").items.get(0);
+		assertEquals(Arrays.asList("a","b"), n.getProperty("tags"));
+		assertEquals(Arrays.asList(3,4), n.getProperty("nums"));
+	}
+}
@@ -0,0 +1,109 @@
+/* 
+
+Copyright 2020 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.nograph.util;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.nograph.Node;
+import org.nograph.Relationship;
+
+public class GMLReaderTests 
+{
+	public static final String GML = "Creator \"test\"\n"+
+			"# a comment [ with brackets ]\n"+
+			"graph\n"+
+			"[\n"+
+			"  directed 1\n"+
+			"  node\n"+
+			"  [\n"+
+			"    id 1\n"+
+			"    label \"first &quot;node&quot;\"\n"+
+			"    weight 2.5\n"+
+			"    count 7\n"+
+			"    graphics [ x 1.0 y 2.0 ]\n"+
+			"  ]\n"+
+			"  node [ id 2 label \"second\" tag \"a\" tag \"b\" ]\n"+
+			"  edge\n"+
+			"  [\n"+
+			"    source 1\n"+
+			"    target 2\n"+
+			"    label \"knows\"\n"+
+			"    type \"friend\"\n"+
+			"  ]\n"+
+			"]\n";
+	
+	public void read(String gml, final List<Node> nodes, final List<Relationship> rels) throws Exception
+	{
+		GMLReader gr = new GMLReader(new StringReader(gml));
+		gr.read(new GMLReader.GMLHandler() {
+			public void node(Node n)
+			{
+				nodes.add(n);
+			}
+			
+			public void edge(Relationship r)
+			{
+				rels.add(r);
+			}
+		});
+	}
+	
+	@Test
+	public void testRead() throws Exception
+	{
+		List<Node> nodes = new ArrayList<Node>();
+		List<Relationship> rels = new ArrayList<Relationship>();
+		read(GML,nodes,rels);
+		
+		assertEquals(2, nodes.size());
+		assertEquals(1, rels.size());
+		
+		Node n = nodes.get(0);
+		assertEquals("1", n.getID());
+		assertEquals("first \"node\"", n.getLabel());
+		assertEquals(Double.valueOf(2.5), n.getProperty("weight"));
+		assertEquals(Long.valueOf(7), n.getProperty("count"));
+		assertEquals(Double.valueOf(1.0), n.getProperty("graphics.x"));
+		assertEquals(Double.valueOf(2.0), n.getProperty("graphics.y"));
+		
+		assertEquals(2, nodes.get(1).getProperties("tag").size());
+		
+		Relationship r = rels.get(0);
+		assertEquals("1", r.getNode1ID());
+		assertEquals("2", r.getNode2ID());
+		assertEquals("knows", r.getLabel());
+		assertEquals("friend", r.getType());
+	}
+	
+	@Test
+	public void testOneLine() throws Exception
+	{
+		List<Node> nodes = new ArrayList<Node>();
+		List<Relationship> rels = new ArrayList<Relationship>();
+		read("graph [ node [ id 1 ] node [ id 2 ] edge [ source 1 target 2 ] ]",nodes,rels);
+		
+		assertEquals(2, nodes.size());
+		assertEquals(1, rels.size());
+		assertEquals("2", rels.get(0).getNode2ID());
+	}
+}